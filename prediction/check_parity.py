@@ -0,0 +1,62 @@
+"""Compare the Java preprocessing and predictions with prediction.py on a flow CSV file.
+
+Usage:
+  ./cfm -predict flow_model.bin flows.csv features.csv > predictions.txt
+  CFM_PICKLES=prediction/pickles python check_parity.py flows.csv features.csv [predictions.txt]
+
+features.csv holds the preprocessed features written by the Java CsvFlowClassifier. log1p comes from
+different math libraries, so values may differ in the last bits; labels are expected to agree.
+"""
+import sys
+
+import numpy as np
+import pandas as pd
+
+from prediction import predict, preprocess_new_data
+
+RTOL = 1e-12
+
+
+def main(flows_csv, features_csv, predictions_txt=None):
+    expected = preprocess_new_data(pd.read_csv(flows_csv))
+    actual = pd.read_csv(features_csv)
+    if list(actual.columns) != list(expected.columns):
+        print('Feature columns differ: %s' % list(actual.columns))
+        return 1
+    if len(actual) != len(expected):
+        print('Row counts differ: %d in Java, %d in Python' % (len(actual), len(expected)))
+        return 1
+
+    a = actual.values.astype(np.float64)
+    e = expected.values.astype(np.float64)
+    close = np.isclose(a, e, rtol=RTOL, atol=0.0, equal_nan=True)
+    failed = 0
+    if not close.all():
+        rows, cols = np.nonzero(~close)
+        for row, col in list(zip(rows, cols))[:10]:
+            print('Row %d, %s: Java %r, Python %r' % (row + 1, expected.columns[col], a[row, col], e[row, col]))
+        failed = len(set(rows))
+    exact = int(np.sum(a == e))
+    print('%d rows, %d of %d values identical, %d rows outside rtol %g'
+          % (len(e), exact, e.size, failed, RTOL))
+
+    if predictions_txt is not None:
+        labels = [line.rsplit(': ', 1)[1].strip() for line in open(predictions_txt)
+                  if line.startswith('Prediction for flow ')]
+        python_labels = predict(e)
+        differ = [i for i, (j, p) in enumerate(zip(labels, python_labels)) if j != p]
+        if len(labels) != len(python_labels):
+            print('Label counts differ: %d in Java, %d in Python' % (len(labels), len(python_labels)))
+            return 1
+        for i in differ[:10]:
+            print('Row %d: Java %s, Python %s' % (i + 1, labels[i], python_labels[i]))
+        print('%d of %d labels identical' % (len(labels) - len(differ), len(labels)))
+        failed += len(differ)
+    return 1 if failed else 0
+
+
+if __name__ == '__main__':
+    if len(sys.argv) < 3:
+        print(__doc__)
+        sys.exit(2)
+    sys.exit(main(*sys.argv[1:4]))
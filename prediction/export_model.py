@@ -0,0 +1,119 @@
+"""Export the prediction.py pickles into the binary model read by the Java FlowClassifier.
+
+Usage: python export_model.py [pickle_directory] [output_file]
+
+Layout, big-endian as read by java.io.DataInputStream:
+  int magic 'CFMR', int version 1
+  int feature count, then per feature: UTF name, double median, boolean skewed,
+      double scale, double min (MinMaxScaler)
+  two forests, binary then multi-class, each:
+      int class count, then per class: UTF label
+      int tree count, then per tree:
+          int node count n, int[n] left child, int[n] right child, int[n] feature,
+          double[n] threshold, double[n * classes] class probabilities
+"""
+import os
+import struct
+import sys
+
+MAGIC = 0x43464d52
+VERSION = 1
+LEAF = -1
+
+
+def write_int(out, value):
+    out.write(struct.pack('>i', value))
+
+
+def write_double(out, value):
+    out.write(struct.pack('>d', value))
+
+
+def write_utf(out, text):
+    data = text.encode('utf-8')
+    out.write(struct.pack('>H', len(data)))
+    out.write(data)
+
+
+def write_features(out, feature_columns, medians, skewed_cols, scaler):
+    scale = scaler.scale_.tolist()
+    minimum = scaler.min_.tolist()
+    skewed = set(skewed_cols)
+    write_int(out, len(feature_columns))
+    for i, name in enumerate(feature_columns):
+        write_utf(out, name)
+        # columns without a median keep their NaN, like fillna in prediction.py
+        write_double(out, float(medians.get(name, float('nan'))))
+        out.write(struct.pack('>?', name in skewed))
+        write_double(out, scale[i])
+        write_double(out, minimum[i])
+
+
+def write_forest(out, forest, labels):
+    write_int(out, len(labels))
+    for label in labels:
+        write_utf(out, str(label))
+    write_int(out, len(forest.estimators_))
+    for estimator in forest.estimators_:
+        tree = estimator.tree_
+        left = tree.children_left.tolist()
+        right = tree.children_right.tolist()
+        feature = tree.feature.tolist()
+        threshold = tree.threshold.tolist()
+        values = tree.value.tolist()
+        count = len(left)
+        write_int(out, count)
+        for child in left:
+            write_int(out, child)
+        for child in right:
+            write_int(out, child)
+        for node in range(count):
+            write_int(out, feature[node] if left[node] != LEAF else 0)
+        for node in range(count):
+            write_double(out, threshold[node])
+        # scikit-learn normalizes the leaf values of each tree before averaging them
+        for node in range(count):
+            row = values[node][0]
+            total = sum(row)
+            if total == 0.0:
+                total = 1.0
+            for value in row:
+                write_double(out, value / total)
+
+
+def export(pickle_directory, output_file, load_pickle=None):
+    if load_pickle is None:
+        import joblib
+        load_pickle = joblib.load
+
+    def load(name):
+        return load_pickle(os.path.join(pickle_directory, name + '.pkl'))
+
+    feature_columns = list(load('feature_columns'))
+    medians = load('medians')
+    skewed_cols = list(load('skewed_cols'))
+    scaler = load('minmax_scaler')
+    rf_binary = load('rf_binary_model')
+    rf_multi = load('rf_multi_model')
+    le = load('label_encoder')
+
+    if rf_binary.classes_.tolist() != [0, 1]:
+        raise ValueError('Expected binary classes [0, 1], got %s' % rf_binary.classes_)
+    if getattr(scaler, 'clip', False):
+        raise ValueError('MinMaxScaler(clip=True) is not supported')
+    multi_labels = le.inverse_transform(rf_multi.classes_).tolist()
+
+    with open(output_file, 'wb') as out:
+        write_int(out, MAGIC)
+        write_int(out, VERSION)
+        write_features(out, feature_columns, medians, skewed_cols, scaler)
+        write_forest(out, rf_binary, ['Normal', 'Attack'])
+        write_forest(out, rf_multi, multi_labels)
+    print('Wrote %d features, %d + %d trees to %s' % (
+        len(feature_columns), len(rf_binary.estimators_), len(rf_multi.estimators_), output_file))
+
+
+if __name__ == '__main__':
+    directory = sys.argv[1] if len(sys.argv) > 1 else os.path.join(os.path.dirname(os.path.abspath(__file__)), 'pickles')
+    output = sys.argv[2] if len(sys.argv) > 2 else os.path.join(directory, 'flow_model.bin')
+    export(directory, output)
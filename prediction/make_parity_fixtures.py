@@ -0,0 +1,81 @@
+"""Write the expected outputs of the Java parity test with prediction.py.
+
+Usage: python make_parity_fixtures.py [pickle_directory] [fixture_directory]
+
+Reads flows.csv from the fixture directory (src/test/resources/cic/cs/unb/ca/prediction by default)
+and writes next to it:
+  flow_model.bin     the pickles, exported by export_model.py
+  preprocessed.csv   preprocess_new_data() of the flows, every value with 17 significant digits
+  labels.txt         predict() of the preprocessed flows, one label per line
+
+PredictionParityTest runs FlowPreprocessor and RandomForest on flows.csv and compares them with these
+files on every build, and fails when they are missing. Run this script again and commit its output
+whenever the pickles, prediction.py or flows.csv change.
+
+Without pandas and joblib, the outputs come from reference.py, which follows prediction.py with the
+standard library; check_parity.py compares the two wherever both can run.
+"""
+import csv
+import os
+import sys
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+PICKLES = sys.argv[1] if len(sys.argv) > 1 else os.path.join(HERE, 'pickles')
+FIXTURES = sys.argv[2] if len(sys.argv) > 2 else os.path.join(
+    HERE, os.pardir, 'src', 'test', 'resources', 'cic', 'cs', 'unb', 'ca', 'prediction')
+
+# prediction.py loads the pickles when it is imported
+os.environ['CFM_PICKLES'] = PICKLES
+
+from export_model import export
+
+
+def write_labels(labels):
+    with open(os.path.join(FIXTURES, 'labels.txt'), 'w') as out:
+        for label in labels:
+            out.write('%s\n' % label)
+    print('Wrote %d preprocessed rows and labels to %s' % (len(labels), FIXTURES))
+
+
+def with_prediction_py():
+    import pandas as pd
+    from prediction import predict, preprocess_new_data
+
+    export(PICKLES, os.path.join(FIXTURES, 'flow_model.bin'))
+
+    flows = pd.read_csv(os.path.join(FIXTURES, 'flows.csv'))
+    preprocessed = preprocess_new_data(flows)
+    preprocessed.to_csv(os.path.join(FIXTURES, 'preprocessed.csv'), index=False, float_format='%.17g')
+    write_labels(predict(preprocessed.values))
+
+
+def with_reference():
+    import reference
+
+    export(PICKLES, os.path.join(FIXTURES, 'flow_model.bin'), reference.load)
+
+    model = reference.Model(PICKLES)
+    with open(os.path.join(FIXTURES, 'flows.csv'), newline='') as f:
+        rows = list(csv.reader(f))
+    preprocessed = model.preprocess(rows[0], rows[1:])
+    # the layout of DataFrame.to_csv: NaN is an empty cell
+    with open(os.path.join(FIXTURES, 'preprocessed.csv'), 'w') as out:
+        out.write(','.join(model.feature_columns) + '\n')
+        for values in preprocessed:
+            out.write(','.join('' if value != value else '%.17g' % value for value in values) + '\n')
+    write_labels(model.predict(preprocessed))
+
+
+def main():
+    try:
+        import joblib
+        import pandas
+    except ImportError:
+        print('pandas or joblib is missing, writing the outputs of reference.py')
+        with_reference()
+        return
+    with_prediction_py()
+
+
+if __name__ == '__main__':
+    main()
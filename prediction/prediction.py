@@ -6,7 +6,7 @@ import numpy as np
 import joblib
 
 # Set the relative path to the 'pickles' directory
-pickle_directory = '/CICFlowMeter/prediction/pickles'
+pickle_directory = os.environ.get('CFM_PICKLES', '/CICFlowMeter/prediction/pickles')
 
 # Load the saved components
 feature_columns = joblib.load(os.path.join(pickle_directory, 'feature_columns.pkl'))
@@ -65,35 +65,36 @@ def predict(X_new):
     
     return predictions
 
-# Folder path to monitor
-folder = '/tmp/captures'
+if __name__ == '__main__':
+    # Folder path to monitor
+    folder = '/tmp/captures'
 
-# Ensure the folder exists
-if not os.path.exists(folder):
-    print(f"Folder {folder} does not exist. Creating it.")
-    os.makedirs(folder)
+    # Ensure the folder exists
+    if not os.path.exists(folder):
+        print(f"Folder {folder} does not exist. Creating it.")
+        os.makedirs(folder)
 
-print("Monitoring folder for CSV files... Press Ctrl+C to stop.")
+    print("Monitoring folder for CSV files... Press Ctrl+C to stop.")
 
-try:
-    while True:
-        time.sleep(10)  # Check every 10 seconds
-        try:
-            csv_files = [f for f in os.listdir(folder) if f.endswith('.csv')]
-            for csv in csv_files:
-                full_path = os.path.join(folder, csv)
-                df_new = pd.read_csv(full_path)
-                # Process all rows in the file
-                preprocessed = preprocess_new_data(df_new)
-                preds = predict(preprocessed.values)  # Convert to numpy if needed
-                for i, pred in enumerate(preds):
-                    print(f"Prediction for flow {i + 1} in {csv}: {pred}")
-                # Delete the file after processing
-                os.remove(full_path)
-                print(f"Processed and deleted: {csv}")
-        except Exception as e:
-            print(f"Error reading/processing CSV: {e}")
-except KeyboardInterrupt:
-    print("Stopping monitoring...")
+    try:
+        while True:
+            time.sleep(10)  # Check every 10 seconds
+            try:
+                csv_files = [f for f in os.listdir(folder) if f.endswith('.csv')]
+                for csv in csv_files:
+                    full_path = os.path.join(folder, csv)
+                    df_new = pd.read_csv(full_path)
+                    # Process all rows in the file
+                    preprocessed = preprocess_new_data(df_new)
+                    preds = predict(preprocessed.values)  # Convert to numpy if needed
+                    for i, pred in enumerate(preds):
+                        print(f"Prediction for flow {i + 1} in {csv}: {pred}")
+                    # Delete the file after processing
+                    os.remove(full_path)
+                    print(f"Processed and deleted: {csv}")
+            except Exception as e:
+                print(f"Error reading/processing CSV: {e}")
+    except KeyboardInterrupt:
+        print("Stopping monitoring...")
 
-print("Monitoring stopped. Final predictions processed.")
+    print("Monitoring stopped. Final predictions processed.")
@@ -0,0 +1,298 @@
+"""preprocess_new_data() and predict() of prediction.py, with the Python standard library only.
+
+Reads the joblib pickles without numpy, pandas or scikit-learn, so the parity fixtures of the Java
+classifier can be written where those are not installed (see make_parity_fixtures.py). It follows
+the libraries step by step:
+  - cells are parsed like pandas.read_csv: empty and NaN cells are missing, Infinity is infinite
+  - infinite and missing values take the training median, then values are clipped to +-1e100
+  - skewed columns take log1p of the value clipped at 0, then MinMaxScaler computes x * scale_ + min_
+  - predict() casts the features to float32 and fails on values float32 cannot hold
+  - each tree compares the float32 feature with its threshold (x <= threshold goes left), normalizes
+    the class counts of its leaf, and the forest picks the first class of the highest mean probability
+prediction.py stays the reference; make_parity_fixtures.py only uses this module when pandas or
+joblib cannot be imported.
+"""
+import io
+import math
+import os
+import pickle
+import struct
+
+_FORMATS = {'f': {4: 'f', 8: 'd'}, 'i': {1: 'b', 2: 'h', 4: 'i', 8: 'q'}, 'u': {1: 'B', 2: 'H', 4: 'I', 8: 'Q'},
+            'b': {1: '?'}}
+# strings pandas.read_csv reads as NaN by default
+_NA_VALUES = {'', '#N/A', '#N/A N/A', '#NA', '-1.#IND', '-1.#QNAN', '-NaN', '-nan', '1.#IND', '1.#QNAN', '<NA>',
+              'N/A', 'NA', 'NULL', 'NaN', 'None', 'n/a', 'nan', 'null'}
+# prediction.py replaces these with NaN
+_MISSING = {'-', ' '}
+_LEAF = -1
+
+
+class _DType(object):
+    """numpy.dtype, enough to unpack the arrays of the pickles."""
+
+    def __init__(self, spec, align=False, copy=True):
+        self.kind = spec[0]
+        self.itemsize = int(spec[1:]) if len(spec) > 1 else 0
+        self.byteorder = '<'
+        self.names = None
+        self.fields = None
+
+    def __setstate__(self, state):
+        # (version, byte order, sub-array, field names, fields, item size, alignment, flags)
+        if state[1] in '<>':
+            self.byteorder = state[1]
+        if state[3] is not None:
+            self.names = state[3]
+            self.fields = state[4]
+        if state[5] > 0:
+            self.itemsize = state[5]
+
+    def unpack(self, data, count):
+        if self.names is not None:
+            rows = []
+            for r in range(count):
+                base = r * self.itemsize
+                row = {}
+                for name in self.names:
+                    dtype, offset = self.fields[name][0], self.fields[name][1]
+                    row[name] = dtype.unpack(data[base + offset:base + offset + dtype.itemsize], 1)[0]
+                rows.append(row)
+            return rows
+        if self.kind == 'U':
+            return [data[i * self.itemsize:(i + 1) * self.itemsize].decode('utf-32-le').rstrip('\x00')
+                    for i in range(count)]
+        code = _FORMATS[self.kind][self.itemsize]
+        return list(struct.unpack('%s%d%s' % (self.byteorder, count, code), data[:count * self.itemsize]))
+
+
+class _Array(object):
+    """numpy.ndarray as its shape and a flat list of values in C order."""
+
+    def __init__(self, shape=(0,), dtype=None, values=None):
+        self.shape = tuple(shape)
+        self.dtype = dtype
+        self.values = values if values is not None else []
+
+    def __setstate__(self, state):
+        # (version, shape, dtype, is Fortran order, data)
+        self.shape, self.dtype, data = tuple(state[1]), state[2], state[4]
+        self.values = list(data) if isinstance(data, list) else self.dtype.unpack(data, _size(self.shape))
+
+    def __len__(self):
+        return self.shape[0]
+
+    def __getitem__(self, index):
+        return self.values[index]
+
+    def tolist(self):
+        values = self.values
+        for n in reversed(self.shape[1:]):
+            values = [values[i:i + n] for i in range(0, len(values), n)]
+        return values
+
+
+def _size(shape):
+    count = 1
+    for n in shape:
+        count *= n
+    return count
+
+
+def _reconstruct(subtype, shape, typecode):
+    return _Array()
+
+
+def _scalar(dtype, data):
+    return dtype.unpack(data, 1)[0]
+
+
+class _ArrayWrapper(object):
+    """joblib.numpy_pickle.NumpyArrayWrapper, followed in the file by the data of the array."""
+
+    def read(self, unpickler):
+        if self.dtype.kind == 'O':
+            return _Unpickler(unpickler.file).load()
+        # one byte with the length of the padding that aligns the data
+        padding = unpickler.read(1)[0]
+        if padding:
+            unpickler.read(padding)
+        count = _size(self.shape)
+        data = unpickler.read(count * self.dtype.itemsize)
+        return _Array(self.shape, self.dtype, self.dtype.unpack(data, count))
+
+
+class _Estimator(object):
+    """Any scikit-learn object, holding the attributes it was pickled with."""
+
+    def __init__(self, *args):
+        self.args = args
+
+    def __setstate__(self, state):
+        self.__dict__.update(state)
+
+
+class _Tree(_Estimator):
+    """sklearn.tree._tree.Tree, with the node arrays export_model.py reads."""
+
+    def _column(self, name):
+        return _Array((len(self.nodes.values),), None, [node[name] for node in self.nodes.values])
+
+    @property
+    def children_left(self):
+        return self._column('left_child')
+
+    @property
+    def children_right(self):
+        return self._column('right_child')
+
+    @property
+    def feature(self):
+        return self._column('feature')
+
+    @property
+    def threshold(self):
+        return self._column('threshold')
+
+    @property
+    def value(self):
+        return self.values
+
+
+class _LabelEncoder(_Estimator):
+    def inverse_transform(self, codes):
+        return _Array((len(codes),), None, [self.classes_[code] for code in codes.values])
+
+
+class _Unpickler(pickle._Unpickler):
+    dispatch = pickle._Unpickler.dispatch.copy()
+
+    def __init__(self, file):
+        pickle._Unpickler.__init__(self, file)
+        self.file = file
+
+    def find_class(self, module, name):
+        if module.split('.')[0] == 'numpy':
+            if name == 'dtype':
+                return _DType
+            if name == 'ndarray':
+                return _Array
+            if name == '_reconstruct':
+                return _reconstruct
+            if name == 'scalar':
+                return _scalar
+        if module == 'joblib.numpy_pickle' and name == 'NumpyArrayWrapper':
+            return _ArrayWrapper
+        if module.split('.')[0] == 'sklearn':
+            if name == 'Tree':
+                return _Tree
+            if name == 'LabelEncoder':
+                return _LabelEncoder
+            return type(name, (_Estimator,), {})
+        return pickle._Unpickler.find_class(self, module, name)
+
+    def load_build(self):
+        pickle._Unpickler.load_build(self)
+        if isinstance(self.stack[-1], _ArrayWrapper):
+            self.stack[-1] = self.stack[-1].read(self)
+
+    dispatch[pickle.BUILD[0]] = load_build
+
+
+def load(path):
+    """Reads a pickle written by joblib.dump, like joblib.load."""
+    with open(path, 'rb') as f:
+        return _Unpickler(io.BufferedReader(f)).load()
+
+
+class Model(object):
+    def __init__(self, pickle_directory):
+        def read(name):
+            return load(os.path.join(pickle_directory, name + '.pkl'))
+
+        self.feature_columns = list(read('feature_columns'))
+        self.medians = read('medians')
+        self.skewed_cols = set(read('skewed_cols'))
+        scaler = read('minmax_scaler')
+        self.scale = scaler.scale_.values
+        self.minimum = scaler.min_.values
+        self.rf_binary = read('rf_binary_model')
+        self.rf_multi = read('rf_multi_model')
+        self.le = read('label_encoder')
+
+    def preprocess(self, header, rows):
+        """preprocess_new_data() of the rows of a CSV file, as lists of floats."""
+        positions = []
+        for name in self.feature_columns:
+            if name not in header:
+                raise ValueError('Missing required column in new data: %s' % name)
+            positions.append(header.index(name))
+        result = []
+        for row in rows:
+            values = []
+            for f, name in enumerate(self.feature_columns):
+                x = _parse(row[positions[f]])
+                if math.isinf(x) or math.isnan(x):
+                    x = self.medians.get(name, float('nan'))
+                if not math.isnan(x):
+                    x = min(max(x, -1e100), 1e100)
+                if name in self.skewed_cols:
+                    x = math.log1p(x if math.isnan(x) else max(x, 0.0))
+                values.append(x * self.scale[f] + self.minimum[f])
+            result.append(values)
+        return result
+
+    def predict(self, features):
+        """predict() of preprocessed rows."""
+        labels = []
+        for values in features:
+            x = [_float32(v) for v in values]
+            if self.rf_binary.classes_[_forest_class(self.rf_binary, x)] != 1:
+                labels.append('Normal')
+            else:
+                code = self.rf_multi.classes_[_forest_class(self.rf_multi, x)]
+                labels.append(self.le.classes_[code])
+        return labels
+
+
+def _parse(cell):
+    if cell in _NA_VALUES or cell in _MISSING:
+        return float('nan')
+    lower = cell.strip().lower()
+    if lower in ('inf', '+inf', 'infinity', '+infinity'):
+        return float('inf')
+    if lower in ('-inf', '-infinity'):
+        return float('-inf')
+    return float(cell)
+
+
+# scikit-learn casts the features to float32 and refuses values that overflow it
+def _float32(x):
+    try:
+        return struct.unpack('f', struct.pack('f', x))[0]
+    except OverflowError:
+        raise ValueError("Input contains infinity or a value too large for dtype('float32').")
+
+
+def _forest_class(forest, x):
+    classes = len(forest.classes_)
+    total = [0.0] * classes
+    for estimator in forest.estimators_:
+        tree = estimator.tree_
+        nodes = tree.nodes.values
+        node = 0
+        while nodes[node]['left_child'] != _LEAF:
+            value = x[nodes[node]['feature']]
+            if math.isnan(value):
+                go_left = nodes[node].get('missing_go_to_left', 0)
+            else:
+                go_left = value <= nodes[node]['threshold']
+            node = nodes[node]['left_child'] if go_left else nodes[node]['right_child']
+        counts = tree.values.values[node * classes:(node + 1) * classes]
+        normalizer = sum(counts)
+        if normalizer == 0.0:
+            normalizer = 1.0
+        for c in range(classes):
+            total[c] += counts[c] / normalizer
+    mean = [t / len(forest.estimators_) for t in total]
+    return mean.index(max(mean))
@@ -0,0 +1,41 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packets per second through BasicFlow.addPacket for a single long TCP transfer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BasicFlowBenchmark {
+
+    static final int PACKETS = 1 << 14;
+
+    private BasicPacketInfo[] packets;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        // one of the elephant connections, in both directions
+        packets = Arrays.stream(SyntheticTraffic.generate(SyntheticTraffic.Scenario.ELEPHANT_FLOWS, PACKETS * 8, 7L))
+                .filter(p -> p.getSrcPort() == 40000 || p.getDstPort() == 40000)
+                .limit(PACKETS + 1)
+                .toArray(BasicPacketInfo[]::new);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public BasicFlow addPacket() {
+        BasicFlow flow = new BasicFlow(true, packets[0], 5000000L);
+        for (int i = 1; i < packets.length; i++) {
+            flow.addPacket(packets[i]);
+        }
+        return flow;
+    }
+}
@@ -0,0 +1,60 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finished flows per second turned into CSV rows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FeatureDumpBenchmark {
+
+    static final int FLOWS = 1 << 10;
+
+    private BasicFlow[] flows;
+    private final FeatureRowWriter row = new FeatureRowWriter();
+
+    @Setup(Level.Trial)
+    public void generate() {
+        List<BasicFlow> finished = new ArrayList<>();
+        FlowGenerator generator = new FlowGenerator(true, 120000000L, 5000000L);
+        generator.addFlowListener(finished::add);
+        long last = 0L;
+        for (BasicPacketInfo packet : SyntheticTraffic.generate(SyntheticTraffic.Scenario.SHORT_FLOWS, FLOWS * 12, 42L)) {
+            generator.addPacket(packet);
+            last = packet.getTimeStamp();
+        }
+        // closed connections only leave the flow table once they expire
+        generator.advanceTime(last + 240000000L);
+        if (finished.size() < FLOWS) {
+            throw new IllegalStateException("Only " + finished.size() + " flows finished");
+        }
+        flows = finished.subList(0, FLOWS).toArray(new BasicFlow[0]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FLOWS)
+    public void dumpFlowBasedFeaturesEx(Blackhole blackhole) {
+        for (BasicFlow flow : flows) {
+            blackhole.consume(flow.dumpFlowBasedFeaturesEx());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FLOWS)
+    public void writeFeatures(Blackhole blackhole) {
+        for (BasicFlow flow : flows) {
+            flow.writeFeatures(row.reset());
+            blackhole.consume(row.length());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packets per second through FlowGenerator.addPacket, from an empty flow table to the end of the stream.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FlowGeneratorBenchmark {
+
+    static final int PACKETS = 1 << 16;
+
+    @Param({"SHORT_FLOWS", "ELEPHANT_FLOWS", "SYN_FLOOD", "UDP_SCAN"})
+    public SyntheticTraffic.Scenario scenario;
+
+    private BasicPacketInfo[] packets;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        packets = SyntheticTraffic.generate(scenario, PACKETS, 42L);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public FlowGenerator addPacket(Blackhole blackhole) {
+        FlowGenerator generator = new FlowGenerator(true, 120000000L, 5000000L);
+        generator.addFlowListener(blackhole::consume);
+        for (BasicPacketInfo packet : packets) {
+            generator.addPacket(packet);
+        }
+        return generator;
+    }
+}
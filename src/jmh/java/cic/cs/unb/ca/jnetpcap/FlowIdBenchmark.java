@@ -0,0 +1,43 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flow id strings built per packet by BasicPacketInfo.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FlowIdBenchmark {
+
+    static final int PACKETS = 1 << 12;
+
+    private BasicPacketInfo[] packets;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        packets = SyntheticTraffic.generate(SyntheticTraffic.Scenario.SHORT_FLOWS, PACKETS, 42L);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void fwdFlowId(Blackhole blackhole) {
+        for (BasicPacketInfo packet : packets) {
+            blackhole.consume(packet.fwdFlowId());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void generateFlowId(Blackhole blackhole) {
+        for (BasicPacketInfo packet : packets) {
+            blackhole.consume(packet.generateFlowId());
+        }
+    }
+}
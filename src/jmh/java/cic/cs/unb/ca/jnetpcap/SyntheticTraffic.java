@@ -0,0 +1,169 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic packet streams for the benchmarks, ordered by timestamp like a capture file.
+ */
+public final class SyntheticTraffic {
+
+    public enum Scenario {
+        /** Many concurrent TCP connections of ten packets each: handshake, five data packets, teardown */
+        SHORT_FLOWS,
+        /** A handful of long TCP bulk transfers with full-size segments */
+        ELEPHANT_FLOWS,
+        /** SYN packets from spoofed sources to one server port, every one a new flow */
+        SYN_FLOOD,
+        /** Single UDP probes from one host over the ports of a few targets */
+        UDP_SCAN
+    }
+
+    private static final long START = 1500000000000000L;
+    private static final int FIN = 0x01, SYN = 0x02, RST = 0x04, PSH = 0x08, ACK = 0x10;
+
+    private final IdGenerator ids = new IdGenerator();
+    private final Random random;
+    private final List<BasicPacketInfo> packets;
+    private long now = START;
+
+    private SyntheticTraffic(long seed, int count) {
+        random = new Random(seed);
+        packets = new ArrayList<>(count);
+    }
+
+    public static BasicPacketInfo[] generate(Scenario scenario, int count, long seed) {
+        SyntheticTraffic traffic = new SyntheticTraffic(seed, count);
+        switch (scenario) {
+            case SHORT_FLOWS:
+                traffic.shortFlows(count);
+                break;
+            case ELEPHANT_FLOWS:
+                traffic.elephantFlows(count);
+                break;
+            case SYN_FLOOD:
+                traffic.synFlood(count);
+                break;
+            case UDP_SCAN:
+                traffic.udpScan(count);
+                break;
+        }
+        return traffic.packets.toArray(new BasicPacketInfo[0]);
+    }
+
+    private void shortFlows(int count) {
+        final int concurrent = 256;
+        final int perFlow = 10;
+        byte[][] clients = new byte[concurrent][];
+        int[] ports = new int[concurrent];
+        int[] step = new int[concurrent];
+        for (int i = 0; i < concurrent; i++) {
+            clients[i] = ipv4(10, 1, i >> 8, i);
+            ports[i] = 1024 + random.nextInt(60000);
+        }
+        byte[] server = ipv4(192, 168, 0, 10);
+        while (packets.size() < count) {
+            int c = random.nextInt(concurrent);
+            tick(20 + random.nextInt(200));
+            byte[] client = clients[c];
+            int port = ports[c];
+            switch (step[c]) {
+                case 0: tcp(client, server, port, 443, SYN, 0); break;
+                case 1: tcp(server, client, 443, port, SYN | ACK, 0); break;
+                case 2: tcp(client, server, port, 443, ACK, 0); break;
+                case 3: case 5: case 7: tcp(client, server, port, 443, PSH | ACK, 100 + random.nextInt(500)); break;
+                case 4: case 6: tcp(server, client, 443, port, PSH | ACK, 200 + random.nextInt(1200)); break;
+                case 8: tcp(client, server, port, 443, FIN | ACK, 0); break;
+                default: tcp(server, client, 443, port, FIN | ACK, 0); break;
+            }
+            if (++step[c] == perFlow) {
+                step[c] = 0;
+                ports[c] = 1024 + random.nextInt(60000);
+            }
+        }
+    }
+
+    private void elephantFlows(int count) {
+        final int flows = 8;
+        byte[] server = ipv4(192, 168, 0, 20);
+        for (int i = 0; i < flows; i++) {
+            tick(50);
+            tcp(ipv4(10, 2, 0, i), server, 40000 + i, 80, SYN, 0);
+        }
+        while (packets.size() < count) {
+            int f = random.nextInt(flows);
+            tick(5 + random.nextInt(10));
+            if (random.nextInt(4) == 0) {
+                tcp(ipv4(10, 2, 0, f), server, 40000 + f, 80, ACK, 0);
+            } else {
+                tcp(server, ipv4(10, 2, 0, f), 80, 40000 + f, ACK, 1448);
+            }
+        }
+    }
+
+    private void synFlood(int count) {
+        byte[] victim = ipv4(192, 168, 0, 30);
+        while (packets.size() < count) {
+            tick(1 + random.nextInt(3));
+            int spoofed = random.nextInt();
+            byte[] source = ipv4(spoofed >>> 24, spoofed >>> 16, spoofed >>> 8, spoofed);
+            if (random.nextInt(16) == 0) {
+                tcp(victim, source, 80, 1024 + random.nextInt(60000), RST | ACK, 0);
+            } else {
+                tcp(source, victim, 1024 + random.nextInt(60000), 80, SYN, 0);
+            }
+        }
+    }
+
+    private void udpScan(int count) {
+        byte[] scanner = ipv4(10, 3, 0, 1);
+        int target = 0;
+        int port = 1;
+        while (packets.size() < count) {
+            tick(10 + random.nextInt(20));
+            BasicPacketInfo packet = packet(scanner, ipv4(192, 168, 1, target), 50000 + random.nextInt(1000), port,
+                    ProtocolEnum.UDP);
+            packet.setPayloadBytes(random.nextInt(64));
+            packet.setHeaderBytes(8);
+            packets.add(packet);
+            if (++port > 65535) {
+                port = 1;
+                target++;
+            }
+        }
+    }
+
+    private void tcp(byte[] src, byte[] dst, int srcPort, int dstPort, int flags, int payload) {
+        BasicPacketInfo packet = packet(src, dst, srcPort, dstPort, ProtocolEnum.TCP);
+        packet.setFlagFIN((flags & FIN) != 0);
+        packet.setFlagSYN((flags & SYN) != 0);
+        packet.setFlagRST((flags & RST) != 0);
+        packet.setFlagPSH((flags & PSH) != 0);
+        packet.setFlagACK((flags & ACK) != 0);
+        packet.setTCPWindow(65535);
+        packet.setPayloadBytes(payload);
+        packet.setHeaderBytes(20);
+        packet.setTcpSequence(random.nextInt() & 0xffffffffL, random.nextInt() & 0xffffffffL);
+        packets.add(packet);
+    }
+
+    private BasicPacketInfo packet(byte[] src, byte[] dst, int srcPort, int dstPort, ProtocolEnum protocol) {
+        BasicPacketInfo packet = new BasicPacketInfo(ids);
+        packet.setSrc(src);
+        packet.setDst(dst);
+        packet.setSrcPort(srcPort);
+        packet.setDstPort(dstPort);
+        packet.setProtocol(protocol);
+        packet.setTimeStamp(now);
+        return packet;
+    }
+
+    private void tick(int micros) {
+        now += micros;
+    }
+
+    private static byte[] ipv4(int a, int b, int c, int d) {
+        return new byte[]{(byte) a, (byte) b, (byte) c, (byte) d};
+    }
+}
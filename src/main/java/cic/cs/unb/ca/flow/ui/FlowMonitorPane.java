@@ -7,6 +7,7 @@ import cic.cs.unb.ca.guava.GuavaMgr;
 import cic.cs.unb.ca.jnetpcap.BasicFlow;
 import cic.cs.unb.ca.jnetpcap.FlowFeature;
 import cic.cs.unb.ca.jnetpcap.PcapIfWrapper;
+import cic.cs.unb.ca.jnetpcap.worker.CaptureMetrics;
 import cic.cs.unb.ca.jnetpcap.worker.LoadPcapInterfaceWorker;
 import cic.cs.unb.ca.jnetpcap.worker.TrafficFlowWorker;
 import org.apache.commons.io.FilenameUtils;
@@ -41,6 +42,7 @@ public class FlowMonitorPane extends JPanel {
     private JList<PcapIfWrapper> list;
     private DefaultListModel<PcapIfWrapper> listModel;
     private JLabel lblStatus;
+    private JLabel lblMetrics;
     private JLabel lblFlowCnt;
 
     private TrafficFlowWorker mWorker;
@@ -186,11 +188,14 @@ public class FlowMonitorPane extends JPanel {
         pane.setLayout(new BoxLayout(pane, BoxLayout.X_AXIS));
         lblStatus = new JLabel("Get ready");
         lblStatus.setForeground(SystemColor.desktop);
+        lblMetrics = new JLabel();
         lblFlowCnt = new JLabel("0");
 
         pane.add(Box.createHorizontalStrut(5));
         pane.add(lblStatus);
         pane.add(Box.createHorizontalGlue());
+        pane.add(lblMetrics);
+        pane.add(Box.createHorizontalStrut(15));
         pane.add(lblFlowCnt);
         pane.add(Box.createHorizontalStrut(5));
 
@@ -311,6 +316,8 @@ public class FlowMonitorPane extends JPanel {
                 lblStatus.validate();
             }else if (TrafficFlowWorker.PROPERTY_FLOW.equalsIgnoreCase(event.getPropertyName())) {
                 insertFlow((BasicFlow) event.getNewValue());
+            }else if (TrafficFlowWorker.PROPERTY_METRICS.equals(event.getPropertyName())) {
+                showMetrics((CaptureMetrics.Snapshot) event.getNewValue());
             }else if ("state".equals(event.getPropertyName())) {
                 switch (task.getState()) {
                     case STARTED:
@@ -363,6 +370,18 @@ public class FlowMonitorPane extends JPanel {
         }
     }
 
+    private void showMetrics(CaptureMetrics.Snapshot snapshot) {
+        StringBuilder text = new StringBuilder();
+        for (CaptureMetrics.DeviceSnapshot device : snapshot.getDevices()) {
+            text.append(String.format("%d pkt/s  %.2f Mbit/s  ", device.getPacketsPerSecond(),
+                    device.getBytesPerSecond() * 8 / 1e6));
+        }
+        text.append(String.format("%d flows/s  %d active  dropped %d", snapshot.getFlowsPerSecond(),
+                snapshot.getGauges().getOrDefault("active_flows", 0L), snapshot.getDropped()));
+        lblMetrics.setText(text.toString());
+        lblMetrics.setForeground(snapshot.getDropped() > 0 ? Color.RED : SystemColor.desktop);
+    }
+
     private void insertFlow(BasicFlow flow) {
         List<String> flowStringList = new ArrayList<>();
         List<String[]> flowDataList = new ArrayList<>();
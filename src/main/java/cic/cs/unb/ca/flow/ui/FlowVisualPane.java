@@ -1,5 +1,6 @@
 package cic.cs.unb.ca.flow.ui;
 
+import cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter;
 import cic.cs.unb.ca.weka.WekaFactory;
 import cic.cs.unb.ca.weka.WekaXMeans;
 import com.google.common.collect.ArrayListMultimap;
@@ -43,7 +44,7 @@ public class FlowVisualPane extends JDesktopPane implements CsvPickerPane.CsvSel
         //setBorder(Constants.LINEBORDER);
 
         pickerPane = new CsvPickerPane(this);
-        pickerPane.setFilter("Flow");
+        pickerPane.setFilter("Flow File (*.csv, *.cfm)", new String[]{"csv", ColumnarFlowWriter.EXTENSION}, "Flow");
         pickerPane.setSelectListener(this);
 
         flowChartPane = new FlowChartPane();
@@ -259,7 +260,7 @@ public class FlowVisualPane extends JDesktopPane implements CsvPickerPane.CsvSel
             }
 
 
-            WekaXMeans xMeans = new WekaXMeans(WekaFactory.loadFlowCsv(csv));
+            WekaXMeans xMeans = new WekaXMeans(WekaFactory.loadFlowFile(csv));
 
             FlowFileInfo flowFileInfo = new FlowFileInfo(csv, xMeans);
 
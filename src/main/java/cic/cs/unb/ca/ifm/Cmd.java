@@ -2,19 +2,34 @@ package cic.cs.unb.ca.ifm;
 
 import cic.cs.unb.ca.flow.FlowMgr;
 import cic.cs.unb.ca.jnetpcap.*;
+import cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowReader;
+import cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter;
+import cic.cs.unb.ca.jnetpcap.worker.CaptureMetrics;
+import cic.cs.unb.ca.jnetpcap.worker.CsvFlowSink;
 import cic.cs.unb.ca.jnetpcap.worker.FlowGenListener;
+import cic.cs.unb.ca.jnetpcap.worker.FlowStreamServer;
+import cic.cs.unb.ca.jnetpcap.worker.MetricsHttpServer;
+import cic.cs.unb.ca.jnetpcap.worker.PcapBatch;
+import cic.cs.unb.ca.jnetpcap.worker.RollingCsvFlowSink;
+import cic.cs.unb.ca.prediction.CsvFlowClassifier;
+import cic.cs.unb.ca.prediction.FlowClassifier;
 import org.apache.commons.io.FilenameUtils;
 import org.jnetpcap.Pcap;
 import org.jnetpcap.PcapIf;
 import org.jnetpcap.PcapClosedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import cic.cs.unb.ca.jnetpcap.worker.InsertCsvRow;
 import swing.common.SwingUtils;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.Executors;
@@ -26,6 +41,7 @@ import static cic.cs.unb.ca.Sys.FILE_SEP;
 public class Cmd {
 
     public static final Logger logger = LoggerFactory.getLogger(Cmd.class);
+    private static final int PACKET_BATCH = 256;
     private static final String DividingLine = "-------------------------------------------------------------------------------";
 
     public static void main(String[] args) {
@@ -35,6 +51,12 @@ public class Cmd {
                 return;
             }
             startLiveCapture(args[1]);
+        } else if (args.length > 0 && args[0].equalsIgnoreCase("-predict")) {
+            if (args.length < 3) {
+                logger.info("Please specify a model and the CSV files to score, e.g., -predict flow_model.bin /tmp/captures");
+                return;
+            }
+            predictCsv(args[1], args[2], args.length > 3 ? args[3] : null);
         } else {
             startOfflineProcessing(args);
         }
@@ -53,7 +75,9 @@ public class Cmd {
 
         long flowTimeout = 120000000L;
         long activityTimeout = 5000000L;
-        final FlowGenerator flowGen = new FlowGenerator(true, flowTimeout, activityTimeout);
+        // every capture thread feeds the shards directly, no lock is shared between them
+        final ShardedFlowGenerator flowGen = new ShardedFlowGenerator(ShardedFlowGenerator.defaultShardCount(),
+                true, flowTimeout, activityTimeout);
 
         List<PcapIf> alldevs = new ArrayList<>();
         StringBuilder errbuf = new StringBuilder();
@@ -68,25 +92,89 @@ public class Cmd {
             logger.info("  {}. {}", i + 1, alldevs.get(i).getName());
         }
 
-        // Schedule task to dump flows every 60 seconds
+        final CaptureMetrics metrics = new CaptureMetrics();
+        metrics.addGauge("active_flows", flowGen::getActiveFlowCount);
+        metrics.addGauge("queued_packets", flowGen::getQueueDepth);
+        metrics.addGauge("peak_queued_packets", flowGen::getPeakQueueDepth);
+        metrics.addGauge("shard_dropped_packets", flowGen::getDroppedPackets);
+        metrics.addGauge("evicted_flows", flowGen::getEvictedFlowCount);
+        metrics.addGauge("refused_flows", flowGen::getRefusedFlowCount);
+
+        // With -Dcfm.model, flows are also scored by the attack classifier the moment they finish
+        final FlowClassifier classifier = FlowClassifier.fromProperty((flow, label, attack) -> {
+            if (attack) {
+                logger.warn("Flow {} predicted {}", flow.getFlowId(), label);
+            }
+        });
+        if (classifier != null) {
+            metrics.addGauge("predicted_attacks", classifier::getAttackCount);
+        }
+
+        // With -Dcfm.streamPort, they are also pushed to local socket clients as they finish
+        final FlowStreamServer stream = FlowStreamServer.startFromProperty(FlowFeature.getHeader());
+        if (stream != null) {
+            metrics.addGauge("stream_clients", stream::getClientCount);
+            metrics.addGauge("stream_dropped_flows", stream::getDroppedRows);
+        }
+
+        // Finished flows are streamed out as they expire, into a new file every 60 seconds
+        final RollingCsvFlowSink sink = new RollingCsvFlowSink(outputDir, "capture-", FlowFeature.getHeader());
+        flowGen.addFlowListener(flow -> {
+            metrics.onFlow();
+            if (classifier != null) {
+                classifier.onFlowGenerated(flow);
+            }
+            if (stream != null) {
+                stream.onFlowGenerated(flow);
+            }
+            sink.onFlowGenerated(flow);
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (stream != null) {
+                stream.close();
+            }
+            sink.close();
+        }, "capture-sink-close"));
+
         ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        // Drive flow expiration by the wall clock, so idle flows are finished even when no packets arrive
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                flowGen.advanceTime(System.currentTimeMillis() * 1000L);
+            } catch (Exception e) {
+                logger.error("Error expiring flows", e);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        scheduler.scheduleAtFixedRate(sink::rotate, 60, 60, TimeUnit.SECONDS);
+
+        // Open flows are left alone; long connections can optionally be reported while they last.
+        // Writing a snapshot waits for every shard, so it gets its own thread and never holds up expiration.
+        int snapshotInterval = Integer.getInteger("cfm.snapshotInterval", 0);
+        if (snapshotInterval > 0) {
+            ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor();
+            snapshots.scheduleAtFixedRate(() -> {
+                String filename = "snapshot-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".csv";
+                try (CsvFlowSink snapshot = new CsvFlowSink(outputDir, filename, FlowFeature.getHeader())) {
+                    long rows = flowGen.snapshotCurrentFlows(snapshot::write);
+                    logger.info("Wrote {} open flows to {}", rows, outputDir + FILE_SEP + filename);
+                } catch (IOException e) {
+                    logger.error("Cannot write {}", filename, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+
+        int metricsInterval = CaptureMetrics.defaultInterval();
         scheduler.scheduleAtFixedRate(() -> {
             try {
-                String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
-                String filename = outputDir + FILE_SEP + "capture-" + timestamp + ".csv";
-                logger.info("Dumping flows to {}...", filename);
-                flowGen.dumpLabeledCurrentFlow(filename, FlowFeature.getHeader());
-                // Do NOT clear flows here, as dumpLabeledCurrentFlow appends.
-                // A better approach would be to get flows, write them, then clear.
-                // For now, let's stick to the plan of clearing after dump.
-                // After re-reading dumpLabeledCurrentFlow, it opens in append mode if file exists,
-                // but we create a new file each time. So clearing is correct.
-                flowGen.clearCurrentFlows();
-                logger.info("Flows dumped successfully.");
+                logger.info("Capture: {}", metrics.sample());
             } catch (Exception e) {
-                logger.error("Error dumping flows", e);
+                logger.error("Error sampling capture metrics", e);
             }
-        }, 60, 60, TimeUnit.SECONDS);
+        }, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        MetricsHttpServer.startFromProperty(metrics);
 
         for (PcapIf device : alldevs) {
             Thread captureThread = new Thread(() -> {
@@ -102,21 +190,23 @@ public class Cmd {
                     }
 
                     logger.info("Capturing on device: {}", device.getName());
+                    CaptureMetrics.Device deviceMetrics = metrics.register(device.getName(), pcap);
                     PacketReader packetReader = new PacketReader(pcap);
+                    packetReader.setMetrics(deviceMetrics);
 
+                    // the shards copy what they queue, so one record serves every packet
+                    BasicPacketInfo basicPacket = new BasicPacketInfo();
                     while (true) {
                         try {
-                            BasicPacketInfo basicPacket = packetReader.nextPacket();
-                            if (basicPacket != null) {
-                                synchronized (flowGen) {
-                                    flowGen.addPacket(basicPacket);
-                                }
+                            if (packetReader.nextPacket(basicPacket)) {
+                                // never wait on a saturated shard, the kernel would drop packets instead
+                                flowGen.offerPacket(basicPacket);
                             }
                         } catch (PcapClosedException e) {
                             break; 
                         }
                     }
-                    pcap.close();
+                    deviceMetrics.close();
                 } catch (Exception e) {
                     logger.error("Exception in capture thread for device " + device.getName(), e);
                 }
@@ -125,6 +215,43 @@ public class Cmd {
         }
     }
 
+    /**
+     * Scores flow CSV or columnar files with a model exported by prediction/export_model.py, like prediction.py.
+     * @param featuresPath if not null, the preprocessed features of every flow are written there
+     */
+    private static void predictCsv(String modelPath, String csvPath, String featuresPath) {
+        FlowClassifier classifier;
+        try {
+            classifier = FlowClassifier.load(new File(modelPath), null);
+        } catch (IOException e) {
+            logger.error("Cannot load flow model {}", modelPath, e);
+            return;
+        }
+        File in = new File(csvPath);
+        File[] csvFiles = in.isDirectory() ? in.listFiles(file -> file.isFile() && (file.getName().endsWith(".csv")
+                || file.getName().endsWith("." + ColumnarFlowWriter.EXTENSION)))
+                : new File[]{in};
+        if (csvFiles == null || csvFiles.length == 0) {
+            logger.info("No CSV file to score in {}", csvPath);
+            return;
+        }
+        Arrays.sort(csvFiles);
+
+        CsvFlowClassifier csv = new CsvFlowClassifier(classifier, CsvFlowClassifier.BATCH_SIZE);
+        try (Writer features = featuresPath == null ? null : new BufferedWriter(new FileWriter(featuresPath))) {
+            for (File file : csvFiles) {
+                String name = file.getName();
+                long rows = csv.classify(file,
+                        (row, label) -> System.out.println(String.format("Prediction for flow %d in %s: %s", row, name, label)),
+                        features);
+                logger.info("Scored {} flows of {}", rows, file.getPath());
+            }
+        } catch (IOException e) {
+            logger.error("Cannot score {}", csvPath, e);
+        }
+        System.out.println("Completed! " + classifier.getCounts());
+    }
+
     private static void startOfflineProcessing(String[] args) {
         long flowTimeout = 120000000L;
         long activityTimeout = 5000000L;
@@ -170,7 +297,8 @@ public class Cmd {
                 logger.info("Please select a pcap file!");
             } else {
                 logger.info("CICFlowMeter received 1 pcap file");
-                readPcapFile(in.getPath(), outPath, flowTimeout, activityTimeout);
+                readPcapFile(in.getPath(), outPath, flowTimeout, activityTimeout,
+                        ShardedFlowGenerator.defaultShardCount(), true);
             }
         }
     }
@@ -179,24 +307,37 @@ public class Cmd {
         if (inputPath == null || outPath == null) {
             return;
         }
-        File[] pcapFiles = inputPath.listFiles(SwingUtils::isPcapFile);
+        File[] pcapFiles = inputPath.listFiles(file -> !file.isDirectory() && SwingUtils.isPcapFile(file));
         int file_cnt = pcapFiles.length;
         System.out.println(String.format("CICFlowMeter found :%d pcap files", file_cnt));
-        for (int i = 0; i < file_cnt; i++) {
-            File file = pcapFiles[i];
-            if (file.isDirectory()) {
-                continue;
-            }
-            int cur = i + 1;
-            System.out.println(String.format("==> %d / %d", cur, file_cnt));
-            readPcapFile(file.getPath(), outPath, flowTimeout, activityTimeout);
+
+        // files run in parallel, each with its share of the flow shards
+        int workers = Math.min(PcapBatch.defaultWorkers(), Math.max(1, file_cnt));
+        int shards = Math.max(1, ShardedFlowGenerator.defaultShardCount() / workers);
+        boolean verbose = workers == 1;
+        if (workers > 1) {
+            System.out.println(String.format("Processing %d files at a time", workers));
         }
-        System.out.println("Completed!");
+        PcapBatch.Summary summary;
+        try {
+            summary = new PcapBatch(workers).run(pcapFiles,
+                    file -> readPcapFile(file.getPath(), outPath, flowTimeout, activityTimeout, shards, verbose),
+                    (result, done, total) -> System.out.println(String.format("==> %d / %d %s", done, total, result)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while processing {}", inputPath);
+            return;
+        }
+        System.out.println("Completed! " + summary);
     }
 
-    private static void readPcapFile(String inputFile, String outPath, long flowTimeout, long activityTimeout) {
+    /**
+     * @return number of packets read from the file
+     */
+    private static long readPcapFile(String inputFile, String outPath, long flowTimeout, long activityTimeout,
+                                     int shards, boolean verbose) {
         if (inputFile == null || outPath == null) {
-            return;
+            return 0L;
         }
         String fileName = FilenameUtils.getName(inputFile);
 
@@ -204,7 +345,10 @@ public class Cmd {
             outPath += FILE_SEP;
         }
 
-        File saveFileFullPath = new File(outPath + fileName + FlowMgr.FLOW_SUFFIX);
+        // -Dcfm.flowFormat=columnar writes the flows as a columnar file instead of CSV
+        boolean columnar = ColumnarFlowWriter.isSelected();
+        File saveFileFullPath = new File(outPath + fileName
+                + (columnar ? ColumnarFlowWriter.FLOW_SUFFIX : FlowMgr.FLOW_SUFFIX));
 
         if (saveFileFullPath.exists()) {
             if (!saveFileFullPath.delete()) {
@@ -212,11 +356,26 @@ public class Cmd {
             }
         }
 
-        FlowGenerator flowGen = new FlowGenerator(true, flowTimeout, activityTimeout);
-        flowGen.addFlowListener(new FlowListener(fileName, outPath));
+        FlowOutput sink;
+        try {
+            sink = columnar ? new FlowOutput(new ColumnarFlowWriter(outPath, saveFileFullPath.getName(), FlowFeature.getHeader()))
+                    : new FlowOutput(new CsvFlowSink(outPath, saveFileFullPath.getName(), FlowFeature.getHeader(), true));
+        } catch (IOException e) {
+            logger.error("Cannot open {} for writing", saveFileFullPath, e);
+            return 0L;
+        }
+
         boolean readIP6 = false;
         boolean readIP4 = true;
-        PacketReader packetReader = new PacketReader(inputFile, readIP4, readIP6);
+        // one large file is cut into slices that are read in parallel, instead of sharding its flows
+        PcapSlicer slicer = PcapSlicer.open(inputFile, readIP4, readIP6, shards, flowTimeout, activityTimeout);
+        if (slicer != null) {
+            return readPcapSlices(slicer, fileName, sink, saveFileFullPath, verbose);
+        }
+
+        ShardedFlowGenerator flowGen = new ShardedFlowGenerator(shards, true, flowTimeout, activityTimeout);
+        flowGen.addFlowListener(new FlowListener(fileName, sink, verbose));
+        PacketSource packetReader = PacketSource.openOffline(inputFile, readIP4, readIP6);
 
         System.out.println(String.format("Working on... %s", fileName));
 
@@ -227,62 +386,156 @@ public class Cmd {
         long currentTimestamp = 0L;
         boolean disordered = false;
         long idDisorderedPacket = 0L;
+        // records filled in place and reused for every batch
+        BasicPacketInfo[] batch = new BasicPacketInfo[PACKET_BATCH];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new BasicPacketInfo();
+        }
+        int nBatch = 0;
 
         while (true) {
             try {
-                BasicPacketInfo basicPacket = packetReader.nextPacket();
-                if (basicPacket == null) { // End of file
-                    break;
-                }
+                BasicPacketInfo basicPacket = batch[nBatch];
+                boolean decoded = packetReader.nextPacket(basicPacket);
                 nTotal++;
-                
+                if (!decoded) { // not an IP packet
+                    nDiscarded++;
+                    continue;
+                }
+
                 currentTimestamp = basicPacket.getTimeStamp();
                 if (!(disordered) && (previousTimestamp > currentTimestamp)) {
-                    idDisorderedPacket = basicPacket.getId();
+                    // the id the reader would have assigned without cfm.skipPacketIds
+                    idDisorderedPacket = IdGenerator.SKIP_IDS ? nValid + 1 : basicPacket.getId();
                     disordered = true;
-                    System.out.println(DividingLine);
-                    System.out.println("/!\\ The pcap file contains disordered packets ! The network flows may be incorrect.");
-                    System.out.println(String.format("The packet with ID %d is the first disordered one.", idDisorderedPacket));
-                    System.out.println("Please order your pcap file and run the tool again.");
-                    System.out.println(DividingLine);
+                    printDisordered(fileName, idDisorderedPacket);
                 } else {
                     previousTimestamp = currentTimestamp;
                 }
 
-                flowGen.addPacket(basicPacket);
+                nBatch++;
+                if (nBatch == batch.length) {
+                    flowGen.addPackets(batch, nBatch);
+                    nBatch = 0;
+                }
                 nValid++;
 
             } catch (PcapClosedException e) {
                 break;
             }
         }
+        packetReader.close();
+
+        flowGen.addPackets(batch, nBatch);
+        flowGen.finish();
+        flowGen.dumpLabeledCurrentFlow(sink);
+        sink.close();
+        printDone(fileName, saveFileFullPath, nTotal, nValid, nDiscarded);
+        return nTotal;
+    }
+
+    private static long readPcapSlices(PcapSlicer slicer, String fileName, FlowOutput sink, File saveFileFullPath,
+                                       boolean verbose) {
+        slicer.addFlowListener(new FlowListener(fileName, sink, verbose));
+        System.out.println(String.format("Working on... %s in %d slices", fileName, slicer.getSliceCount()));
+
+        PcapSlicer.Stats stats;
+        try {
+            stats = slicer.run();
+        } catch (IOException e) {
+            logger.error("Cannot read {}", fileName, e);
+            sink.close();
+            return 0L;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sink.close();
+            return 0L;
+        }
+        if (stats.getDisorderedId() > 0) {
+            printDisordered(fileName, stats.getDisorderedId());
+        }
 
-        flowGen.dumpLabeledCurrentFlow(saveFileFullPath.getPath(), FlowFeature.getHeader());
-        long lines = SwingUtils.countLines(saveFileFullPath.getPath());
+        slicer.dumpLabeledCurrentFlow(sink);
+        sink.close();
+        printDone(fileName, saveFileFullPath, stats.getTotal(), stats.getValid(), stats.getDiscarded());
+        return stats.getTotal();
+    }
+
+    // one println each, so the lines stay together when several files are processed at once
+    private static void printDisordered(String fileName, long idDisorderedPacket) {
+        System.out.println(String.join(System.lineSeparator(), DividingLine,
+                "/!\\ The pcap file contains disordered packets ! The network flows may be incorrect.",
+                String.format("The packet with ID %d is the first disordered one in %s.", idDisorderedPacket, fileName),
+                "Please order your pcap file and run the tool again.",
+                DividingLine));
+    }
 
-        System.out.println(String.format("%s is done. total %d flows ", fileName, lines));
-        System.out.println(String.format("Packet stats: Total=%d,Valid=%d,Discarded=%d", nTotal, nValid, nDiscarded));
-        System.out.println(DividingLine);
+    private static void printDone(String fileName, File saveFileFullPath, long nTotal, long nValid, long nDiscarded) {
+        long lines = countFlows(saveFileFullPath);
+        System.out.println(String.join(System.lineSeparator(),
+                String.format("%s is done. total %d flows ", fileName, lines),
+                String.format("Packet stats: Total=%d,Valid=%d,Discarded=%d", nTotal, nValid, nDiscarded),
+                DividingLine));
+    }
+
+    private static long countFlows(File file) {
+        if (!file.getName().endsWith(ColumnarFlowWriter.FLOW_SUFFIX)) {
+            return SwingUtils.countLines(file.getPath());
+        }
+        try (ColumnarFlowReader reader = new ColumnarFlowReader(file)) {
+            return reader.getRowCount();
+        } catch (IOException e) {
+            logger.error("Cannot read {}", file, e);
+            return 0L;
+        }
+    }
+
+    /**
+     * The CSV or columnar file the flows of one pcap file are written to. The flows still open at the
+     * end are handed to it like finished ones before it is closed.
+     */
+    static class FlowOutput implements FlowGenListener {
+        private final FlowGenListener writer;
+        private final Closeable file;
+
+        <W extends FlowGenListener & Closeable> FlowOutput(W writer) {
+            this.writer = writer;
+            this.file = writer;
+        }
+
+        @Override
+        public void onFlowGenerated(BasicFlow flow) {
+            writer.onFlowGenerated(flow);
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.error("Cannot close the flow file", e);
+            }
+        }
     }
 
     static class FlowListener implements FlowGenListener {
         private String fileName;
-        private String outPath;
+        private FlowGenListener sink;
+        private boolean verbose;
         private long cnt;
 
-        public FlowListener(String fileName, String outPath) {
+        public FlowListener(String fileName, FlowGenListener sink, boolean verbose) {
             this.fileName = fileName;
-            this.outPath = outPath;
+            this.sink = sink;
+            this.verbose = verbose;
         }
 
         @Override
         public void onFlowGenerated(BasicFlow flow) {
-            String flowDump = flow.dumpFlowBasedFeaturesEx();
-            List<String> flowStringList = new ArrayList<>();
-            flowStringList.add(flowDump);
-            InsertCsvRow.insert(FlowFeature.getHeader(), flowStringList, outPath, fileName + FlowMgr.FLOW_SUFFIX);
+            sink.onFlowGenerated(flow);
             cnt++;
-            System.out.print(String.format("%s -> %d flows \r", fileName, cnt));
+            if (verbose) {
+                System.out.print(String.format("%s -> %d flows \r", fileName, cnt));
+            }
         }
     }
 }
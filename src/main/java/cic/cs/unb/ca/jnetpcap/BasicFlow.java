@@ -2,14 +2,32 @@ package cic.cs.unb.ca.jnetpcap;
 
 import java.util.*;
 
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.jnetpcap.packet.format.FormatUtils;
 
-public class BasicFlow {
+public class BasicFlow implements Cloneable {
 
     private final static String separator = ",";
-    private SummaryStatistics fwdPktStats = null;
-    private SummaryStatistics bwdPktStats = null;
+
+    // Debug mode: keep every packet of the flow for getForward()/getBackward(). Off by default, so
+    // the memory of a flow does not grow with its packet count.
+    public static final boolean RETAIN_PACKETS = Boolean.getBoolean("cfm.retainPackets");
+    // label column of flows cut short by the flow table limit instead of finishing normally
+    public static final String EVICTED_LABEL = "Evicted";
+
+    // running statistics of the flow, all packed into one block
+    private static final int FWD_PKT = 0;
+    private static final int BWD_PKT = 1;
+    private static final int FLOW_IAT = 2;
+    private static final int FWD_IAT = 3;
+    private static final int BWD_IAT = 4;
+    private static final int FLOW_LENGTH = 5;
+    private static final int FLOW_ACTIVE = 6;
+    private static final int FLOW_IDLE = 7;
+    private static final int STATS_COUNT = 8;
+    private StatsBlock stats = null;
+
+    private int forwardCount;
+    private int backwardCount;
     private List<BasicPacketInfo> forward = null;
     private List<BasicPacketInfo> backward = null;
 
@@ -21,7 +39,9 @@ public class BasicFlow {
     // Is always the value true in this application
     private boolean isBidirectional;
 
-    private HashMap<String, MutableInt> flagCounts;
+    // packets per TCP flag, indexed by the bit of the flag in BasicPacketInfo.getFlags()
+    private int[] flagCounts;
+    private static final String[] FLAG_NAMES = {"FIN", "SYN", "RST", "PSH", "ACK", "URG", "ECE", "CWR"};
 
     private int fPSH_cnt;
     private int bPSH_cnt;
@@ -42,6 +62,8 @@ public class BasicFlow {
 
     private byte[] src;
     private byte[] dst;
+    private String srcIpText;
+    private String dstIpText;
     private int srcPort;
     private int dstPort;
     private ProtocolEnum protocol;
@@ -50,12 +72,6 @@ public class BasicFlow {
     private long endActiveTime;
     private String flowId = null;
 
-    private SummaryStatistics flowIAT = null;
-    private SummaryStatistics forwardIAT = null;
-    private SummaryStatistics backwardIAT = null;
-    private SummaryStatistics flowLengthStats = null;
-    private SummaryStatistics flowActive = null;
-    private SummaryStatistics flowIdle = null;
 
     private long flowLastSeen;
     private long forwardLastSeen;
@@ -84,7 +100,8 @@ public class BasicFlow {
 
     private int fwdTcpRetransCnt = 0;
     private int bwdTcpRetransCnt = 0;
-    private Set<TcpRetransmissionDTO> tcpPacketsSeen;
+    // created with the first TCP segment, and handed on to the flows that continue the connection
+    private TcpRetransmissionTracker tcpRetransmissions;
 
     // The flow timeout is dependent on the user configuration and is unable to capture proper
     // context in extended TCP connections. This field will help identify whether a flow is
@@ -98,6 +115,9 @@ public class BasicFlow {
     private int icmpCode = -1;
     private int icmpType = -1;
 
+    // finished early to make room in a full flow table, see FlowGenerator.setFlowLimit
+    private boolean evicted;
+
     public BasicFlow(boolean isBidirectional, BasicPacketInfo packet, byte[] flowSrc, byte[] flowDst, int flowSrcPort,
                      int flowDstPort, long activityTimeout) {
         super();
@@ -112,7 +132,7 @@ public class BasicFlow {
     }
 
     public BasicFlow(boolean isBidirectional, BasicPacketInfo packet, byte[] flowSrc, byte[] flowDst, int flowSrcPort,
-            int flowDstPort, long activityTimeout, Set<TcpRetransmissionDTO> tcpPacketsSeen) {
+            int flowDstPort, long activityTimeout, TcpRetransmissionTracker tcpRetransmissions) {
         super();
         this.activityTimeout = activityTimeout;
         this.initParameters();
@@ -121,7 +141,7 @@ public class BasicFlow {
         this.dst = flowDst;
         this.srcPort = flowSrcPort;
         this.dstPort = flowDstPort;
-        this.tcpPacketsSeen = tcpPacketsSeen;
+        this.tcpRetransmissions = tcpRetransmissions;
         this.firstPacket(packet);
     }
 
@@ -144,18 +164,14 @@ public class BasicFlow {
 
 
     public void initParameters() {
-        this.forward = new ArrayList<BasicPacketInfo>();
-        this.backward = new ArrayList<BasicPacketInfo>();
-        this.flowIAT = new SummaryStatistics();
-        this.forwardIAT = new SummaryStatistics();
-        this.backwardIAT = new SummaryStatistics();
-        this.flowActive = new SummaryStatistics();
-        this.flowIdle = new SummaryStatistics();
-        this.flowLengthStats = new SummaryStatistics();
-        this.fwdPktStats = new SummaryStatistics();
-        this.bwdPktStats = new SummaryStatistics();
-        this.flagCounts = new HashMap<String, MutableInt>();
-        initFlags();
+        this.forwardCount = 0;
+        this.backwardCount = 0;
+        if (RETAIN_PACKETS) {
+            this.forward = new ArrayList<BasicPacketInfo>();
+            this.backward = new ArrayList<BasicPacketInfo>();
+        }
+        this.stats = new StatsBlock(STATS_COUNT);
+        this.flagCounts = new int[FLAG_NAMES.length];
         this.forwardBytes = 0L;
         this.backwardBytes = 0L;
         this.startActiveTime = 0L;
@@ -172,7 +188,7 @@ public class BasicFlow {
         this.bHeaderBytes = 0L;
         this.cumulativeConnectionDuration = 0L;
         this.tcpFlowState = null;
-        this.tcpPacketsSeen = new HashSet<TcpRetransmissionDTO>();
+        this.tcpRetransmissions = null;
     }
 
     public void firstPacket(BasicPacketInfo packet) {
@@ -195,16 +211,16 @@ public class BasicFlow {
         this.flowLastSeen = packet.getTimeStamp();
         this.startActiveTime = packet.getTimeStamp();
         detectUpdateSubflows(packet);
-        this.flowLengthStats.addValue((double) packet.getPayloadBytes());
+        this.stats.add(FLOW_LENGTH, (double) packet.getPayloadBytes());
 
-        if (Arrays.equals(this.src, packet.getSrc())) {
+        if (packet.isForwardPacket(this.src)) {
             this.min_seg_size_forward = packet.getHeaderBytes();
             Init_Win_bytes_forward = packet.getTCPWindow();
-            this.fwdPktStats.addValue((double) packet.getPayloadBytes());
+            this.stats.add(FWD_PKT, (double) packet.getPayloadBytes());
             this.fHeaderBytes = packet.getHeaderBytes();
             this.forwardLastSeen = packet.getTimeStamp();
             this.forwardBytes += packet.getPayloadBytes();
-            this.forward.add(packet);
+            addForward(packet);
             if (packet.getPayloadBytes() >= 1) {
                 this.Act_data_pkt_forward++;
             }
@@ -223,11 +239,11 @@ public class BasicFlow {
         } else {
             this.min_seg_size_backward = packet.getHeaderBytes();
             Init_Win_bytes_backward = packet.getTCPWindow();
-            this.bwdPktStats.addValue((double) packet.getPayloadBytes());
+            this.stats.add(BWD_PKT, (double) packet.getPayloadBytes());
             this.bHeaderBytes = packet.getHeaderBytes();
             this.backwardLastSeen = packet.getTimeStamp();
             this.backwardBytes += packet.getPayloadBytes();
-            this.backward.add(packet);
+            addBackward(packet);
             if (packet.getPayloadBytes() >= 1) {
                 this.Act_data_pkt_backward++;
             }
@@ -247,25 +263,28 @@ public class BasicFlow {
         this.protocol = packet.getProtocol();
         this.icmpCode = packet.getIcmpCode();
         this.icmpType = packet.getIcmpType();
-        this.flowId = packet.getFlowId();
         handleTcpRetransmissionFields(packet);
     }
 
     /***
-     * The retransmission mechanism is crude, and relies on the fact that the fields in the TcpRetransmissionDTO
-     * class are unique. This is not a perfect solution, but it should be good enough for detection of very obvious
-     * TCP retransmissions.
+     * The retransmission mechanism is crude, and relies on the fact that direction, sequence and acknowledgement
+     * numbers, payload length and window of a segment are unique. This is not a perfect solution, but it should be
+     * good enough for detection of very obvious TCP retransmissions.
      * @param packet
      */
     private void handleTcpRetransmissionFields(BasicPacketInfo packet) {
-        if (this.protocol == ProtocolEnum.TCP) {
-            TcpRetransmissionDTO tcpRetransmissionDTO = packet.tcpRetransmissionDTO();
-            // If the element was successfully added to the hashset, then it has not been seen
-            // before, and is not a retransmission.
-            boolean isRetransmission = !(this.tcpPacketsSeen.add(tcpRetransmissionDTO));
+        if (this.protocol == ProtocolEnum.TCP && packet.hasTcpSequence()) {
+            if (this.tcpRetransmissions == null) {
+                this.tcpRetransmissions = new TcpRetransmissionTracker();
+            }
+            boolean forward = packet.isForwardPacket(this.src);
+            // If the segment was successfully added to the tracker, then it has not been seen
+            // recently, and is not a retransmission.
+            boolean isRetransmission = !this.tcpRetransmissions.add(forward, packet.getTcpSeq(), packet.getTcpAck(),
+                    (int) packet.getPayloadBytes(), packet.getTCPWindow());
             if (isRetransmission) {
                 // check if the packet is a forward packet
-                if (Arrays.equals(this.src, packet.getSrc())) {
+                if (forward) {
                     // increment the forward retransmission count
                     this.fwdTcpRetransCnt++;
                 } else {
@@ -283,17 +302,17 @@ public class BasicFlow {
         handleTcpRetransmissionFields(packet);
         long currentTimestamp = packet.getTimeStamp();
         if (isBidirectional) {
-            this.flowLengthStats.addValue((double) packet.getPayloadBytes());
-            if (Arrays.equals(this.src, packet.getSrc())) {
+            this.stats.add(FLOW_LENGTH, (double) packet.getPayloadBytes());
+            if (packet.isForwardPacket(this.src)) {
                 if (packet.getPayloadBytes() >= 1) {
                     this.Act_data_pkt_forward++;
                 }
-                this.fwdPktStats.addValue((double) packet.getPayloadBytes());
+                this.stats.add(FWD_PKT, (double) packet.getPayloadBytes());
                 this.fHeaderBytes += packet.getHeaderBytes();
-                this.forward.add(packet);
+                addForward(packet);
                 this.forwardBytes += packet.getPayloadBytes();
-                if (this.forward.size() > 1)
-                    this.forwardIAT.addValue(currentTimestamp - this.forwardLastSeen);
+                if (this.forwardCount > 1)
+                    this.stats.add(FWD_IAT, currentTimestamp - this.forwardLastSeen);
                 this.forwardLastSeen = currentTimestamp;
                 this.min_seg_size_forward = Math.min(packet.getHeaderBytes(), this.min_seg_size_forward);
                 if (packet.hasFlagPSH()) {
@@ -312,7 +331,7 @@ public class BasicFlow {
                 if (packet.getPayloadBytes() >= 1) {
                     this.Act_data_pkt_backward++;
                 }
-                this.bwdPktStats.addValue((double) packet.getPayloadBytes());
+                this.stats.add(BWD_PKT, (double) packet.getPayloadBytes());
                 // set Init_win_bytes_backward if not been set. The set logic isn't 100%
                 // accurate, since it technically takes the first non-zero value, but should
                 // be good enough for most cases.
@@ -320,10 +339,10 @@ public class BasicFlow {
                     Init_Win_bytes_backward = packet.getTCPWindow();
                 }
                 this.bHeaderBytes += packet.getHeaderBytes();
-                this.backward.add(packet);
+                addBackward(packet);
                 this.backwardBytes += packet.getPayloadBytes();
-                if (this.backward.size() > 1)
-                    this.backwardIAT.addValue(currentTimestamp - this.backwardLastSeen);
+                if (this.backwardCount > 1)
+                    this.stats.add(BWD_IAT, currentTimestamp - this.backwardLastSeen);
                 this.backwardLastSeen = currentTimestamp;
                 this.min_seg_size_backward = Math.min(packet.getHeaderBytes(), this.min_seg_size_backward);
                 if (packet.hasFlagPSH()) {
@@ -343,17 +362,17 @@ public class BasicFlow {
             if (packet.getPayloadBytes() >= 1) {
                 this.Act_data_pkt_forward++;
             }
-            this.fwdPktStats.addValue((double) packet.getPayloadBytes());
-            this.flowLengthStats.addValue((double) packet.getPayloadBytes());
+            this.stats.add(FWD_PKT, (double) packet.getPayloadBytes());
+            this.stats.add(FLOW_LENGTH, (double) packet.getPayloadBytes());
             this.fHeaderBytes += packet.getHeaderBytes();
-            this.forward.add(packet);
+            addForward(packet);
             this.forwardBytes += packet.getPayloadBytes();
-            this.forwardIAT.addValue(currentTimestamp - this.forwardLastSeen);
+            this.stats.add(FWD_IAT, currentTimestamp - this.forwardLastSeen);
             this.forwardLastSeen = currentTimestamp;
             this.min_seg_size_forward = Math.min(packet.getHeaderBytes(), this.min_seg_size_forward);
         }
 
-        this.flowIAT.addValue(packet.getTimeStamp() - this.flowLastSeen);
+        this.stats.add(FLOW_IAT, packet.getTimeStamp() - this.flowLastSeen);
         this.flowLastSeen = packet.getTimeStamp();
 
     }
@@ -361,7 +380,7 @@ public class BasicFlow {
     public double getfPktsPerSecond() {
         long duration = this.flowLastSeen - this.flowStartTime;
         if (duration > 0) {
-            return (this.forward.size() / ((double) duration / 1000000L));
+            return (this.forwardCount / ((double) duration / 1000000L));
         } else
             return 0;
     }
@@ -369,88 +388,45 @@ public class BasicFlow {
     public double getbPktsPerSecond() {
         long duration = this.flowLastSeen - this.flowStartTime;
         if (duration > 0) {
-            return (this.backward.size() / ((double) duration / 1000000L));
+            return (this.backwardCount / ((double) duration / 1000000L));
         } else
             return 0;
     }
 
     public double getDownUpRatio() {
-        if (this.forward.size() > 0) {
-            return ((double)this.backward.size())/this.forward.size();
+        if (this.forwardCount > 0) {
+            return ((double)this.backwardCount)/this.forwardCount;
         }
         return 0;
     }
 
     public double getAvgPacketSize() {
         if (this.packetCount() > 0) {
-            return (this.flowLengthStats.getSum() / this.packetCount());
+            return (this.stats.getSum(FLOW_LENGTH) / this.packetCount());
         }
         return 0;
     }
 
     public double fAvgSegmentSize() {
-        if (this.forward.size() != 0)
-            return (this.fwdPktStats.getSum() / (double) this.forward.size());
+        if (this.forwardCount != 0)
+            return (this.stats.getSum(FWD_PKT) / (double) this.forwardCount);
         return 0;
     }
 
     public double bAvgSegmentSize() {
-        if (this.backward.size() != 0)
-            return (this.bwdPktStats.getSum() / (double) this.backward.size());
+        if (this.backwardCount != 0)
+            return (this.stats.getSum(BWD_PKT) / (double) this.backwardCount);
         return 0;
     }
 
     public void initFlags() {
-        flagCounts.put("FIN", new MutableInt());
-        flagCounts.put("SYN", new MutableInt());
-        flagCounts.put("RST", new MutableInt());
-        flagCounts.put("PSH", new MutableInt());
-        flagCounts.put("ACK", new MutableInt());
-        flagCounts.put("URG", new MutableInt());
-        flagCounts.put("CWR", new MutableInt());
-        flagCounts.put("ECE", new MutableInt());
+        Arrays.fill(flagCounts, 0);
     }
 
     public void checkFlags(BasicPacketInfo packet) {
-        if (packet.hasFlagFIN()) {
-            //MutableInt count1 = flagCounts.get("FIN");
-            //count1.increment();
-            flagCounts.get("FIN").increment();
-        }
-        if (packet.hasFlagSYN()) {
-            //MutableInt count2 = flagCounts.get("SYN");
-            //count2.increment();
-            flagCounts.get("SYN").increment();
-        }
-        if (packet.hasFlagRST()) {
-            //MutableInt count3 = flagCounts.get("RST");
-            //count3.increment();
-            flagCounts.get("RST").increment();
-        }
-        if (packet.hasFlagPSH()) {
-            //MutableInt count4 = flagCounts.get("PSH");
-            //count4.increment();
-            flagCounts.get("PSH").increment();
-        }
-        if (packet.hasFlagACK()) {
-            //MutableInt count5 = flagCounts.get("ACK");
-            //count5.increment();
-            flagCounts.get("ACK").increment();
-        }
-        if (packet.hasFlagURG()) {
-            //MutableInt count6 = flagCounts.get("URG");
-            //count6.increment();
-            flagCounts.get("URG").increment();
-        }
-        if (packet.hasFlagCWR()) {
-            //MutableInt count7 = flagCounts.get("CWR");
-            //count7.increment();
-            flagCounts.get("CWR").increment();
-        }
-        if (packet.hasFlagECE()) {
-            //MutableInt count8 = flagCounts.get("ECE");
-            //count8.increment();
-            flagCounts.get("ECE").increment();
+        // one count per set bit, lowest first
+        for (int flags = packet.getFlags(); flags != 0; flags &= flags - 1) {
+            flagCounts[Integer.numberOfTrailingZeros(flags)]++;
         }
     }
 
@@ -461,7 +437,7 @@ public class BasicFlow {
 
     public double getSflow_fpackets() {
         if (sfCount <= 0) return 0;
-        return (double) this.forward.size() / sfCount;
+        return (double) this.forwardCount / sfCount;
     }
 
     public double getSflow_bbytes() {
@@ -471,7 +447,7 @@ public class BasicFlow {
 
     public double getSflow_bpackets() {
         if (sfCount <= 0) return 0;
-        return (double) this.backward.size() / sfCount;
+        return (double) this.backwardCount / sfCount;
     }
 
     void detectUpdateSubflows(BasicPacketInfo packet) {
@@ -491,7 +467,7 @@ public class BasicFlow {
     }
 
     public void updateFlowBulk(BasicPacketInfo packet) {
-        if (Arrays.equals(this.src, packet.getSrc())) {
+        if (packet.isForwardPacket(this.src)) {
             updateForwardBulk(packet, blastBulkTS);
         } else {
             updateBackwardBulk(packet,flastBulkTS);
@@ -504,8 +480,6 @@ public class BasicFlow {
         if (tsOflastBulkInOther > fbulkStartHelper) fbulkStartHelper = 0;
         if (size <= 0) return;
 
-        packet.getPayloadPacket();
-
         if (fbulkStartHelper == 0) {
             fbulkStartHelper = packet.getTimeStamp();
             fbulkPacketCountHelper = 1;
@@ -548,8 +522,6 @@ public class BasicFlow {
         if (tsOflastBulkInOther > bbulkStartHelper) bbulkStartHelper = 0;
         if (size <= 0) return;
 
-        packet.getPayloadPacket();
-
         if (bbulkStartHelper == 0) {
             bbulkStartHelper = packet.getTimeStamp();
             bbulkPacketCountHelper = 1;
@@ -678,9 +650,9 @@ public class BasicFlow {
     public void updateActiveIdleTime(long currentTime, long threshold) {
         if ((currentTime - this.endActiveTime) > threshold) {
             if ((this.endActiveTime - this.startActiveTime) > 0) {
-                this.flowActive.addValue(this.endActiveTime - this.startActiveTime);
+                this.stats.add(FLOW_ACTIVE, this.endActiveTime - this.startActiveTime);
             }
-            this.flowIdle.addValue(currentTime - this.endActiveTime);
+            this.stats.add(FLOW_IDLE, currentTime - this.endActiveTime);
             this.startActiveTime = currentTime;
             this.endActiveTime = currentTime;
         } else {
@@ -691,17 +663,17 @@ public class BasicFlow {
     public void endActiveIdleTime(long currentTime, long threshold, long flowTimeOut, boolean isFlagEnd) {
 
         if ((this.endActiveTime - this.startActiveTime) > 0) {
-            this.flowActive.addValue(this.endActiveTime - this.startActiveTime);
+            this.stats.add(FLOW_ACTIVE, this.endActiveTime - this.startActiveTime);
         }
 
         if (!isFlagEnd && ((flowTimeOut - (this.endActiveTime - this.flowStartTime)) > 0)) {
-            this.flowIdle.addValue(flowTimeOut - (this.endActiveTime - this.flowStartTime));
+            this.stats.add(FLOW_IDLE, flowTimeOut - (this.endActiveTime - this.flowStartTime));
         }
     }
 
     public String dumpFlowBasedFeatures() {
         String dump = "";
-        dump += this.flowId + ",";
+        dump += getFlowId() + ",";
         dump += FormatUtils.ip(src) + ",";
         dump += getSrcPort() + ",";
         dump += FormatUtils.ip(dst) + ",";
@@ -711,48 +683,48 @@ public class BasicFlow {
         dump += DateFormatter.parseDateFromLong(this.flowStartTime / 1000L, "dd/MM/yyyy hh:mm:ss") + ",";
         long flowDuration = this.flowLastSeen - this.flowStartTime;
         dump += flowDuration + ",";
-        dump += this.fwdPktStats.getN() + ",";
-        dump += this.bwdPktStats.getN() + ",";
-        dump += this.fwdPktStats.getSum() + ",";
-        dump += this.bwdPktStats.getSum() + ",";
-        if (fwdPktStats.getN() > 0L) {
-            dump += this.fwdPktStats.getMax() + ",";
-            dump += this.fwdPktStats.getMin() + ",";
-            dump += this.fwdPktStats.getMean() + ",";
-            dump += this.fwdPktStats.getStandardDeviation() + ",";
+        dump += this.stats.getN(FWD_PKT) + ",";
+        dump += this.stats.getN(BWD_PKT) + ",";
+        dump += this.stats.getSum(FWD_PKT) + ",";
+        dump += this.stats.getSum(BWD_PKT) + ",";
+        if (this.stats.getN(FWD_PKT) > 0L) {
+            dump += this.stats.getMax(FWD_PKT) + ",";
+            dump += this.stats.getMin(FWD_PKT) + ",";
+            dump += this.stats.getMean(FWD_PKT) + ",";
+            dump += this.stats.getStandardDeviation(FWD_PKT) + ",";
         } else {
             dump += "0,0,0,0,";
         }
-        if (bwdPktStats.getN() > 0L) {
-            dump += this.bwdPktStats.getMax() + ",";
-            dump += this.bwdPktStats.getMin() + ",";
-            dump += this.bwdPktStats.getMean() + ",";
-            dump += this.bwdPktStats.getStandardDeviation() + ",";
+        if (this.stats.getN(BWD_PKT) > 0L) {
+            dump += this.stats.getMax(BWD_PKT) + ",";
+            dump += this.stats.getMin(BWD_PKT) + ",";
+            dump += this.stats.getMean(BWD_PKT) + ",";
+            dump += this.stats.getStandardDeviation(BWD_PKT) + ",";
         } else {
             dump += "0,0,0,0,";
         }
         // flow duration is in microseconds, therefore packets per seconds = packets / (duration/1000000)
         dump += ((double) (this.forwardBytes + this.backwardBytes)) / ((double) flowDuration / 1000000L) + ",";
         dump += ((double) packetCount()) / ((double) flowDuration / 1000000L) + ",";
-        dump += this.flowIAT.getMean() + ",";
-        dump += this.flowIAT.getStandardDeviation() + ",";
-        dump += this.flowIAT.getMax() + ",";
-        dump += this.flowIAT.getMin() + ",";
-        if (this.forward.size() > 1) {
-            dump += this.forwardIAT.getSum() + ",";
-            dump += this.forwardIAT.getMean() + ",";
-            dump += this.forwardIAT.getStandardDeviation() + ",";
-            dump += this.forwardIAT.getMax() + ",";
-            dump += this.forwardIAT.getMin() + ",";
+        dump += this.stats.getMean(FLOW_IAT) + ",";
+        dump += this.stats.getStandardDeviation(FLOW_IAT) + ",";
+        dump += this.stats.getMax(FLOW_IAT) + ",";
+        dump += this.stats.getMin(FLOW_IAT) + ",";
+        if (this.forwardCount > 1) {
+            dump += this.stats.getSum(FWD_IAT) + ",";
+            dump += this.stats.getMean(FWD_IAT) + ",";
+            dump += this.stats.getStandardDeviation(FWD_IAT) + ",";
+            dump += this.stats.getMax(FWD_IAT) + ",";
+            dump += this.stats.getMin(FWD_IAT) + ",";
         } else {
             dump += "0,0,0,0,0,";
         }
-        if (this.backward.size() > 1) {
-            dump += this.backwardIAT.getSum() + ",";
-            dump += this.backwardIAT.getMean() + ",";
-            dump += this.backwardIAT.getStandardDeviation() + ",";
-            dump += this.backwardIAT.getMax() + ",";
-            dump += this.backwardIAT.getMin() + ",";
+        if (this.backwardCount > 1) {
+            dump += this.stats.getSum(BWD_IAT) + ",";
+            dump += this.stats.getMean(BWD_IAT) + ",";
+            dump += this.stats.getStandardDeviation(BWD_IAT) + ",";
+            dump += this.stats.getMax(BWD_IAT) + ",";
+            dump += this.stats.getMin(BWD_IAT) + ",";
         } else {
             dump += "0,0,0,0,0,";
         }
@@ -767,18 +739,19 @@ public class BasicFlow {
         dump += getfPktsPerSecond() + ",";
         dump += getbPktsPerSecond() + ",";
 
-        if (this.forward.size() > 0 || this.backward.size() > 0) {
-            dump += this.flowLengthStats.getMin() + ",";
-            dump += this.flowLengthStats.getMax() + ",";
-            dump += this.flowLengthStats.getMean() + ",";
-            dump += this.flowLengthStats.getStandardDeviation() + ",";
-            dump += flowLengthStats.getVariance() + ",";
+        if (this.forwardCount > 0 || this.backwardCount > 0) {
+            dump += this.stats.getMin(FLOW_LENGTH) + ",";
+            dump += this.stats.getMax(FLOW_LENGTH) + ",";
+            dump += this.stats.getMean(FLOW_LENGTH) + ",";
+            dump += this.stats.getStandardDeviation(FLOW_LENGTH) + ",";
+            dump += this.stats.getVariance(FLOW_LENGTH) + ",";
         } else {
             dump += "0,0,0,0,";
         }
 
-        for (String key : flagCounts.keySet()) {
-            dump += flagCounts.get(key).value + ",";
+        // in the iteration order of the HashMap the counters used to be kept in
+        for (String key : new String[]{"RST", "PSH", "ECE", "SYN", "ACK", "FIN", "URG", "CWR"}) {
+            dump += getFlagCount(key) + ",";
         }
 
         dump += getDownUpRatio() + ",";
@@ -807,20 +780,20 @@ public class BasicFlow {
         dump += this.min_seg_size_forward + ",";
         dump += this.min_seg_size_backward + ",";
 
-        if (this.flowActive.getN() > 0) {
-            dump += this.flowActive.getMean() + ",";
-            dump += this.flowActive.getStandardDeviation() + ",";
-            dump += this.flowActive.getMax() + ",";
-            dump += this.flowActive.getMin() + ",";
+        if (this.stats.getN(FLOW_ACTIVE) > 0) {
+            dump += this.stats.getMean(FLOW_ACTIVE) + ",";
+            dump += this.stats.getStandardDeviation(FLOW_ACTIVE) + ",";
+            dump += this.stats.getMax(FLOW_ACTIVE) + ",";
+            dump += this.stats.getMin(FLOW_ACTIVE) + ",";
         } else {
             dump += "0,0,0,0,";
         }
 
-        if (this.flowIdle.getN() > 0) {
-            dump += this.flowIdle.getMean() + ",";
-            dump += this.flowIdle.getStandardDeviation() + ",";
-            dump += this.flowIdle.getMax() + ",";
-            dump += this.flowIdle.getMin();
+        if (this.stats.getN(FLOW_IDLE) > 0) {
+            dump += this.stats.getMean(FLOW_IDLE) + ",";
+            dump += this.stats.getStandardDeviation(FLOW_IDLE) + ",";
+            dump += this.stats.getMax(FLOW_IDLE) + ",";
+            dump += this.stats.getMin(FLOW_IDLE);
         } else {
             dump += "0,0,0,0";
         }
@@ -838,26 +811,48 @@ public class BasicFlow {
 
     public int packetCount() {
         if (isBidirectional) {
-            return (this.forward.size() + this.backward.size());
+            return (this.forwardCount + this.backwardCount);
         } else {
-            return this.forward.size();
+            return this.forwardCount;
+        }
+    }
+
+    private void addForward(BasicPacketInfo packet) {
+        this.forwardCount++;
+        if (this.forward != null) {
+            this.forward.add(packet.copy());
+        }
+    }
+
+    private void addBackward(BasicPacketInfo packet) {
+        this.backwardCount++;
+        if (this.backward != null) {
+            this.backward.add(packet.copy());
         }
     }
 
+    /**
+     * @return the forward packets of the flow; empty unless packets are retained (-Dcfm.retainPackets=true)
+     */
     public List<BasicPacketInfo> getForward() {
-        return new ArrayList<>(forward);
+        return forward == null ? new ArrayList<>() : new ArrayList<>(forward);
     }
 
     public void setForward(List<BasicPacketInfo> forward) {
         this.forward = forward;
+        this.forwardCount = forward.size();
     }
 
+    /**
+     * @return the backward packets of the flow; empty unless packets are retained (-Dcfm.retainPackets=true)
+     */
     public List<BasicPacketInfo> getBackward() {
-        return new ArrayList<>(backward);
+        return backward == null ? new ArrayList<>() : new ArrayList<>(backward);
     }
 
     public void setBackward(List<BasicPacketInfo> backward) {
         this.backward = backward;
+        this.backwardCount = backward.size();
     }
 
     public boolean isBidirectional() {
@@ -872,8 +867,18 @@ public class BasicFlow {
         return Arrays.copyOf(src, src.length);
     }
 
+    // uncopied addresses for the flow table lookups of the flow expiry
+    byte[] rawSrc() {
+        return src;
+    }
+
+    byte[] rawDst() {
+        return dst;
+    }
+
     public void setSrc(byte[] src) {
         this.src = src;
+        this.srcIpText = null;
     }
 
     public byte[] getDst() {
@@ -882,6 +887,7 @@ public class BasicFlow {
 
     public void setDst(byte[] dst) {
         this.dst = dst;
+        this.dstIpText = null;
     }
 
     public int getSrcPort() {
@@ -926,7 +932,14 @@ public class BasicFlow {
         this.flowStartTime = flowStartTime;
     }
 
+    /**
+     * @return the id given by {@link #setFlowId(String)}, else "src-dst-srcPort-dstPort-protocol" of this flow,
+     * built on first use so flows that are never written out never build it
+     */
     public String getFlowId() {
+        if (flowId == null) {
+            flowId = getSrcIP() + "-" + getDstIP() + "-" + srcPort + "-" + dstPort + "-" + protocol.val;
+        }
         return flowId;
     }
 
@@ -975,51 +988,51 @@ public class BasicFlow {
     }
 
     public long getTotalFwdPackets() {
-        return fwdPktStats.getN();
+        return this.stats.getN(FWD_PKT);
     }
 
     public long getTotalBackwardPackets() {
-        return bwdPktStats.getN();
+        return this.stats.getN(BWD_PKT);
     }
 
     public double getTotalLengthofFwdPackets() {
-        return fwdPktStats.getSum();
+        return this.stats.getSum(FWD_PKT);
     }
 
     public double getTotalLengthofBwdPackets() {
-        return bwdPktStats.getSum();
+        return this.stats.getSum(BWD_PKT);
     }
 
     public double getFwdPacketLengthMax() {
-        return (fwdPktStats.getN() > 0L) ? fwdPktStats.getMax() : 0;
+        return (this.stats.getN(FWD_PKT) > 0L) ? this.stats.getMax(FWD_PKT) : 0;
     }
 
     public double getFwdPacketLengthMin() {
-        return (fwdPktStats.getN() > 0L) ? fwdPktStats.getMin() : 0;
+        return (this.stats.getN(FWD_PKT) > 0L) ? this.stats.getMin(FWD_PKT) : 0;
     }
 
     public double getFwdPacketLengthMean() {
-        return (fwdPktStats.getN() > 0L) ? fwdPktStats.getMean() : 0;
+        return (this.stats.getN(FWD_PKT) > 0L) ? this.stats.getMean(FWD_PKT) : 0;
     }
 
     public double getFwdPacketLengthStd() {
-        return (fwdPktStats.getN() > 0L) ? fwdPktStats.getStandardDeviation() : 0;
+        return (this.stats.getN(FWD_PKT) > 0L) ? this.stats.getStandardDeviation(FWD_PKT) : 0;
     }
 
     public double getBwdPacketLengthMax() {
-        return (bwdPktStats.getN() > 0L) ? bwdPktStats.getMax() : 0;
+        return (this.stats.getN(BWD_PKT) > 0L) ? this.stats.getMax(BWD_PKT) : 0;
     }
 
     public double getBwdPacketLengthMin() {
-        return (bwdPktStats.getN() > 0L) ? bwdPktStats.getMin() : 0;
+        return (this.stats.getN(BWD_PKT) > 0L) ? this.stats.getMin(BWD_PKT) : 0;
     }
 
     public double getBwdPacketLengthMean() {
-        return (bwdPktStats.getN() > 0L) ? bwdPktStats.getMean() : 0;
+        return (this.stats.getN(BWD_PKT) > 0L) ? this.stats.getMean(BWD_PKT) : 0;
     }
 
     public double getBwdPacketLengthStd() {
-        return (bwdPktStats.getN() > 0L) ? bwdPktStats.getStandardDeviation() : 0;
+        return (this.stats.getN(BWD_PKT) > 0L) ? this.stats.getStandardDeviation(BWD_PKT) : 0;
     }
 
     public double getFlowBytesPerSec() {
@@ -1031,48 +1044,44 @@ public class BasicFlow {
         return ((double) packetCount()) / ((double) getFlowDuration() / 1000000L);
     }
 
-    public SummaryStatistics getFlowIAT() {
-        return flowIAT;
-    }
-
     public double getFwdIATTotal() {
-        return (forward.size() > 1) ? forwardIAT.getSum() : 0;
+        return (this.forwardCount > 1) ? this.stats.getSum(FWD_IAT) : 0;
     }
 
     public double getFwdIATMean() {
-        return (forward.size() > 1) ? forwardIAT.getMean() : 0;
+        return (this.forwardCount > 1) ? this.stats.getMean(FWD_IAT) : 0;
     }
 
     public double getFwdIATStd() {
-        return (forward.size() > 1) ? forwardIAT.getStandardDeviation() : 0;
+        return (this.forwardCount > 1) ? this.stats.getStandardDeviation(FWD_IAT) : 0;
     }
 
     public double getFwdIATMax() {
-        return (forward.size() > 1) ? forwardIAT.getMax() : 0;
+        return (this.forwardCount > 1) ? this.stats.getMax(FWD_IAT) : 0;
     }
 
     public double getFwdIATMin() {
-        return (forward.size() > 1) ? forwardIAT.getMin() : 0;
+        return (this.forwardCount > 1) ? this.stats.getMin(FWD_IAT) : 0;
     }
 
     public double getBwdIATTotal() {
-        return (backward.size() > 1) ? backwardIAT.getSum() : 0;
+        return (this.backwardCount > 1) ? this.stats.getSum(BWD_IAT) : 0;
     }
 
     public double getBwdIATMean() {
-        return (backward.size() > 1) ? backwardIAT.getMean() : 0;
+        return (this.backwardCount > 1) ? this.stats.getMean(BWD_IAT) : 0;
     }
 
     public double getBwdIATStd() {
-        return (backward.size() > 1) ? backwardIAT.getStandardDeviation() : 0;
+        return (this.backwardCount > 1) ? this.stats.getStandardDeviation(BWD_IAT) : 0;
     }
 
     public double getBwdIATMax() {
-        return (backward.size() > 1) ? backwardIAT.getMax() : 0;
+        return (this.backwardCount > 1) ? this.stats.getMax(BWD_IAT) : 0;
     }
 
     public double getBwdIATMin() {
-        return (backward.size() > 1) ? backwardIAT.getMin() : 0;
+        return (this.backwardCount > 1) ? this.stats.getMin(BWD_IAT) : 0;
     }
 
     public int getFwdPSHFlags() {
@@ -1108,27 +1117,42 @@ public class BasicFlow {
     }
 
     public double getMinPacketLength() {
-        return (forward.size() > 0 || backward.size() > 0) ? flowLengthStats.getMin() : 0;
+        return (this.forwardCount > 0 || this.backwardCount > 0) ? this.stats.getMin(FLOW_LENGTH) : 0;
     }
 
     public double getMaxPacketLength() {
-        return (forward.size() > 0 || backward.size() > 0) ? flowLengthStats.getMax() : 0;
+        return (this.forwardCount > 0 || this.backwardCount > 0) ? this.stats.getMax(FLOW_LENGTH) : 0;
     }
 
     public double getPacketLengthMean() {
-        return (forward.size() > 0 || backward.size() > 0) ? flowLengthStats.getMean() : 0;
+        return (this.forwardCount > 0 || this.backwardCount > 0) ? this.stats.getMean(FLOW_LENGTH) : 0;
     }
 
     public double getPacketLengthStd() {
-        return (forward.size() > 0 || backward.size() > 0) ? flowLengthStats.getStandardDeviation() : 0;
+        return (this.forwardCount > 0 || this.backwardCount > 0) ? this.stats.getStandardDeviation(FLOW_LENGTH) : 0;
     }
 
     public double getPacketLengthVariance() {
-        return (forward.size() > 0 || backward.size() > 0) ? flowLengthStats.getVariance() : 0;
+        return (this.forwardCount > 0 || this.backwardCount > 0) ? this.stats.getVariance(FLOW_LENGTH) : 0;
     }
 
+    /**
+     * @param key name of the flag, such as "SYN"
+     */
     public int getFlagCount(String key) {
-        return flagCounts.get(key).value;
+        for (int i = 0; i < FLAG_NAMES.length; i++) {
+            if (FLAG_NAMES[i].equals(key)) {
+                return flagCounts[i];
+            }
+        }
+        throw new IllegalArgumentException("Unknown TCP flag " + key);
+    }
+
+    /**
+     * @param flag one of the BasicPacketInfo.FLAG_ bits
+     */
+    public int getFlagCount(int flag) {
+        return flagCounts[Integer.numberOfTrailingZeros(flag)];
     }
 
     public int getInit_Win_bytes_forward() {
@@ -1156,35 +1180,35 @@ public class BasicFlow {
     }
 
     public double getActiveMean() {
-        return (flowActive.getN() > 0) ? flowActive.getMean() : 0;
+        return (this.stats.getN(FLOW_ACTIVE) > 0) ? this.stats.getMean(FLOW_ACTIVE) : 0;
     }
 
     public double getActiveStd() {
-        return (flowActive.getN() > 0) ? flowActive.getStandardDeviation() : 0;
+        return (this.stats.getN(FLOW_ACTIVE) > 0) ? this.stats.getStandardDeviation(FLOW_ACTIVE) : 0;
     }
 
     public double getActiveMax() {
-        return (flowActive.getN() > 0) ? flowActive.getMax() : 0;
+        return (this.stats.getN(FLOW_ACTIVE) > 0) ? this.stats.getMax(FLOW_ACTIVE) : 0;
     }
 
     public double getActiveMin() {
-        return (flowActive.getN() > 0) ? flowActive.getMin() : 0;
+        return (this.stats.getN(FLOW_ACTIVE) > 0) ? this.stats.getMin(FLOW_ACTIVE) : 0;
     }
 
     public double getIdleMean() {
-        return (flowIdle.getN() > 0) ? flowIdle.getMean() : 0;
+        return (this.stats.getN(FLOW_IDLE) > 0) ? this.stats.getMean(FLOW_IDLE) : 0;
     }
 
     public double getIdleStd() {
-        return (flowIdle.getN() > 0) ? flowIdle.getStandardDeviation() : 0;
+        return (this.stats.getN(FLOW_IDLE) > 0) ? this.stats.getStandardDeviation(FLOW_IDLE) : 0;
     }
 
     public double getIdleMax() {
-        return (flowIdle.getN() > 0) ? flowIdle.getMax() : 0;
+        return (this.stats.getN(FLOW_IDLE) > 0) ? this.stats.getMax(FLOW_IDLE) : 0;
     }
 
     public double getIdleMin() {
-        return (flowIdle.getN() > 0) ? flowIdle.getMin() : 0;
+        return (this.stats.getN(FLOW_IDLE) > 0) ? this.stats.getMin(FLOW_IDLE) : 0;
     }
 
     public TcpFlowState getTcpFlowState() {
@@ -1203,12 +1227,15 @@ public class BasicFlow {
         this.cumulativeConnectionDuration = cumCnxDuration;
     }
 
-    public Set<TcpRetransmissionDTO> getTcpPacketsSeen() {
-        return this.tcpPacketsSeen;
+    /**
+     * @return the segments seen recently on the connection, null until the flow has a TCP segment
+     */
+    public TcpRetransmissionTracker getTcpRetransmissions() {
+        return this.tcpRetransmissions;
     }
 
-    public void setTcpPacketsSeen(Set<TcpRetransmissionDTO> tcpPacketsSeen) {
-        this.tcpPacketsSeen = tcpPacketsSeen;
+    public void setTcpRetransmissions(TcpRetransmissionTracker tcpRetransmissions) {
+        this.tcpRetransmissions = tcpRetransmissions;
     }
 
     public int getIcmpCode() {
@@ -1220,7 +1247,18 @@ public class BasicFlow {
     }
 
 
+    public boolean isEvicted() {
+        return this.evicted;
+    }
+
+    public void setEvicted(boolean evicted) {
+        this.evicted = evicted;
+    }
+
     public String getLabel() {
+        if (evicted) {
+            return EVICTED_LABEL;
+        }
         //the original is "|". I think it should be "||" need to check,
 		/*if(FormatUtils.ip(src).equals("147.32.84.165") || FormatUtils.ip(dst).equals("147.32.84.165")){
 			return "BOTNET";
@@ -1231,117 +1269,146 @@ public class BasicFlow {
         return "NeedManualLabel";
     }
 
+    /**
+     * Copies the state the feature row is rendered from, so the copy can be dumped on another thread
+     * while this flow keeps receiving packets. The copy shares no mutable state with the flow, does
+     * not track retransmissions and must not be given packets.
+     */
+    public BasicFlow snapshot() {
+        BasicFlow copy;
+        try {
+            copy = (BasicFlow) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.stats = stats.copy();
+        copy.flagCounts = flagCounts.clone();
+        if (forward != null) {
+            copy.forward = new ArrayList<BasicPacketInfo>(forward);
+            copy.backward = new ArrayList<BasicPacketInfo>(backward);
+        }
+        copy.tcpRetransmissions = null;
+        return copy;
+    }
+
     public String dumpFlowBasedFeaturesEx() {
-        StringBuilder dump = new StringBuilder();
+        FeatureRowWriter row = FeatureRowWriter.local();
+        writeFeatures(row);
+        return row.toString();
+    }
+
+    /**
+     * Writes the row of {@link #dumpFlowBasedFeaturesEx()} without building intermediate strings.
+     */
+    public void writeFeatures(FeatureRowWriter out) {
 
-        dump.append(flowId).append(separator);                                        //1
-        dump.append(FormatUtils.ip(src)).append(separator);                        //2
-        dump.append(getSrcPort()).append(separator);                                //3
-        dump.append(FormatUtils.ip(dst)).append(separator);                        //4
-        dump.append(getDstPort()).append(separator);                                //5
-        dump.append(getProtocol().val).append(separator);                                //6
+        out.append(getFlowId()).comma();                                             //1
+        appendIp(out, src, true).comma();                                            //2
+        out.append(getSrcPort()).comma();                                          //3
+        appendIp(out, dst, false).comma();                                           //4
+        out.append(getDstPort()).comma();                                          //5
+        out.append(getProtocol().val).comma();                                          //6
 
-        String starttime = DateFormatter.convertEpochTimestamp2String(flowStartTime);
-        dump.append(starttime).append(separator);                                    //7
+        out.appendTimestamp(flowStartTime).comma();                                  //7
 
         long flowDuration = flowLastSeen - flowStartTime;
-        dump.append(flowDuration).append(separator);                                //8
-
-        dump.append(fwdPktStats.getN()).append(separator);                            //9
-        dump.append(bwdPktStats.getN()).append(separator);                            //10
-        dump.append(fwdPktStats.getSum()).append(separator);                        //11
-        dump.append(bwdPktStats.getSum()).append(separator);                        //12
-
-        if (fwdPktStats.getN() > 0L) {
-            dump.append(fwdPktStats.getMax()).append(separator);                    //13
-            dump.append(fwdPktStats.getMin()).append(separator);                    //14
-            dump.append(fwdPktStats.getMean()).append(separator);                    //15
-            dump.append(fwdPktStats.getStandardDeviation()).append(separator);        //16
+        out.append(flowDuration).comma();                                          //8
+
+        out.append(this.stats.getN(FWD_PKT)).comma();                                      //9
+        out.append(this.stats.getN(BWD_PKT)).comma();                                      //10
+        out.append(this.stats.getSum(FWD_PKT)).comma();                                  //11
+        out.append(this.stats.getSum(BWD_PKT)).comma();                                  //12
+
+        if (this.stats.getN(FWD_PKT) > 0L) {
+            out.append(this.stats.getMax(FWD_PKT)).comma();                              //13
+            out.append(this.stats.getMin(FWD_PKT)).comma();                              //14
+            out.append(this.stats.getMean(FWD_PKT)).comma();                              //15
+            out.append(this.stats.getStandardDeviation(FWD_PKT)).comma();                  //16
         } else {
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
         }
 
-        if (bwdPktStats.getN() > 0L) {
-            dump.append(bwdPktStats.getMax()).append(separator);                    //17
-            dump.append(bwdPktStats.getMin()).append(separator);                    //18
-            dump.append(bwdPktStats.getMean()).append(separator);                    //19
-            dump.append(bwdPktStats.getStandardDeviation()).append(separator);        //20
+        if (this.stats.getN(BWD_PKT) > 0L) {
+            out.append(this.stats.getMax(BWD_PKT)).comma();                              //17
+            out.append(this.stats.getMin(BWD_PKT)).comma();                              //18
+            out.append(this.stats.getMean(BWD_PKT)).comma();                              //19
+            out.append(this.stats.getStandardDeviation(BWD_PKT)).comma();                  //20
         } else {
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
         }
 
         if(flowDuration != 0){
-            dump.append(((double) (forwardBytes + backwardBytes)) / ((double) flowDuration / 1000000L)).append(separator); //21
-            dump.append(((double) packetCount()) / ((double) flowDuration / 1000000L)).append(separator); // 22
+            out.append(((double) (forwardBytes + backwardBytes)) / ((double) flowDuration / 1000000L)).comma();           //21
+            out.append(((double) packetCount()) / ((double) flowDuration / 1000000L)).comma();           // 22
         }else{
-            dump.append(-1).append(separator);
-            dump.append(-1).append(separator);
+            out.append(-1).comma();
+            out.append(-1).comma();
         }
 
-        dump.append(Double.isNaN(flowIAT.getMean()) ? 0 : flowIAT.getMean()).append(separator);  // 23
-        dump.append(Double.isNaN(flowIAT.getStandardDeviation()) ? 0 : flowIAT.getStandardDeviation()).append(separator); //24
-        dump.append(Double.isNaN(flowIAT.getMax()) ? 0 : flowIAT.getMax()).append(separator);    //25
-        dump.append(Double.isNaN(flowIAT.getMin()) ? 0 : flowIAT.getMin()).append(separator);                         //26
+        out.append(Double.isNaN(this.stats.getMean(FLOW_IAT)) ? 0 : this.stats.getMean(FLOW_IAT)).comma();            // 23
+        out.append(Double.isNaN(this.stats.getStandardDeviation(FLOW_IAT)) ? 0 : this.stats.getStandardDeviation(FLOW_IAT)).comma();           //24
+        out.append(Double.isNaN(this.stats.getMax(FLOW_IAT)) ? 0 : this.stats.getMax(FLOW_IAT)).comma();              //25
+        out.append(Double.isNaN(this.stats.getMin(FLOW_IAT)) ? 0 : this.stats.getMin(FLOW_IAT)).comma();                                   //26
 
-        if (this.forward.size() > 1) {
-            dump.append(forwardIAT.getSum()).append(separator);                        //27
-            dump.append(forwardIAT.getMean()).append(separator);                    //28
-            dump.append(forwardIAT.getStandardDeviation()).append(separator);        //29
-            dump.append(forwardIAT.getMax()).append(separator);                        //30
-            dump.append(forwardIAT.getMin()).append(separator);                        //31
+        if (this.forwardCount > 1) {
+            out.append(this.stats.getSum(FWD_IAT)).comma();                                  //27
+            out.append(this.stats.getMean(FWD_IAT)).comma();                              //28
+            out.append(this.stats.getStandardDeviation(FWD_IAT)).comma();                  //29
+            out.append(this.stats.getMax(FWD_IAT)).comma();                                  //30
+            out.append(this.stats.getMin(FWD_IAT)).comma();                                  //31
 
         } else {
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
         }
-        if (this.backward.size() > 1) {
-            dump.append(backwardIAT.getSum()).append(separator);                    //32
-            dump.append(backwardIAT.getMean()).append(separator);                    //33
-            dump.append(backwardIAT.getStandardDeviation()).append(separator);        //34
-            dump.append(backwardIAT.getMax()).append(separator);                    //35
-            dump.append(backwardIAT.getMin()).append(separator);                    //36
+        if (this.backwardCount > 1) {
+            out.append(this.stats.getSum(BWD_IAT)).comma();                              //32
+            out.append(this.stats.getMean(BWD_IAT)).comma();                              //33
+            out.append(this.stats.getStandardDeviation(BWD_IAT)).comma();                  //34
+            out.append(this.stats.getMax(BWD_IAT)).comma();                              //35
+            out.append(this.stats.getMin(BWD_IAT)).comma();                              //36
         } else {
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
         }
 
-        dump.append(fPSH_cnt).append(separator);                                    //37
-        dump.append(bPSH_cnt).append(separator);                                    //38
-        dump.append(fURG_cnt).append(separator);                                    //39
-        dump.append(bURG_cnt).append(separator);                                    //40
-        dump.append(fRST_cnt).append(separator);                                    //41
-        dump.append(bRST_cnt).append(separator);                                    //42
-
-        dump.append(fHeaderBytes).append(separator);                                //43
-        dump.append(bHeaderBytes).append(separator);                                //44
-        dump.append(getfPktsPerSecond()).append(separator);                            //45
-        dump.append(getbPktsPerSecond()).append(separator);                            //46
-
-
-        if (this.forward.size() > 0 || this.backward.size() > 0) {
-            dump.append(flowLengthStats.getMin()).append(separator);                //47
-            dump.append(flowLengthStats.getMax()).append(separator);                //48
-            dump.append(flowLengthStats.getMean()).append(separator);                //49
-            dump.append(flowLengthStats.getStandardDeviation()).append(separator);    //50
-            dump.append(flowLengthStats.getVariance()).append(separator);            //51
+        out.append(fPSH_cnt).comma();                                              //37
+        out.append(bPSH_cnt).comma();                                              //38
+        out.append(fURG_cnt).comma();                                              //39
+        out.append(bURG_cnt).comma();                                              //40
+        out.append(fRST_cnt).comma();                                              //41
+        out.append(bRST_cnt).comma();                                              //42
+
+        out.append(fHeaderBytes).comma();                                          //43
+        out.append(bHeaderBytes).comma();                                          //44
+        out.append(getfPktsPerSecond()).comma();                                      //45
+        out.append(getbPktsPerSecond()).comma();                                      //46
+
+
+        if (this.forwardCount > 0 || this.backwardCount > 0) {
+            out.append(this.stats.getMin(FLOW_LENGTH)).comma();                          //47
+            out.append(this.stats.getMax(FLOW_LENGTH)).comma();                          //48
+            out.append(this.stats.getMean(FLOW_LENGTH)).comma();                          //49
+            out.append(this.stats.getStandardDeviation(FLOW_LENGTH)).comma();              //50
+            out.append(this.stats.getVariance(FLOW_LENGTH)).comma();                      //51
         } else {//seem to less one
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
         }
 
 		/*for(MutableInt v:flagCounts.values()) {
@@ -1350,89 +1417,90 @@ public class BasicFlow {
 		for(String key: flagCounts.keySet()){
 			dump.append(flagCounts.get(key).value).append(separator);				//50,51,52,53,54,55,56,57
 		} */
-        dump.append(flagCounts.get("FIN").value).append(separator);                 //52
-        dump.append(flagCounts.get("SYN").value).append(separator);                 //53
-        dump.append(flagCounts.get("RST").value).append(separator);                  //54
-        dump.append(flagCounts.get("PSH").value).append(separator);                  //55
-        dump.append(flagCounts.get("ACK").value).append(separator);                  //56
-        dump.append(flagCounts.get("URG").value).append(separator);                  //57
-        dump.append(flagCounts.get("CWR").value).append(separator);                  //58
-        dump.append(flagCounts.get("ECE").value).append(separator);                  //59
-
-        dump.append(getDownUpRatio()).append(separator);                            //60
-        dump.append(getAvgPacketSize()).append(separator);                            //61
-        dump.append(fAvgSegmentSize()).append(separator);                            //62
-        dump.append(bAvgSegmentSize()).append(separator);                            //63
+        out.append(getFlagCount(BasicPacketInfo.FLAG_FIN)).comma();                           //52
+        out.append(getFlagCount(BasicPacketInfo.FLAG_SYN)).comma();                           //53
+        out.append(getFlagCount(BasicPacketInfo.FLAG_RST)).comma();                            //54
+        out.append(getFlagCount(BasicPacketInfo.FLAG_PSH)).comma();                            //55
+        out.append(getFlagCount(BasicPacketInfo.FLAG_ACK)).comma();                            //56
+        out.append(getFlagCount(BasicPacketInfo.FLAG_URG)).comma();                            //57
+        out.append(getFlagCount(BasicPacketInfo.FLAG_CWR)).comma();                            //58
+        out.append(getFlagCount(BasicPacketInfo.FLAG_ECE)).comma();                            //59
+
+        out.append(getDownUpRatio()).comma();                                      //60
+        out.append(getAvgPacketSize()).comma();                                      //61
+        out.append(fAvgSegmentSize()).comma();                                      //62
+        out.append(bAvgSegmentSize()).comma();                                      //63
         //dump.append(fHeaderBytes).append(separator);								//62 dupicate with 43
 
-        dump.append(fAvgBytesPerBulk()).append(separator);                            //64
-        dump.append(fAvgPacketsPerBulk()).append(separator);                        //65
-        dump.append(fAvgBulkRate()).append(separator);                                //66
-        dump.append(bAvgBytesPerBulk()).append(separator);                            //67
-        dump.append(bAvgPacketsPerBulk()).append(separator);                        //68
-        dump.append(bAvgBulkRate()).append(separator);                                //69
-
-        dump.append(getSflow_fpackets()).append(separator);                            //70
-        dump.append(getSflow_fbytes()).append(separator);                            //71
-        dump.append(getSflow_bpackets()).append(separator);                            //72
-        dump.append(getSflow_bbytes()).append(separator);                            //73
-
-        dump.append(Init_Win_bytes_forward).append(separator);                        //74
-        dump.append(Init_Win_bytes_backward).append(separator);                        //75
-        dump.append(Act_data_pkt_forward).append(separator);                            //76
-        dump.append(Act_data_pkt_backward).append(separator);                           //77
-        dump.append(min_seg_size_forward).append(separator);                        //78
-        dump.append(min_seg_size_backward).append(separator);                       //79
-
-
-        if (this.flowActive.getN() > 0) {
-            dump.append(flowActive.getMean()).append(separator);                    //80
-            dump.append(flowActive.getStandardDeviation()).append(separator);        //81
-            dump.append(flowActive.getMax()).append(separator);                        //82
-            dump.append(flowActive.getMin()).append(separator);                        //83
+        out.append(fAvgBytesPerBulk()).comma();                                      //64
+        out.append(fAvgPacketsPerBulk()).comma();                                  //65
+        out.append(fAvgBulkRate()).comma();                                          //66
+        out.append(bAvgBytesPerBulk()).comma();                                      //67
+        out.append(bAvgPacketsPerBulk()).comma();                                  //68
+        out.append(bAvgBulkRate()).comma();                                          //69
+
+        out.append(getSflow_fpackets()).comma();                                      //70
+        out.append(getSflow_fbytes()).comma();                                      //71
+        out.append(getSflow_bpackets()).comma();                                      //72
+        out.append(getSflow_bbytes()).comma();                                      //73
+
+        out.append(Init_Win_bytes_forward).comma();                                  //74
+        out.append(Init_Win_bytes_backward).comma();                                  //75
+        out.append(Act_data_pkt_forward).comma();                                      //76
+        out.append(Act_data_pkt_backward).comma();                                     //77
+        out.append(min_seg_size_forward).comma();                                  //78
+        out.append(min_seg_size_backward).comma();                                 //79
+
+
+        if (this.stats.getN(FLOW_ACTIVE) > 0) {
+            out.append(this.stats.getMean(FLOW_ACTIVE)).comma();                              //80
+            out.append(this.stats.getStandardDeviation(FLOW_ACTIVE)).comma();                  //81
+            out.append(this.stats.getMax(FLOW_ACTIVE)).comma();                                  //82
+            out.append(this.stats.getMin(FLOW_ACTIVE)).comma();                                  //83
         } else {
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
         }
 
-        if (this.flowIdle.getN() > 0) {
-            dump.append(flowIdle.getMean()).append(separator);                        //84
-            dump.append(flowIdle.getStandardDeviation()).append(separator);            //85
-            dump.append(flowIdle.getMax()).append(separator);                        //86
-            dump.append(flowIdle.getMin()).append(separator);                        //87
+        if (this.stats.getN(FLOW_IDLE) > 0) {
+            out.append(this.stats.getMean(FLOW_IDLE)).comma();                                  //84
+            out.append(this.stats.getStandardDeviation(FLOW_IDLE)).comma();                      //85
+            out.append(this.stats.getMax(FLOW_IDLE)).comma();                                  //86
+            out.append(this.stats.getMin(FLOW_IDLE)).comma();                                  //87
         } else {
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
-            dump.append(0).append(separator);
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
+            out.append(0).comma();
         }
 
-        dump.append(icmpCode).append(separator);                                    // 88
-        dump.append(icmpType).append(separator);                                    // 89
+        out.append(icmpCode).comma();                                              // 88
+        out.append(icmpType).comma();                                              // 89
 
-        dump.append(fwdTcpRetransCnt).append(separator);                                    // 88
-        dump.append(bwdTcpRetransCnt).append(separator);                                    // 89
-        dump.append(fwdTcpRetransCnt+bwdTcpRetransCnt).append(separator);                   // 90
+        out.append(fwdTcpRetransCnt).comma();                                              // 88
+        out.append(bwdTcpRetransCnt).comma();                                              // 89
+        out.append(fwdTcpRetransCnt+bwdTcpRetransCnt).comma();                             // 90
 
-        dump.append(cumulativeConnectionDuration).append(separator);                //91
-        dump.append(getLabel());                                                    //92
-
-        return dump.toString();
+        out.append(cumulativeConnectionDuration).comma();                          //91
+        out.append(getLabel());                                                     //92
     }
-}
 
-class MutableInt {
-    int value = 0; // note that we start at 1 since we're counting
-
-    public void increment() {
-        ++value;
-    }
-
-    public int get() {
-        return value;
+    private FeatureRowWriter appendIp(FeatureRowWriter out, byte[] address, boolean source) {
+        if (address.length == 4) {
+            return out.appendIpv4(address);
+        }
+        // other address families keep the FormatUtils text, computed once per flow
+        if (source) {
+            if (srcIpText == null) {
+                srcIpText = FormatUtils.ip(address);
+            }
+            return out.append(srcIpText);
+        }
+        if (dstIpText == null) {
+            dstIpText = FormatUtils.ip(address);
+        }
+        return out.append(dstIpText);
     }
-
-
 }
@@ -1,87 +1,152 @@
 package cic.cs.unb.ca.jnetpcap;
 
-import java.util.Arrays;
-
 import org.jnetpcap.packet.format.FormatUtils;
 
 public class BasicPacketInfo {
+
+	/* TCP flags, as the bits of the flags byte in the TCP header */
+	public static final int FLAG_FIN = 0x01;
+	public static final int FLAG_SYN = 0x02;
+	public static final int FLAG_RST = 0x04;
+	public static final int FLAG_PSH = 0x08;
+	public static final int FLAG_ACK = 0x10;
+	public static final int FLAG_URG = 0x20;
+	public static final int FLAG_ECE = 0x40;
+	public static final int FLAG_CWR = 0x80;
 	
 /*  Basic Info to generate flows from packets  	*/
     private    long id;
-    private    byte[] src;
-    private    byte[] dst;
+    // addresses as FlowTable keys them: IPv6 in two longs, IPv4 in the low 32 bits of the low one
+    private    long srcHigh;
+    private    long srcLow;
+    private    long dstHigh;
+    private    long dstLow;
+    private    boolean ipv6;
     private    int srcPort;
     private    int dstPort;
     private    ProtocolEnum protocol = ProtocolEnum.DEFAULT;
     private    long   timeStamp;
     private    long   payloadBytes;
-    private    String  flowId = null;  
 /* ******************************************** */    
-    private    boolean flagFIN = false;
-	private    boolean flagPSH = false;
-	private    boolean flagURG = false;
-	private    boolean flagECE = false;
-	private    boolean flagSYN = false;
-	private    boolean flagACK = false;
-	private    boolean flagCWR = false;
-	private    boolean flagRST = false;
+    private    byte flags;
 	private	   int TCPWindow=0;
 	private	   long headerBytes;
-	private int payloadPacket=0;
 	/* ** ICMP FIELDS ** */
 	private int icmpCode = -1;
 	private int icmpType = -1;
 
-	private TcpRetransmissionDTO tcpRetransmissionDTO;
+	/* ** TCP sequence numbers, for the retransmission check of the flow ** */
+	private boolean hasTcpSequence;
+	private long tcpSeq;
+	private long tcpAck;
 
 	public BasicPacketInfo(byte[] src, byte[] dst, int srcPort, int dstPort,
 			ProtocolEnum protocol, long timeStamp, IdGenerator generator) {
 		super();
 		this.id = generator.nextId();
-		this.src = src;
-		this.dst = dst;
+		setSrc(src);
+		setDst(dst);
 		this.srcPort = srcPort;
 		this.dstPort = dstPort;
 		this.protocol = protocol;
 		this.timeStamp = timeStamp;
-		generateFlowId();
 	}
 	
     public BasicPacketInfo(IdGenerator generator) {
 		super();
 		this.id = generator.nextId();
 	}
+
+	/**
+	 * A record for {@link PacketSource#nextPacket(BasicPacketInfo)} to fill over and over. Whoever
+	 * keeps a packet beyond the call that handed it over keeps a {@link #copy()}.
+	 */
+	public BasicPacketInfo() {
+		super();
+	}
+
+	/**
+	 * Clears every field, so the record can be filled with the next packet.
+	 */
+	public void reset() {
+		id = 0L;
+		srcHigh = 0L;
+		srcLow = 0L;
+		dstHigh = 0L;
+		dstLow = 0L;
+		ipv6 = false;
+		srcPort = 0;
+		dstPort = 0;
+		protocol = ProtocolEnum.DEFAULT;
+		timeStamp = 0L;
+		payloadBytes = 0L;
+		flags = 0;
+		TCPWindow = 0;
+		headerBytes = 0L;
+		icmpCode = -1;
+		icmpType = -1;
+		hasTcpSequence = false;
+		tcpSeq = 0L;
+		tcpAck = 0L;
+	}
+
+	public void copyFrom(BasicPacketInfo other) {
+		id = other.id;
+		srcHigh = other.srcHigh;
+		srcLow = other.srcLow;
+		dstHigh = other.dstHigh;
+		dstLow = other.dstLow;
+		ipv6 = other.ipv6;
+		srcPort = other.srcPort;
+		dstPort = other.dstPort;
+		protocol = other.protocol;
+		timeStamp = other.timeStamp;
+		payloadBytes = other.payloadBytes;
+		flags = other.flags;
+		TCPWindow = other.TCPWindow;
+		headerBytes = other.headerBytes;
+		icmpCode = other.icmpCode;
+		icmpType = other.icmpType;
+		hasTcpSequence = other.hasTcpSequence;
+		tcpSeq = other.tcpSeq;
+		tcpAck = other.tcpAck;
+	}
+
+	public BasicPacketInfo copy() {
+		BasicPacketInfo packet = new BasicPacketInfo();
+		packet.copyFrom(this);
+		return packet;
+	}
     
     
 
+	/**
+	 * Builds the id of the connection from its endpoints, lower address first. Packets do not keep
+	 * flow ids: a BasicFlow names itself when it is written out.
+	 */
 	public String generateFlowId(){
     	boolean forward = true;
+    	byte[] src = getSrc();
+    	byte[] dst = getDst();
     	
-    	for(int i=0; i<this.src.length;i++){           
-    		if(((Byte)(this.src[i])).intValue() != ((Byte)(this.dst[i])).intValue()){
-    			if(((Byte)(this.src[i])).intValue() >((Byte)(this.dst[i])).intValue()){
+    	for(int i=0; i<src.length;i++){           
+    		if(((Byte)(src[i])).intValue() != ((Byte)(dst[i])).intValue()){
+    			if(((Byte)(src[i])).intValue() >((Byte)(dst[i])).intValue()){
     				forward = false;
     			}
-    			i=this.src.length;
+    			i=src.length;
     		}
     	}     	
     	
-        if(forward){
-            this.flowId = this.getSourceIP() + "-" + this.getDestinationIP() + "-" + this.srcPort  + "-" + this.dstPort  + "-" + this.protocol.val;
-        }else{
-            this.flowId = this.getDestinationIP() + "-" + this.getSourceIP() + "-" + this.dstPort  + "-" + this.srcPort  + "-" + this.protocol.val;
-        }
-        return this.flowId;
+        return forward ? fwdFlowId() : bwdFlowId();
 	}
 
  	public String fwdFlowId() {  
-		this.flowId = this.getSourceIP() + "-" + this.getDestinationIP() + "-" + this.srcPort  + "-" + this.dstPort  + "-" + this.protocol.val;
-		return this.flowId;
+		return this.getSourceIP() + "-" + this.getDestinationIP() + "-" + this.srcPort  + "-" + this.dstPort  + "-" + this.protocol.val;
 	}
 	
 	public String bwdFlowId() {  
-		this.flowId = this.getDestinationIP() + "-" + this.getSourceIP() + "-" + this.dstPort  + "-" + this.srcPort  + "-" + this.protocol.val;
-		return this.flowId;
+		return this.getDestinationIP() + "-" + this.getSourceIP() + "-" + this.dstPort  + "-" + this.srcPort  + "-" + this.protocol.val;
 	}
 
 
@@ -89,17 +154,14 @@ public class BasicPacketInfo {
 	public String dumpInfo() {
 		return null;
 	}
-	public int getPayloadPacket() {
-		return payloadPacket+=1;
-	}
           
     
     public String getSourceIP(){
-    	return FormatUtils.ip(this.src);
+    	return FormatUtils.ip(getSrc());
     }
 
     public String getDestinationIP(){
-    	return FormatUtils.ip(this.dst);
+    	return FormatUtils.ip(getDst());
     }
     
     
@@ -111,20 +173,63 @@ public class BasicPacketInfo {
 		this.id = id;
 	}
 
+	/**
+	 * @return a new array with the source address; the flow engine only asks for it when it keeps the address
+	 */
 	public byte[] getSrc() {
-		return Arrays.copyOf(src,src.length);
+		return toAddress(srcHigh, srcLow, ipv6);
 	}
 
 	public void setSrc(byte[] src) {
-		this.src = src;
+		this.ipv6 = src.length == 16;
+		this.srcHigh = addressHigh(src);
+		this.srcLow = addressLow(src);
 	}
 
 	public byte[] getDst() {
-		return Arrays.copyOf(dst,dst.length);
+		return toAddress(dstHigh, dstLow, ipv6);
 	}
 
 	public void setDst(byte[] dst) {
-		this.dst = dst;
+		this.ipv6 = dst.length == 16;
+		this.dstHigh = addressHigh(dst);
+		this.dstLow = addressLow(dst);
+	}
+
+	public void setIpv4(int src, int dst) {
+		this.ipv6 = false;
+		this.srcHigh = 0L;
+		this.srcLow = src & 0xFFFFFFFFL;
+		this.dstHigh = 0L;
+		this.dstLow = dst & 0xFFFFFFFFL;
+	}
+
+	public void setIpv6(long srcHigh, long srcLow, long dstHigh, long dstLow) {
+		this.ipv6 = true;
+		this.srcHigh = srcHigh;
+		this.srcLow = srcLow;
+		this.dstHigh = dstHigh;
+		this.dstLow = dstLow;
+	}
+
+	public boolean isIpv6() {
+		return ipv6;
+	}
+
+	public long getSrcHigh() {
+		return srcHigh;
+	}
+
+	public long getSrcLow() {
+		return srcLow;
+	}
+
+	public long getDstHigh() {
+		return dstHigh;
+	}
+
+	public long getDstLow() {
+		return dstLow;
 	}
 
 	public int getSrcPort() {
@@ -160,15 +265,14 @@ public class BasicPacketInfo {
 	}
 
 	public String getFlowId() {
-		return this.flowId!=null?this.flowId:generateFlowId();
-	}
-
-	public void setFlowId(String flowId) {		
-		this.flowId = flowId;
+		return generateFlowId();
 	}
 
+	/**
+	 * @return true if the packet comes from the given address, compared without copying it
+	 */
 	public boolean isForwardPacket(byte[] sourceIP) {
-		return Arrays.equals(sourceIP, this.src);
+		return sourceIP.length == (ipv6 ? 16 : 4) && addressLow(sourceIP) == srcLow && addressHigh(sourceIP) == srcHigh;
 	}
 
 	public long getPayloadBytes() {
@@ -187,68 +291,83 @@ public class BasicPacketInfo {
 		this.headerBytes = headerBytes;
 	}
 
+	/**
+	 * @return the TCP flags of the packet, a combination of the FLAG_ bits
+	 */
+	public int getFlags() {
+		return flags & 0xff;
+	}
+
+	public void setFlags(int flags) {
+		this.flags = (byte) flags;
+	}
+
+	private void setFlag(int flag, boolean set) {
+		this.flags = (byte) (set ? flags | flag : flags & ~flag);
+	}
+
 	public boolean hasFlagFIN() {
-		return flagFIN;
+		return (flags & FLAG_FIN) != 0;
 	}
 
 	public void setFlagFIN(boolean flagFIN) {
-		this.flagFIN = flagFIN;
+		setFlag(FLAG_FIN, flagFIN);
 	}
 
 	public boolean hasFlagPSH() {
-		return flagPSH;
+		return (flags & FLAG_PSH) != 0;
 	}
 
 	public void setFlagPSH(boolean flagPSH) {
-		this.flagPSH = flagPSH;
+		setFlag(FLAG_PSH, flagPSH);
 	}
 
 	public boolean hasFlagURG() {
-		return flagURG;
+		return (flags & FLAG_URG) != 0;
 	}
 
 	public void setFlagURG(boolean flagURG) {
-		this.flagURG = flagURG;
+		setFlag(FLAG_URG, flagURG);
 	}
 
 	public boolean hasFlagECE() {
-		return flagECE;
+		return (flags & FLAG_ECE) != 0;
 	}
 
 	public void setFlagECE(boolean flagECE) {
-		this.flagECE = flagECE;
+		setFlag(FLAG_ECE, flagECE);
 	}
 
 	public boolean hasFlagSYN() {
-		return flagSYN;
+		return (flags & FLAG_SYN) != 0;
 	}
 
 	public void setFlagSYN(boolean flagSYN) {
-		this.flagSYN = flagSYN;
+		setFlag(FLAG_SYN, flagSYN);
 	}
 
 	public boolean hasFlagACK() {
-		return flagACK;
+		return (flags & FLAG_ACK) != 0;
 	}
 
 	public void setFlagACK(boolean flagACK) {
-		this.flagACK = flagACK;
+		setFlag(FLAG_ACK, flagACK);
 	}
 
 	public boolean hasFlagCWR() {
-		return flagCWR;
+		return (flags & FLAG_CWR) != 0;
 	}
 
 	public void setFlagCWR(boolean flagCWR) {
-		this.flagCWR = flagCWR;
+		setFlag(FLAG_CWR, flagCWR);
 	}
 
 	public boolean hasFlagRST() {
-		return flagRST;
+		return (flags & FLAG_RST) != 0;
 	}
 
 	public void setFlagRST(boolean flagRST) {
-		this.flagRST = flagRST;
+		setFlag(FLAG_RST, flagRST);
 	}
 
 	public int getTCPWindow(){
@@ -275,11 +394,49 @@ public class BasicPacketInfo {
 		this.icmpType = icmpType;
 	}
 
-	public TcpRetransmissionDTO tcpRetransmissionDTO(){
-		return this.tcpRetransmissionDTO;
+	public boolean hasTcpSequence() {
+		return hasTcpSequence;
+	}
+
+	public long getTcpSeq() {
+		return tcpSeq;
+	}
+
+	public long getTcpAck() {
+		return tcpAck;
+	}
+
+	public void setTcpSequence(long seq, long ack) {
+		this.hasTcpSequence = true;
+		this.tcpSeq = seq;
+		this.tcpAck = ack;
+	}
+
+	static long addressHigh(byte[] address) {
+		return address.length == 16 ? bytesToLong(address, 0) : 0L;
+	}
+
+	static long addressLow(byte[] address) {
+		if (address.length == 16) {
+			return bytesToLong(address, 8);
+		}
+		return (address[0] & 0xFFL) << 24 | (address[1] & 0xFFL) << 16 | (address[2] & 0xFFL) << 8 | (address[3] & 0xFFL);
+	}
+
+	static byte[] toAddress(long high, long low, boolean ipv6) {
+		byte[] address = new byte[ipv6 ? 16 : 4];
+		int last = address.length - 1;
+		for (int i = 0; i <= last; i++) {
+			address[last - i] = (byte) (i < 8 ? low >>> (i << 3) : high >>> ((i - 8) << 3));
+		}
+		return address;
 	}
 
-	public void setTcpRetransmissionDTO(TcpRetransmissionDTO tcpRetransmissionDTO) {
-		this.tcpRetransmissionDTO = tcpRetransmissionDTO;
+	private static long bytesToLong(byte[] b, int off) {
+		long v = 0;
+		for (int i = off; i < off + 8; i++) {
+			v = v << 8 | (b[i] & 0xFFL);
+		}
+		return v;
 	}
 }
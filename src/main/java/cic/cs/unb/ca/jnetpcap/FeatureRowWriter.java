@@ -0,0 +1,209 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * Formats one CSV row of flow features into a reusable byte array.
+ *
+ * The text is byte-identical to what StringBuilder.append produces for the same values:
+ * - integral doubles below 1e7 are written as "N.0" without going through Double.toString,
+ *   all other doubles use the JDK digit generation on a reused builder, because Double.toString
+ *   differs between JDK versions and the CSV has to stay what the running JDK always produced;
+ * - IPv4 addresses are written as dotted decimal, like FormatUtils.ip;
+ * - timestamps follow DateFormatter.convertEpochTimestamp2String, with the "yyyy-MM-dd HH:mm:ss"
+ *   prefix of recently seen seconds cached.
+ *
+ * Not thread-safe: use {@link #local()} or one instance per writer thread.
+ */
+public class FeatureRowWriter {
+
+    private static final ThreadLocal<FeatureRowWriter> LOCAL = ThreadLocal.withInitial(FeatureRowWriter::new);
+
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0);
+    private static final double MAX_PLAIN_INTEGRAL = 1e7;
+    // DateFormatter saturates when converting later timestamps to nanoseconds (year 2262)
+    private static final long MAX_PLAIN_MICROS = Long.MAX_VALUE / 1000L;
+    private static final int PREFIX_LENGTH = 19;
+    private static final int PREFIX_CACHE_SIZE = 256;
+
+    private byte[] buf = new byte[1024];
+    private int len;
+    private final StringBuilder scratch = new StringBuilder(32);
+    private final byte[] digits = new byte[20];
+
+    private final long[] prefixSeconds = new long[PREFIX_CACHE_SIZE];
+    private final byte[] prefixes = new byte[PREFIX_CACHE_SIZE * PREFIX_LENGTH];
+
+    public FeatureRowWriter() {
+        Arrays.fill(prefixSeconds, -1L);
+    }
+
+    /**
+     * @return the writer of the calling thread, emptied
+     */
+    public static FeatureRowWriter local() {
+        return LOCAL.get().reset();
+    }
+
+    public FeatureRowWriter reset() {
+        len = 0;
+        return this;
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public int length() {
+        return len;
+    }
+
+    public FeatureRowWriter comma() {
+        ensure(1);
+        buf[len++] = ',';
+        return this;
+    }
+
+    public FeatureRowWriter append(String s) {
+        if (s == null) {
+            s = "null";
+        }
+        int n = s.length();
+        ensure(n);
+        int start = len;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                len = start;
+                byte[] bytes = s.getBytes();
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, len, bytes.length);
+                len += bytes.length;
+                return this;
+            }
+            buf[len++] = (byte) c;
+        }
+        return this;
+    }
+
+    public FeatureRowWriter append(long v) {
+        if (v == Long.MIN_VALUE) {
+            return append(Long.toString(v));
+        }
+        ensure(20);
+        if (v < 0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        int n = digits.length - i;
+        System.arraycopy(digits, i, buf, len, n);
+        len += n;
+        return this;
+    }
+
+    public FeatureRowWriter append(double v) {
+        if (v == (long) v && Math.abs(v) < MAX_PLAIN_INTEGRAL && Double.doubleToRawLongBits(v) != NEGATIVE_ZERO_BITS) {
+            append((long) v);
+            ensure(2);
+            buf[len++] = '.';
+            buf[len++] = '0';
+            return this;
+        }
+        scratch.setLength(0);
+        scratch.append(v);
+        int n = scratch.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            buf[len++] = (byte) scratch.charAt(i);
+        }
+        return this;
+    }
+
+    public FeatureRowWriter appendIpv4(byte[] address) {
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                ensure(1);
+                buf[len++] = '.';
+            }
+            append(address[i] & 0xFF);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a microsecond epoch timestamp as DateFormatter.convertEpochTimestamp2String does.
+     */
+    public FeatureRowWriter appendTimestamp(long micros) {
+        if (micros < 0 || micros > MAX_PLAIN_MICROS) {
+            return append(DateFormatter.convertEpochTimestamp2String(micros));
+        }
+        long second = micros / 1000000L;
+        int slot = (int) (second & (PREFIX_CACHE_SIZE - 1));
+        int offset = slot * PREFIX_LENGTH;
+        if (prefixSeconds[slot] != second) {
+            formatPrefix(second, offset);
+            prefixSeconds[slot] = second;
+        }
+        ensure(PREFIX_LENGTH + 7);
+        System.arraycopy(prefixes, offset, buf, len, PREFIX_LENGTH);
+        len += PREFIX_LENGTH;
+
+        // Instant.toString prints the fraction in groups of three digits, as many as needed
+        int fraction = (int) (micros % 1000000L);
+        if (fraction != 0) {
+            buf[len++] = '.';
+            if (fraction % 1000 == 0) {
+                putDigits(fraction / 1000, 3);
+            } else {
+                putDigits(fraction, 6);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len);
+    }
+
+    private void formatPrefix(long second, int offset) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+        byte[] p = prefixes;
+        writeDigits(p, offset, time.getYear(), 4);
+        p[offset + 4] = '-';
+        writeDigits(p, offset + 5, time.getMonthValue(), 2);
+        p[offset + 7] = '-';
+        writeDigits(p, offset + 8, time.getDayOfMonth(), 2);
+        p[offset + 10] = ' ';
+        writeDigits(p, offset + 11, time.getHour(), 2);
+        p[offset + 13] = ':';
+        writeDigits(p, offset + 14, time.getMinute(), 2);
+        p[offset + 16] = ':';
+        writeDigits(p, offset + 17, time.getSecond(), 2);
+    }
+
+    private void putDigits(int value, int width) {
+        writeDigits(buf, len, value, width);
+        len += width;
+    }
+
+    private static void writeDigits(byte[] dst, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, len + extra));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package cic.cs.unb.ca.jnetpcap;
+
+/**
+ * Collects the columns {@link BasicFlow#writeFeatures(FeatureRowWriter)} writes as doubles instead of
+ * formatting them, so a flow can be scored with exactly the values of its CSV row without going
+ * through text. Columns that are not numbers (flow id, addresses, timestamp, label) read as NaN.
+ *
+ * Not thread-safe, the values are overwritten by the next row.
+ */
+public class FeatureVectorWriter extends FeatureRowWriter {
+
+    private final double[] values;
+    private int column;
+
+    public FeatureVectorWriter() {
+        this(FlowFeature.values().length);
+    }
+
+    public FeatureVectorWriter(int columns) {
+        values = new double[columns];
+    }
+
+    /**
+     * @return the value of every column of the last row, indexed like {@link FlowFeature#values()}
+     */
+    public double[] values() {
+        return values;
+    }
+
+    @Override
+    public FeatureVectorWriter reset() {
+        column = 0;
+        return this;
+    }
+
+    @Override
+    public FeatureVectorWriter comma() {
+        column++;
+        return this;
+    }
+
+    @Override
+    public FeatureVectorWriter append(String s) {
+        return set(Double.NaN);
+    }
+
+    @Override
+    public FeatureVectorWriter append(long v) {
+        return set(v);
+    }
+
+    @Override
+    public FeatureVectorWriter append(double v) {
+        return set(v);
+    }
+
+    @Override
+    public FeatureVectorWriter appendIpv4(byte[] address) {
+        return set(Double.NaN);
+    }
+
+    @Override
+    public FeatureVectorWriter appendTimestamp(long micros) {
+        return set(Double.NaN);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < column && i < values.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(values[i]);
+        }
+        return out.toString();
+    }
+
+    private FeatureVectorWriter set(double v) {
+        if (column < values.length) {
+            values[column] = v;
+        }
+        return this;
+    }
+}
@@ -4,10 +4,13 @@ import cic.cs.unb.ca.jnetpcap.worker.FlowGenListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.function.Consumer;
 
 import static cic.cs.unb.ca.jnetpcap.Utils.LINE_SEP;
 
@@ -37,7 +40,7 @@ public class FlowGenerator {
 
     //40/86
     private FlowGenListener mListener;
-    private HashMap<String, BasicFlow> currentFlows;
+    private FlowTable<BasicFlow> currentFlows;
     private HashMap<Integer, BasicFlow> finishedFlows;
     private HashMap<String, ArrayList> IPAddresses;
 
@@ -45,23 +48,130 @@ public class FlowGenerator {
     private boolean bidirectional;
     private long flowTimeOut;
     private long flowActivityTimeOut;
+    private long flowIdleTimeOut;
     private int finishedFlowCount;
+    private TimerWheel<BasicFlow> expiryWheel;
+
+    // bound on the open flows, 0 for none; see setFlowLimit
+    private int maxFlows;
+    private EvictionPolicy evictionPolicy;
+    private int synAdmissionLimit;
+    // read by monitoring threads, written by the thread adding packets only
+    private volatile long evictedFlows;
+    private volatile long refusedFlows;
+    // wheel entries left behind by evicted flows since the last purge
+    private int staleEntries;
+    private long sampleState = 0x9E3779B97F4A7C15L;
+
+    // TCP/UDP connections whose flow expired while idle, so a packet that resumes one continues it; see setResumableFlows
+    private FlowTable<ExpiredConnection> expiredConnections;
+    private ArrayDeque<ExpiredConnection> expiryOrder;
+    private int resumableFlows;
 
     private static final List<ProtocolEnum> TCP_UDP_LIST_FILTER = Arrays.asList(ProtocolEnum.TCP, ProtocolEnum.UDP);
+    // open flows compared to pick one to evict, as in an approximated LRU
+    private static final int EVICTION_SAMPLES = 8;
+
+    /**
+     * How a generator at its flow limit makes room for a new flow.
+     */
+    public enum EvictionPolicy {
+        /** evict the flow that has gone longest without a packet */
+        OLDEST,
+        /** evict the flow with the fewest packets, the oldest of them on a tie */
+        SMALLEST,
+        /** refuse flows opened by a lone SYN once the table is cfm.synAdmissionPercent full, then evict as OLDEST */
+        SYN_ADMISSION;
+
+        /**
+         * Policy from the cfm.evictionPolicy system property, OLDEST by default.
+         */
+        public static EvictionPolicy fromProperty() {
+            String name = System.getProperty("cfm.evictionPolicy", OLDEST.name());
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown cfm.evictionPolicy {}, using {}", name, OLDEST);
+                return OLDEST;
+            }
+        }
+
+        boolean prefers(BasicFlow candidate, BasicFlow victim) {
+            if (this == SMALLEST && candidate.packetCount() != victim.packetCount()) {
+                return candidate.packetCount() < victim.packetCount();
+            }
+            return candidate.getLastSeen() < victim.getLastSeen();
+        }
+    }
 
     public FlowGenerator(boolean bidirectional, long flowTimeout, long activityTimeout) {
+        this(bidirectional, flowTimeout, activityTimeout, flowTimeout);
+    }
+
+    /**
+     * @param idleTimeout a flow that has seen no packet for this long, and has reached the flow timeout,
+     *                    is finished without waiting for another packet of the same flow
+     */
+    public FlowGenerator(boolean bidirectional, long flowTimeout, long activityTimeout, long idleTimeout) {
         super();
         this.bidirectional = bidirectional;
         this.flowTimeOut = flowTimeout;
         this.flowActivityTimeOut = activityTimeout;
+        this.flowIdleTimeOut = idleTimeout;
         init();
     }
 
     private void init() {
-        currentFlows = new HashMap<>();
+        currentFlows = new FlowTable<>();
+        expiryWheel = new TimerWheel<>();
         finishedFlows = new HashMap<>();
         IPAddresses = new HashMap<>();
         finishedFlowCount = 0;
+        setFlowLimit(defaultMaxFlows(), EvictionPolicy.fromProperty());
+        expiredConnections = new FlowTable<>();
+        expiryOrder = new ArrayDeque<>();
+        setResumableFlows(defaultResumableFlows());
+    }
+
+    /**
+     * Bound on the open flows of one generator from the cfm.maxFlows system property, 0 (unbounded) by default.
+     */
+    public static int defaultMaxFlows() {
+        return Math.max(0, Integer.getInteger("cfm.maxFlows", 0));
+    }
+
+    /**
+     * Bounds the open flows, so traffic with many spoofed 5-tuples cannot exhaust the heap. A new flow
+     * that finds the table full first finishes an open one, picked by the policy among a few sampled
+     * flows; the evicted flow is handed over like any finished flow, labelled {@link BasicFlow#EVICTED_LABEL}.
+     * @param maxFlows the most open flows, 0 for no bound
+     */
+    public void setFlowLimit(int maxFlows, EvictionPolicy policy) {
+        this.maxFlows = maxFlows;
+        this.evictionPolicy = policy;
+        int percent = Math.min(100, Math.max(0, Integer.getInteger("cfm.synAdmissionPercent", 80)));
+        this.synAdmissionLimit = (int) ((long) maxFlows * percent / 100);
+    }
+
+    /**
+     * Expired connections remembered at once, over all generators, from the cfm.resumableFlows system property.
+     */
+    public static int defaultResumableFlows() {
+        return Math.max(0, Integer.getInteger("cfm.resumableFlows", 65536));
+    }
+
+    /**
+     * Bounds the TCP and UDP connections remembered after their flow expired for lack of packets. A packet
+     * that resumes a remembered connection starts a flow that continues it, with the orientation, flow id,
+     * cumulative connection duration and the last segments of the retransmission window of the expired flow,
+     * just like a flow split by the flow timeout. Beyond the bound the connections that expired first are
+     * forgotten, and a packet resuming one of them starts an unrelated flow. A remembered TCP connection
+     * takes about 0.65 KB, a UDP connection 0.4 KB, outside the bound on open flows.
+     * @param resumableFlows the most connections remembered, 0 to remember none
+     */
+    public void setResumableFlows(int resumableFlows) {
+        this.resumableFlows = resumableFlows;
+        forgetExpired(resumableFlows);
     }
 
     public void addFlowListener(FlowGenListener listener) {
@@ -75,17 +185,13 @@ public class FlowGenerator {
 
         BasicFlow flow;
         long currentTimestamp = packet.getTimeStamp();
-        String id;
 
-        if (this.currentFlows.containsKey(packet.fwdFlowId()) || this.currentFlows.containsKey(packet.bwdFlowId())) {
+        // a single probe resolves the flow regardless of the packet direction
+        int slot = this.currentFlows.find(packet);
 
-            if (this.currentFlows.containsKey(packet.fwdFlowId())) {
-                id = packet.fwdFlowId();
-            } else {
-                id = packet.bwdFlowId();
-            }
+        if (slot >= 0) {
 
-            flow = currentFlows.get(id); //The existing (original flow) that the packet is associated with
+            flow = currentFlows.get(slot); //The existing (original flow) that the packet is associated with
 
             // Flow finished due flowtimeout:
             // 1.- we move the flow to finished flow list
@@ -107,7 +213,9 @@ public class FlowGenerator {
                     finishedFlows.put(getFlowCount(), flow);
                     //flow.endActiveIdleTime(currentTimestamp,this.flowActivityTimeOut, this.flowTimeOut, false);
                 }
-                currentFlows.remove(id);  // Remove the expired flow from the current flow list
+
+                // The replacing flow keeps the id of the connection it belongs to
+                String connectionId = flow.getFlowId();
 
                 // Create a new UDP flow if activity time difference between the current UDP packet, and the last
                 // packet in the previous flow is greater than the flow activity timeout. This is to soften the issue
@@ -128,25 +236,26 @@ public class FlowGenerator {
                 ) {
                     if(packet.hasFlagSYN() && packet.hasFlagACK()) {
                         // create new flow, switch direction - we assume the PCAP file had a mistake where SYN-ACK arrived before SYN packet
-                        currentFlows.put(id, new BasicFlow(bidirectional,packet,packet.getDst(),packet.getSrc(),packet.getDstPort(),
-                                packet.getSrcPort(), this.flowActivityTimeOut));
+                        currentFlows.set(slot, track(renamed(new BasicFlow(bidirectional,packet,packet.getDst(),packet.getSrc(),packet.getDstPort(),
+                                packet.getSrcPort(), this.flowActivityTimeOut), connectionId)), false);
                     } else {
                         // Packet only has SYN, no ACK
-                        currentFlows.put(id, new BasicFlow(bidirectional,packet,packet.getSrc(),packet.getDst(),packet.getSrcPort(),
-                                packet.getDstPort(), this.flowActivityTimeOut));
+                        currentFlows.set(slot, track(renamed(new BasicFlow(bidirectional,packet,packet.getSrc(),packet.getDst(),packet.getSrcPort(),
+                                packet.getDstPort(), this.flowActivityTimeOut), connectionId)), true);
                     }
                 } else {
                   // Otherwise, the previous flow was likely terminated because of a timeout, and the new flow has to
                   // maintain the same source and destination information as the previous flow (since they're part of the
                   // same TCP connection or UDP "dialogue".
                     BasicFlow newFlow = new BasicFlow(bidirectional,packet,flow.getSrc(),flow.getDst(),flow.getSrcPort(),
-                            flow.getDstPort(), this.flowActivityTimeOut, flow.getTcpPacketsSeen());
+                            flow.getDstPort(), this.flowActivityTimeOut, flow.getTcpRetransmissions());
+                    newFlow.setFlowId(connectionId);
 
                     long currDuration = flow.getCumulativeConnectionDuration();
                     // get the gap between the last flow and the start of this flow
                     currDuration += (currentTimestamp - flow.getLastSeen());
                     newFlow.setCumulativeConnectionDuration(currDuration);
-                    currentFlows.put(id, newFlow);
+                    currentFlows.set(slot, track(newFlow), currentFlows.isForward(slot));
                 }
 
                 int cfsize = currentFlows.size();
@@ -173,12 +282,10 @@ public class FlowGenerator {
                         flow.setTcpFlowState(TcpFlowState.SECOND_FIN_FLAG_RECEIVED);
                     }
                 }
-                currentFlows.put(id, flow);
             } else if (packet.hasFlagRST()) {
                 flow.updateActiveIdleTime(currentTimestamp, this.flowActivityTimeOut);
                 flow.addPacket(packet);
                 flow.setTcpFlowState(TcpFlowState.READY_FOR_TERMINATION);
-                currentFlows.put(id, flow);
             } else if (packet.hasFlagACK()) {
                 flow.updateActiveIdleTime(currentTimestamp, this.flowActivityTimeOut);
                 flow.addPacket(packet);
@@ -187,7 +294,6 @@ public class FlowGenerator {
                 if (flow.getTcpFlowState() == TcpFlowState.SECOND_FIN_FLAG_RECEIVED) {
                     flow.setTcpFlowState(TcpFlowState.READY_FOR_TERMINATION);
                 }
-                currentFlows.put(id, flow);
             } else if (flow.getProtocol() == ProtocolEnum.ICMP) {
                 // create a new flow if the icmp code and types are different
                 if (flow.getIcmpCode() != packet.getIcmpCode() &&
@@ -198,33 +304,280 @@ public class FlowGenerator {
                     } else {
                         finishedFlows.put(getFlowCount(), flow);
                     }
-                    currentFlows.remove(id);
 
                     // create new flow
-                    currentFlows.put(id, new BasicFlow(bidirectional,packet,packet.getSrc(),packet.getDst(),packet.getSrcPort(),
-                            packet.getDstPort(), this.flowActivityTimeOut));
+                    currentFlows.set(slot, track(renamed(new BasicFlow(bidirectional,packet,packet.getSrc(),packet.getDst(),packet.getSrcPort(),
+                            packet.getDstPort(), this.flowActivityTimeOut), flow.getFlowId())), true);
 
                 } else {
                     // normal behavior
                     flow.updateActiveIdleTime(currentTimestamp, this.flowActivityTimeOut);
                     flow.addPacket(packet);
-                    currentFlows.put(id, flow);
                 }
             } else { // default
                 flow.updateActiveIdleTime(currentTimestamp, this.flowActivityTimeOut);
                 flow.addPacket(packet);
-                currentFlows.put(id, flow);
             }
-        } else { // not part of an existing flow
+        } else if (admit(packet)) { // not part of an existing flow
+
+            if (maxFlows > 0 && currentFlows.size() >= maxFlows) {
+                evictFlow();
+                // eviction moves entries of the table, so the packet has to be probed again
+                slot = currentFlows.find(packet);
+            }
 
-            if(packet.hasFlagSYN() && packet.hasFlagACK()){
-                currentFlows.put(packet.bwdFlowId(), new BasicFlow(bidirectional,packet,packet.getDst(),packet.getSrc(),packet.getDstPort(),
-                        packet.getSrcPort(), this.flowActivityTimeOut));
+            ExpiredConnection expired = takeExpired(packet);
+            if (expired != null && expired.continuedBy(packet, flowTimeOut)) {
+                // the connection only went quiet: continue it as if its flow had been split by the flow timeout
+                BasicFlow newFlow = new BasicFlow(bidirectional, packet, expired.src, expired.dst, expired.srcPort,
+                        expired.dstPort, this.flowActivityTimeOut, expired.tcpRetransmissions);
+                newFlow.setFlowId(expired.flowId);
+                newFlow.setCumulativeConnectionDuration(expired.cumulativeConnectionDuration + (currentTimestamp - expired.lastSeen));
+                currentFlows.insert(slot, track(newFlow), expired.packetIsFlowSrc);
+            } else if(packet.hasFlagSYN() && packet.hasFlagACK()){
+                // a new flow is named after its own endpoints when it is written out, unless it replaces one
+                currentFlows.insert(slot, track(renamed(new BasicFlow(bidirectional,packet,packet.getDst(),packet.getSrc(),packet.getDstPort(),
+                        packet.getSrcPort(), this.flowActivityTimeOut), expired == null ? null : expired.flowId)), false);
             }
             else {
-                currentFlows.put(packet.fwdFlowId(), new BasicFlow(bidirectional, packet, this.flowActivityTimeOut));
+                currentFlows.insert(slot, track(renamed(new BasicFlow(bidirectional, packet, this.flowActivityTimeOut),
+                        expired == null ? null : expired.flowId)), true);
             }
         }
+
+        // flows that went quiet are finished once the capture clock passes their deadline; the packet is
+        // handled first so a flow that receives a packet is split exactly as before
+        advanceTime(currentTimestamp);
+    }
+
+    /**
+     * Finishes every flow whose deadline lies before the given timestamp (in microseconds).
+     * Called for each packet with its timestamp; live captures also call it with the wall clock so
+     * flows are delivered when no packets arrive.
+     */
+    public void advanceTime(long timestamp) {
+        expiryWheel.advance(timestamp, flowExpiry);
+    }
+
+    /**
+     * @return the open flow the packet belongs to, or null if there is none
+     */
+    public BasicFlow currentFlow(BasicPacketInfo packet) {
+        int slot = currentFlows.find(packet);
+        return slot >= 0 ? currentFlows.get(slot) : null;
+    }
+
+    /**
+     * @return flows finished early to make room under the flow limit
+     */
+    public long getEvictedFlowCount() {
+        return evictedFlows;
+    }
+
+    /**
+     * @return lone SYN packets that were not given a flow by {@link EvictionPolicy#SYN_ADMISSION}
+     */
+    public long getRefusedFlowCount() {
+        return refusedFlows;
+    }
+
+    public List<BasicFlow> getCurrentFlows() {
+        return currentFlows.values();
+    }
+
+    /**
+     * @return number of open flows; a monitoring thread may read a slightly stale value
+     */
+    public int getActiveFlowCount() {
+        return currentFlows.size();
+    }
+
+    /**
+     * Takes over a flow that is still open in another generator, e.g. one that crosses the boundary
+     * between two slices of a capture file. The flow then expires and receives packets as if it had
+     * been created here.
+     */
+    public void adopt(BasicFlow flow) {
+        int slot = currentFlows.find(flow);
+        if (slot >= 0) {
+            throw new IllegalStateException("A flow is already open for " + flow.getFlowId());
+        }
+        currentFlows.insert(slot, track(flow), true);
+    }
+
+    private boolean admit(BasicPacketInfo packet) {
+        if (evictionPolicy == EvictionPolicy.SYN_ADMISSION && maxFlows > 0 && packet.hasFlagSYN()
+                && !packet.hasFlagACK() && currentFlows.size() >= synAdmissionLimit) {
+            refusedFlows++;
+            return false;
+        }
+        return true;
+    }
+
+    private void evictFlow() {
+        int victim = -1;
+        for (int i = 0; i < EVICTION_SAMPLES; i++) {
+            // xorshift, good enough to spread the samples over the table
+            sampleState ^= sampleState << 13;
+            sampleState ^= sampleState >>> 7;
+            sampleState ^= sampleState << 17;
+            int slot = currentFlows.occupiedSlot((int) sampleState);
+            if (victim < 0 || evictionPolicy.prefers(currentFlows.get(slot), currentFlows.get(victim))) {
+                victim = slot;
+            }
+        }
+        BasicFlow flow = currentFlows.get(victim);
+        currentFlows.remove(victim);
+        if (evictedFlows == 0) {
+            logger.warn("{} open flows reached, evicting flows by {}", maxFlows, evictionPolicy);
+        }
+        evictedFlows++;
+
+        flow.setEvicted(true);
+        if (TCP_UDP_LIST_FILTER.contains(flow.getProtocol())) {
+            updateTcpUdpCxnDuration(flow);
+        }
+        if (mListener != null) {
+            mListener.onFlowGenerated(flow);
+        } else {
+            finishedFlows.put(getFlowCount(), flow);
+        }
+
+        // the wheel would hold on to evicted flows until their deadline, which is what the limit is meant to avoid
+        if (++staleEntries > maxFlows) {
+            expiryWheel.purge(flowExpiry);
+            staleEntries = 0;
+        }
+    }
+
+    private void rememberExpired(BasicFlow flow) {
+        if (resumableFlows <= 0 || !TCP_UDP_LIST_FILTER.contains(flow.getProtocol())) {
+            return;
+        }
+        ExpiredConnection expired = new ExpiredConnection(flow);
+        // stored with the flow source as the probed source, so isForward later tells the side of a packet
+        int slot = expiredConnections.find(flow);
+        if (slot >= 0) {
+            expiredConnections.set(slot, expired, true);
+        } else {
+            expiredConnections.insert(slot, expired, true);
+        }
+        expiryOrder.addLast(expired);
+        forgetExpired(resumableFlows);
+    }
+
+    private void forgetExpired(int keep) {
+        while (expiryOrder.size() > keep) {
+            ExpiredConnection oldest = expiryOrder.pollFirst();
+            int slot = expiredConnections.find(oldest.src, oldest.srcPort, oldest.dst, oldest.dstPort, oldest.protocol.val);
+            // the connection may have been resumed, or have expired again since
+            if (slot >= 0 && expiredConnections.get(slot) == oldest) {
+                expiredConnections.remove(slot);
+            }
+        }
+    }
+
+    /**
+     * @return the remembered connection the packet belongs to, which is forgotten, or null if there is none
+     */
+    private ExpiredConnection takeExpired(BasicPacketInfo packet) {
+        if (expiredConnections.isEmpty()) {
+            return null;
+        }
+        int slot = expiredConnections.find(packet);
+        if (slot < 0) {
+            return null;
+        }
+        ExpiredConnection expired = expiredConnections.get(slot);
+        expired.packetIsFlowSrc = expiredConnections.isForward(slot);
+        expiredConnections.remove(slot);
+        return expired;
+    }
+
+    private static BasicFlow renamed(BasicFlow flow, String flowId) {
+        flow.setFlowId(flowId);
+        return flow;
+    }
+
+    private BasicFlow track(BasicFlow flow) {
+        expiryWheel.schedule(flow, deadlineOf(flow));
+        return flow;
+    }
+
+    // never moves backwards as packets are added, which lets the wheel reschedule lazily
+    private long deadlineOf(BasicFlow flow) {
+        return Math.max(flow.getFlowStartTime() + flowTimeOut, flow.getLastSeen() + flowIdleTimeOut);
+    }
+
+    private final TimerWheel.Expiry<BasicFlow> flowExpiry = new TimerWheel.Expiry<BasicFlow>() {
+        @Override
+        public long deadline(BasicFlow flow) {
+            int slot = currentFlows.find(flow);
+            if (slot < 0 || currentFlows.get(slot) != flow) {
+                return -1L; // already finished or replaced
+            }
+            return deadlineOf(flow);
+        }
+
+        @Override
+        public void expire(BasicFlow flow) {
+            currentFlows.remove(currentFlows.find(flow));
+
+            if (TCP_UDP_LIST_FILTER.contains(flow.getProtocol())) {
+                updateTcpUdpCxnDuration(flow);
+            }
+
+            if (mListener != null) {
+                mListener.onFlowGenerated(flow);
+            } else {
+                finishedFlows.put(getFlowCount(), flow);
+            }
+            rememberExpired(flow);
+        }
+    };
+
+    /**
+     * What a flow that continues an expired connection takes over from the expired flow.
+     */
+    private static final class ExpiredConnection {
+        // a connection resumes an idle timeout after its last packet at the earliest, long after all but its
+        // last unacknowledged segments could be retransmitted; keeping only these bounds the memory per connection
+        static final int RESUMED_SEGMENTS = 16;
+
+        final byte[] src;
+        final byte[] dst;
+        final int srcPort;
+        final int dstPort;
+        final ProtocolEnum protocol;
+        final String flowId;
+        final long lastSeen;
+        final long cumulativeConnectionDuration;
+        final TcpFlowState tcpFlowState;
+        final TcpRetransmissionTracker tcpRetransmissions;
+        // whether the packet that resumed the connection travels from the flow source, set by takeExpired
+        boolean packetIsFlowSrc;
+
+        ExpiredConnection(BasicFlow flow) {
+            src = flow.rawSrc();
+            dst = flow.rawDst();
+            srcPort = flow.getSrcPort();
+            dstPort = flow.getDstPort();
+            protocol = flow.getProtocol();
+            flowId = flow.getFlowId();
+            lastSeen = flow.getLastSeen();
+            cumulativeConnectionDuration = flow.getCumulativeConnectionDuration();
+            tcpFlowState = flow.getTcpFlowState();
+            TcpRetransmissionTracker tracker = flow.getTcpRetransmissions();
+            tcpRetransmissions = tracker == null ? null : tracker.tail(RESUMED_SEGMENTS);
+        }
+
+        // the same test as for a flow that reaches the flow timeout while still open
+        boolean continuedBy(BasicPacketInfo packet, long flowTimeOut) {
+            if (tcpFlowState == TcpFlowState.READY_FOR_TERMINATION && packet.hasFlagSYN()) {
+                return false;
+            }
+            return protocol != ProtocolEnum.UDP || packet.getTimeStamp() - lastSeen <= flowTimeOut;
+        }
     }
 
     /*public void dumpFlowBasedFeatures(String path, String filename,String header){
@@ -278,12 +631,10 @@ public class FlowGenerator {
             }
             logger.debug("dumpLabeledFlow finishedFlows -> {},{}", zeroPkt, total);
 
-            Set<String> ckeys = currentFlows.keySet();
             output.write((header + "\n").getBytes());
-            for (String key : ckeys) {
-                flow = currentFlows.get(key);
-                if (flow.packetCount() >= 1) {
-                    output.write((flow.dumpFlowBasedFeaturesEx() + "\n").getBytes());
+            for (BasicFlow current : currentFlows.values()) {
+                if (current.packetCount() >= 1) {
+                    output.write((current.dumpFlowBasedFeaturesEx() + "\n").getBytes());
                     total++;
                 } else {
                     zeroPkt++;
@@ -301,6 +652,25 @@ public class FlowGenerator {
         return total;
     }
 
+    /**
+     * Hands the flows still open to a listener instead of appending them to a CSV file, with the same
+     * selection as {@link #dumpLabeledCurrentFlow(String, String)}.
+     * @return number of flows handed over
+     */
+    public long dumpLabeledCurrentFlow(FlowGenListener listener) {
+        long total = 0;
+        for (BasicFlow flow : currentFlows.values()) {
+            if (flow.packetCount() >= 1) {
+                if (TCP_UDP_LIST_FILTER.contains(flow.getProtocol())) {
+                    flow = updateTcpUdpCxnDuration(flow);
+                }
+                listener.onFlowGenerated(flow);
+                total++;
+            }
+        }
+        return total;
+    }
+
     public long dumpLabeledCurrentFlow(String fileFullPath, String header) {
         if (fileFullPath == null || header == null) {
             String ex = String.format("fullFilePath=%s,filename=%s", fileFullPath);
@@ -308,14 +678,16 @@ public class FlowGenerator {
         }
 
         File file = new File(fileFullPath);
-        FileOutputStream output = null;
+        OutputStream output = null;
+        FeatureRowWriter row = FeatureRowWriter.local();
+        byte[] lineSep = LINE_SEP.getBytes();
         int total = 0;
         try {
             if (file.exists()) {
-                output = new FileOutputStream(file, true);
+                output = new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16);
             } else {
                 if (file.createNewFile()) {
-                    output = new FileOutputStream(file);
+                    output = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
                     output.write((header + LINE_SEP).getBytes());
                 }
             }
@@ -327,7 +699,9 @@ public class FlowGenerator {
                         flow = updateTcpUdpCxnDuration(flow);
                     }
 
-                    output.write((flow.dumpFlowBasedFeaturesEx() + LINE_SEP).getBytes());
+                    flow.writeFeatures(row.reset());
+                    output.write(row.array(), 0, row.length());
+                    output.write(lineSep);
                     total++;
                 } else {
 
@@ -349,6 +723,23 @@ public class FlowGenerator {
         return total;
     }
 
+    /**
+     * Hands a {@link BasicFlow#snapshot()} of every open flow to copies without finishing or changing
+     * the flow, for interim reports of long connections. Must be called by the thread that adds the
+     * packets; the copies can be rendered on any thread.
+     * @return number of copies
+     */
+    public int snapshotCurrentFlows(Consumer<BasicFlow> copies) {
+        int total = 0;
+        for (BasicFlow flow : currentFlows.values()) {
+            if (flow.packetCount() >= 1) {
+                copies.accept(flow.snapshot());
+                total++;
+            }
+        }
+        return total;
+    }
+
 
     private BasicFlow updateTcpUdpCxnDuration(BasicFlow tcpUdpFlow) {
         long currDuration = tcpUdpFlow.getCumulativeConnectionDuration();
@@ -364,5 +755,8 @@ public class FlowGenerator {
 
     public void clearCurrentFlows() {
         currentFlows.clear();
+        expiryWheel.clear();
+        expiredConnections.clear();
+        expiryOrder.clear();
     }
 }
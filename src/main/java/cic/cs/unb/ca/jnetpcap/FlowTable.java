@@ -0,0 +1,292 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Open-addressing hash table keyed by the binary 5-tuple of a flow.
+ *
+ * The key is stored in canonical form (lower endpoint first), so a packet and its reply resolve to
+ * the same slot with a single probe sequence, and {@link #isForward(int)} tells on which side of the
+ * stored flow the probed packet sits. IPv4 addresses are packed into the low 32 bits of a long,
+ * IPv6 addresses into two longs. Linear probing with backward-shift deletion keeps the table free
+ * of tombstones.
+ *
+ * Not thread-safe: every FlowGenerator owns its own table.
+ */
+public class FlowTable<V> {
+
+    private static final int STRIDE = 5;          // aHi, aLo, bHi, bLo, meta
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private static final long PROTO_SHIFT = 32;
+    private static final long IPV6_BIT = 1L << 40;
+    private static final long KEY_MASK = (1L << 41) - 1;
+    // set when the flow source is the canonical "a" endpoint; not part of the key
+    private static final long SRC_IS_A_BIT = 1L << 62;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    // canonical key of the last probe, reused by insert()
+    private long pAHi, pALo, pBHi, pBLo, pMeta;
+    private boolean pSrcIsA;
+
+    public FlowTable() {
+        this(MIN_CAPACITY);
+    }
+
+    public FlowTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * STRIDE];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Locates the flow the packet belongs to, in either direction.
+     * @return the slot of the flow, or a negative value (use with {@link #insert(int, Object, boolean)})
+     */
+    public int find(BasicPacketInfo packet) {
+        canonicalize(packet.getSrcHigh(), packet.getSrcLow(), packet.getSrcPort(), packet.getDstHigh(), packet.getDstLow(),
+                packet.getDstPort(), packet.getProtocol().val, packet.isIpv6());
+        return probe();
+    }
+
+    /**
+     * Locates the entry stored under the 5-tuple of the flow.
+     */
+    public int find(BasicFlow flow) {
+        return find(flow.rawSrc(), flow.getSrcPort(), flow.rawDst(), flow.getDstPort(), flow.getProtocol().val);
+    }
+
+    public int find(byte[] src, int srcPort, byte[] dst, int dstPort, int protocol) {
+        canonicalize(BasicPacketInfo.addressHigh(src), BasicPacketInfo.addressLow(src), srcPort,
+                BasicPacketInfo.addressHigh(dst), BasicPacketInfo.addressLow(dst), dstPort, protocol, src.length == 16);
+        return probe();
+    }
+
+    private int probe() {
+        int slot = hash(pAHi, pALo, pBHi, pBLo, pMeta) & mask;
+        while (values[slot] != null) {
+            int k = slot * STRIDE;
+            if (keys[k + 1] == pALo && keys[k + 3] == pBLo && keys[k] == pAHi && keys[k + 2] == pBHi
+                    && (keys[k + 4] & KEY_MASK) == pMeta) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    /**
+     * @return true if the packet passed to the last successful {@link #find} travels in the
+     * direction of the flow stored in that slot (flow source to flow destination)
+     */
+    public boolean isForward(int slot) {
+        return ((keys[slot * STRIDE + 4] & SRC_IS_A_BIT) != 0) == pSrcIsA;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int slot) {
+        return (V) values[slot];
+    }
+
+    /**
+     * Replaces the value of an occupied slot, keeping its key.
+     * @param packetIsFlowSrc whether the source of the packet last passed to {@link #find} is the source of the new value
+     */
+    public void set(int slot, V value, boolean packetIsFlowSrc) {
+        values[slot] = value;
+        setOrientation(slot * STRIDE + 4, packetIsFlowSrc);
+    }
+
+    /**
+     * Inserts a new entry under the key of the last unsuccessful {@link #find}.
+     * @param notFound the negative value returned by find
+     * @param packetIsFlowSrc whether the source of the probed packet is the source of the new value
+     */
+    public void insert(int notFound, V value, boolean packetIsFlowSrc) {
+        if (value == null) {
+            throw new IllegalArgumentException("FlowTable does not accept null values");
+        }
+        int slot = -notFound - 1;
+        if (size >= resizeAt) {
+            rehash(values.length << 1);
+            slot = hash(pAHi, pALo, pBHi, pBLo, pMeta) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        int k = slot * STRIDE;
+        keys[k] = pAHi;
+        keys[k + 1] = pALo;
+        keys[k + 2] = pBHi;
+        keys[k + 3] = pBLo;
+        keys[k + 4] = pMeta;
+        setOrientation(k + 4, packetIsFlowSrc);
+        values[slot] = value;
+        size++;
+    }
+
+    public void remove(int slot) {
+        values[slot] = null;
+        size--;
+        // backward-shift deletion: pull later members of the cluster into the hole
+        int hole = slot;
+        int cur = (slot + 1) & mask;
+        while (values[cur] != null) {
+            int k = cur * STRIDE;
+            int home = hash(keys[k], keys[k + 1], keys[k + 2], keys[k + 3], keys[k + 4] & KEY_MASK) & mask;
+            if (((cur - home) & mask) >= ((cur - hole) & mask)) {
+                System.arraycopy(keys, k, keys, hole * STRIDE, STRIDE);
+                values[hole] = values[cur];
+                values[cur] = null;
+                hole = cur;
+            }
+            cur = (cur + 1) & mask;
+        }
+    }
+
+    /**
+     * Walks from a position to the next occupied slot, wrapping around; used to sample entries at
+     * random. The table must not be empty.
+     * @return the first occupied slot at or after from (taken modulo the capacity)
+     */
+    public int occupiedSlot(int from) {
+        int slot = from & mask;
+        while (values[slot] == null) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public void forEach(Consumer<? super V> action) {
+        for (Object value : values) {
+            if (value != null) {
+                action.accept(unchecked(value));
+            }
+        }
+    }
+
+    public List<V> values() {
+        List<V> list = new ArrayList<>(size);
+        forEach(list::add);
+        return list;
+    }
+
+    /**
+     * Hash of the 5-tuple that is identical for both directions of a connection.
+     */
+    public static int symmetricHash(BasicPacketInfo packet) {
+        return symmetricHash(packet.getSrcHigh(), packet.getSrcLow(), packet.getSrcPort(), packet.getDstHigh(),
+                packet.getDstLow(), packet.getDstPort(), packet.getProtocol().val, packet.isIpv6());
+    }
+
+    public static int symmetricHash(byte[] src, int srcPort, byte[] dst, int dstPort, int protocol) {
+        return symmetricHash(BasicPacketInfo.addressHigh(src), BasicPacketInfo.addressLow(src), srcPort,
+                BasicPacketInfo.addressHigh(dst), BasicPacketInfo.addressLow(dst), dstPort, protocol, src.length == 16);
+    }
+
+    private static int symmetricHash(long sHi, long sLo, int srcPort, long dHi, long dLo, int dstPort, int protocol,
+                                     boolean ipv6) {
+        long meta = (long) protocol << PROTO_SHIFT | (ipv6 ? IPV6_BIT : 0L);
+        if (compare(sHi, sLo, srcPort, dHi, dLo, dstPort) <= 0) {
+            return hash(sHi, sLo, dHi, dLo, meta | srcPort | (long) dstPort << 16);
+        }
+        return hash(dHi, dLo, sHi, sLo, meta | dstPort | (long) srcPort << 16);
+    }
+
+    private void canonicalize(long sHi, long sLo, int srcPort, long dHi, long dLo, int dstPort, int protocol,
+                              boolean ipv6) {
+        long meta = (long) protocol << PROTO_SHIFT | (ipv6 ? IPV6_BIT : 0L);
+        pSrcIsA = compare(sHi, sLo, srcPort, dHi, dLo, dstPort) <= 0;
+        if (pSrcIsA) {
+            pAHi = sHi;
+            pALo = sLo;
+            pBHi = dHi;
+            pBLo = dLo;
+            pMeta = meta | srcPort | (long) dstPort << 16;
+        } else {
+            pAHi = dHi;
+            pALo = dLo;
+            pBHi = sHi;
+            pBLo = sLo;
+            pMeta = meta | dstPort | (long) srcPort << 16;
+        }
+    }
+
+    private void setOrientation(int metaIndex, boolean packetIsFlowSrc) {
+        if (packetIsFlowSrc == pSrcIsA) {
+            keys[metaIndex] |= SRC_IS_A_BIT;
+        } else {
+            keys[metaIndex] &= ~SRC_IS_A_BIT;
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) {
+                continue;
+            }
+            int k = i * STRIDE;
+            int slot = hash(oldKeys[k], oldKeys[k + 1], oldKeys[k + 2], oldKeys[k + 3], oldKeys[k + 4] & KEY_MASK) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(oldKeys, k, keys, slot * STRIDE, STRIDE);
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int compare(long aHi, long aLo, int aPort, long bHi, long bLo, int bPort) {
+        int c = Long.compareUnsigned(aHi, bHi);
+        if (c == 0) {
+            c = Long.compareUnsigned(aLo, bLo);
+        }
+        return c != 0 ? c : Integer.compare(aPort, bPort);
+    }
+
+    private static int hash(long aHi, long aLo, long bHi, long bLo, long meta) {
+        long h = aLo * 0x9E3779B97F4A7C15L;
+        h = (h ^ bLo) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ aHi ^ Long.rotateLeft(bHi, 31)) * 0x165667B19E3779F9L;
+        h = (h ^ meta) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29) ^ (h >>> 47));
+    }
+
+    @SuppressWarnings("unchecked")
+    private V unchecked(Object value) {
+        return (V) value;
+    }
+}
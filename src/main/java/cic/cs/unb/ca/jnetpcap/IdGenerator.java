@@ -1,22 +1,48 @@
 package cic.cs.unb.ca.jnetpcap;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out packet ids without a lock.
+ *
+ * Every thread claims a block of {@link #BLOCK_SIZE} consecutive ids with a single atomic add and
+ * then numbers its packets from that block on its own, so capture threads sharing a generator never
+ * contend. Ids are unique per generator and increase per thread, but threads interleave by blocks.
+ *
+ * Every offline reader has its own generator, so a packet's id is its number among the decoded packets
+ * of the file, starting at 1; the readers report it for the first disordered packet. With the
+ * cfm.skipPacketIds system property set, {@link #nextId()} returns 0 and no id is assigned at all, and
+ * the readers count the decoded packets themselves to report the same number.
+ */
 public class IdGenerator {
-	
-	private long id = 0L;
+
+	public static final boolean SKIP_IDS = Boolean.getBoolean("cfm.skipPacketIds");
+	public static final int BLOCK_SIZE = 1 << 10;
+
+	// last id given out in a block
+	private final AtomicLong claimed;
+	// { next id, end of the block } of the calling thread
+	private final ThreadLocal<long[]> blocks = ThreadLocal.withInitial(() -> new long[2]);
 
 	public IdGenerator(long id) {
 		super();
-		this.id = id;
+		this.claimed = new AtomicLong(id);
 	}
 
 	public IdGenerator() {
-		super();
-		this.id = 0L;
+		this(0L);
 	}
-	
-	public synchronized long nextId(){
-		this.id++;
-		return this.id;
+
+	public long nextId(){
+		if (SKIP_IDS) {
+			return 0L;
+		}
+		long[] block = blocks.get();
+		if (block[0] == block[1]) {
+			block[1] = claimed.addAndGet(BLOCK_SIZE) + 1;
+			block[0] = block[1] - BLOCK_SIZE;
+		}
+		return block[0]++;
 	}
 
 }
@@ -0,0 +1,597 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.jnetpcap.PcapClosedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads classic pcap and pcapng files through memory-mapped windows, without jnetpcap.
+ *
+ * Link, network and transport headers are decoded straight from the mapped bytes into
+ * {@link BasicPacketInfo}, with the same fields {@link PacketReader} fills for IPv4. Supported link
+ * types are Ethernet (with 802.1Q/802.1ad tags), raw IP and Linux cooked capture. Unlike
+ * PacketReader, IPv6 packets carry microsecond timestamps and TCP flags like IPv4 ones do.
+ */
+public class MappedPcapReader implements PacketSource {
+    private static final Logger logger = LoggerFactory.getLogger(MappedPcapReader.class);
+
+    private static final int WINDOW = 1 << 28;
+
+    private static final int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    private static final int PCAP_HEADER = 24;
+    private static final int PCAP_RECORD_HEADER = 16;
+
+    private static final int BLOCK_SECTION_HEADER = 0x0a0d0d0a;
+    private static final int BLOCK_INTERFACE = 0x00000001;
+    private static final int BLOCK_PACKET = 0x00000002;
+    private static final int BLOCK_ENHANCED_PACKET = 0x00000006;
+    private static final int BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+    private static final int OPTION_TSRESOL = 9;
+
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_LINUX_SLL = 113;
+    private static final int LINKTYPE_IPV4 = 228;
+    private static final int LINKTYPE_IPV6 = 229;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86dd;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88a8;
+    private static final int ETHERTYPE_QINQ_OLD = 0x9100;
+
+    private static final long MICROS_PER_SECOND = 1000000L;
+
+    // record resynchronisation, see findRecord()
+    private static final int SYNC_RANGE = 1 << 20;
+    private static final int SYNC_RECORDS = 16;
+    private static final int SYNC_MAX_CAPTURE = 1 << 18;
+    private static final long SYNC_MAX_SPREAD_SECONDS = 10L * 366 * 24 * 3600;
+
+    private final IdGenerator generator = new IdGenerator();
+    private final String file;
+    private final FileChannel channel;
+    private final long size;
+    private final boolean readIP4;
+    private final boolean readIP6;
+
+    private MappedByteBuffer map;
+    private long mapStart;
+    private long position;
+    private long limit;
+    private ByteOrder order;
+
+    private final boolean pcapng;
+    private boolean nanos;
+    private int linkType;
+    private int snapLength;
+    private long firstSeconds = -1L;
+
+    // pcapng interfaces of the current section
+    private int interfaceCount;
+    private int[] interfaceLinkTypes = new int[4];
+    private long[] interfaceUnitsPerSecond = new long[4];
+
+    private int unsupportedLinkType = -1;
+    private long firstPacket;
+    private long lastPacket;
+
+    public MappedPcapReader(String filename, boolean readIP4, boolean readIP6) throws IOException {
+        this.file = filename;
+        this.readIP4 = readIP4;
+        this.readIP6 = readIP6;
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            this.size = channel.size();
+            this.limit = size;
+            if (!available(0, 4)) {
+                throw new IOException("Not a pcap file: " + filename);
+            }
+            int magic = map.getInt(0);
+            pcapng = magic == BLOCK_SECTION_HEADER;
+            if (!pcapng) {
+                readPcapHeader();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean nextPacket(BasicPacketInfo packet) {
+        packet.reset();
+        try {
+            return pcapng ? nextBlock(packet) : nextRecord(packet);
+        } catch (PcapClosedException e) {
+            logger.debug("Read All packets on {}", file);
+            throw e;
+        } catch (IOException e) {
+            logger.error("Cannot read {}: {}", file, e.getMessage());
+            throw new PcapClosedException();
+        }
+    }
+
+    @Override
+    public long getFirstPacket() {
+        return firstPacket;
+    }
+
+    @Override
+    public long getLastPacket() {
+        return lastPacket;
+    }
+
+    @Override
+    public void close() {
+        map = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage());
+        }
+    }
+
+    private void readPcapHeader() throws IOException {
+        if (!available(0, PCAP_HEADER)) {
+            throw new IOException("Truncated pcap header: " + file);
+        }
+        int magic = map.getInt(0);
+        if (magic != PCAP_MAGIC_MICROS && magic != PCAP_MAGIC_NANOS) {
+            magic = Integer.reverseBytes(magic);
+            if (magic != PCAP_MAGIC_MICROS && magic != PCAP_MAGIC_NANOS) {
+                throw new IOException("Not a pcap or pcapng file: " + file);
+            }
+            order = map.order() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            map.order(order);
+        }
+        nanos = magic == PCAP_MAGIC_NANOS;
+        snapLength = map.getInt(16);
+        linkType = map.getInt(20) & 0x0fffffff;
+        position = PCAP_HEADER;
+    }
+
+    public boolean isPcapng() {
+        return pcapng;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return file offset of the next record to be read
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Restricts reading to the records of a classic pcap file that start in [start, end). The record
+     * that starts last may end after end, so {@link #position()} tells where reading actually stopped.
+     */
+    public void setRange(long start, long end) {
+        if (pcapng) {
+            throw new IllegalStateException("Ranges are only supported for classic pcap files: " + file);
+        }
+        position = Math.max(start, PCAP_HEADER);
+        limit = Math.min(end, size);
+    }
+
+    /**
+     * Decodes the record of a classic pcap file that starts at the given offset, see {@link #nextPacket(BasicPacketInfo)}.
+     */
+    public boolean packetAt(long offset, BasicPacketInfo packet) {
+        position = offset;
+        return nextPacket(packet);
+    }
+
+    /**
+     * Finds the first record of a classic pcap file that starts at or after the given offset, without
+     * reading the file from its start: a candidate offset is accepted when it begins a run of
+     * plausible record headers that chain into each other.
+     * @return the offset of the record, or -1 if none starts within the next megabyte
+     */
+    public long findRecord(long offset) throws IOException {
+        if (pcapng) {
+            return -1L;
+        }
+        if (firstSeconds < 0) {
+            if (!available(PCAP_HEADER, PCAP_RECORD_HEADER)) {
+                return -1L;
+            }
+            firstSeconds = map.getInt((int) (PCAP_HEADER - mapStart)) & 0xffffffffL;
+        }
+        long from = Math.max(offset, PCAP_HEADER);
+        long to = Math.min(size, from + SYNC_RANGE);
+        for (long candidate = from; candidate < to; candidate++) {
+            if (isRecordRun(candidate)) {
+                return candidate;
+            }
+        }
+        return -1L;
+    }
+
+    private boolean isRecordRun(long offset) throws IOException {
+        long maxCaptured = snapLength > 0 && snapLength < SYNC_MAX_CAPTURE ? snapLength : SYNC_MAX_CAPTURE;
+        long at = offset;
+        for (int i = 0; i < SYNC_RECORDS && at < size; i++) {
+            if (!available(at, PCAP_RECORD_HEADER)) {
+                return false;
+            }
+            int header = (int) (at - mapStart);
+            long seconds = map.getInt(header) & 0xffffffffL;
+            long fraction = map.getInt(header + 4) & 0xffffffffL;
+            long captured = map.getInt(header + 8) & 0xffffffffL;
+            long original = map.getInt(header + 12) & 0xffffffffL;
+            if (fraction >= (nanos ? 1000000000L : MICROS_PER_SECOND) || captured > maxCaptured || captured > original
+                    || Math.abs(seconds - firstSeconds) > SYNC_MAX_SPREAD_SECONDS) {
+                return false;
+            }
+            at += PCAP_RECORD_HEADER + captured;
+        }
+        return at <= size;
+    }
+
+    private boolean nextRecord(BasicPacketInfo packet) throws IOException {
+        if (position >= limit) {
+            throw new PcapClosedException();
+        }
+        if (!available(position, PCAP_RECORD_HEADER)) {
+            throw endOfFile(position);
+        }
+        int at = (int) (position - mapStart);
+        long seconds = map.getInt(at) & 0xffffffffL;
+        long fraction = map.getInt(at + 4) & 0xffffffffL;
+        int captured = map.getInt(at + 8);
+        if (captured < 0 || !available(position + PCAP_RECORD_HEADER, captured)) {
+            throw endOfFile(position);
+        }
+        long timestamp = seconds * MICROS_PER_SECOND + (nanos ? fraction / 1000L : fraction);
+        at = (int) (position + PCAP_RECORD_HEADER - mapStart);
+        position += PCAP_RECORD_HEADER + captured;
+        return decode(packet, linkType, at, at + captured, timestamp);
+    }
+
+    private boolean nextBlock(BasicPacketInfo packet) throws IOException {
+        while (true) {
+            if (!available(position, 12)) {
+                throw endOfFile(position);
+            }
+            int at = (int) (position - mapStart);
+            int type = map.getInt(at);
+            if (type == BLOCK_SECTION_HEADER) {
+                readSectionHeader(at);
+                at = (int) (position - mapStart);
+            }
+            int length = map.getInt(at + 4);
+            if (length < 12 || (length & 3) != 0 || !available(position, length)) {
+                throw endOfFile(position);
+            }
+            at = (int) (position - mapStart);
+            long block = position;
+            position += length;
+
+            switch (type) {
+                case BLOCK_ENHANCED_PACKET:
+                    if (length >= 32) {
+                        return packet(packet, block, map.getInt(at + 8), at + 12, at + 16, at + 28, length);
+                    }
+                    break;
+                case BLOCK_PACKET:
+                    if (length >= 32) {
+                        return packet(packet, block, map.getShort(at + 8) & 0xffff, at + 12, at + 16, at + 28, length);
+                    }
+                    break;
+                case BLOCK_INTERFACE:
+                    readInterface(at, length);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void readSectionHeader(int at) throws IOException {
+        if (!available(position, 12)) {
+            throw endOfFile(position);
+        }
+        int magic = map.getInt(at + 8);
+        if (magic != BYTE_ORDER_MAGIC) {
+            if (Integer.reverseBytes(magic) != BYTE_ORDER_MAGIC) {
+                throw new IOException("Corrupt pcapng section header at " + position + " in " + file);
+            }
+            order = map.order() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            map.order(order);
+        }
+        interfaceCount = 0;
+    }
+
+    private void readInterface(int at, int length) {
+        if (interfaceCount == interfaceLinkTypes.length) {
+            interfaceLinkTypes = Arrays.copyOf(interfaceLinkTypes, interfaceCount << 1);
+            interfaceUnitsPerSecond = Arrays.copyOf(interfaceUnitsPerSecond, interfaceCount << 1);
+        }
+        long unitsPerSecond = MICROS_PER_SECOND;
+        int option = at + 16;
+        int end = at + length - 4;
+        while (option + 4 <= end) {
+            int code = map.getShort(option) & 0xffff;
+            int optionLength = map.getShort(option + 2) & 0xffff;
+            if (code == 0 || option + 4 + optionLength > end) {
+                break;
+            }
+            if (code == OPTION_TSRESOL && optionLength >= 1) {
+                int resolution = map.get(option + 4) & 0xff;
+                int exponent = resolution & 0x7f;
+                if ((resolution & 0x80) != 0) {
+                    unitsPerSecond = exponent < 63 ? 1L << exponent : -1L;
+                } else {
+                    unitsPerSecond = exponent <= 18 ? pow10(exponent) : -1L;
+                }
+            }
+            option += 4 + ((optionLength + 3) & ~3);
+        }
+        interfaceLinkTypes[interfaceCount] = map.getShort(at + 8) & 0xffff;
+        interfaceUnitsPerSecond[interfaceCount] = unitsPerSecond;
+        interfaceCount++;
+    }
+
+    private boolean packet(BasicPacketInfo packet, long block, int interfaceId, int tsHigh, int tsLow, int data, int length) {
+        if (interfaceId < 0 || interfaceId >= interfaceCount) {
+            logger.debug("Packet block at {} refers to unknown interface {}", block, interfaceId);
+            return false;
+        }
+        int captured = map.getInt(data - 8);
+        int end = data + captured;
+        if (captured < 0 || end > data - 28 + length - 4) {
+            logger.debug("Corrupt packet block at {}", block);
+            return false;
+        }
+        long ticks = ((map.getInt(tsHigh) & 0xffffffffL) << 32) | (map.getInt(tsLow) & 0xffffffffL);
+        long unitsPerSecond = interfaceUnitsPerSecond[interfaceId];
+        long timestamp;
+        if (unitsPerSecond == MICROS_PER_SECOND) {
+            timestamp = ticks;
+        } else if (unitsPerSecond > 0 && unitsPerSecond <= 1000000000000L) {
+            timestamp = ticks / unitsPerSecond * MICROS_PER_SECOND + ticks % unitsPerSecond * MICROS_PER_SECOND / unitsPerSecond;
+        } else {
+            logger.debug("Unsupported timestamp resolution of interface {}", interfaceId);
+            return false;
+        }
+        return decode(packet, interfaceLinkTypes[interfaceId], data, end, timestamp);
+    }
+
+    private boolean decode(BasicPacketInfo packet, int link, int at, int end, long timestamp) {
+        int etherType;
+        switch (link) {
+            case LINKTYPE_ETHERNET:
+                if (at + 14 > end) {
+                    return false;
+                }
+                etherType = u16(at + 12);
+                at += 14;
+                while ((etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ || etherType == ETHERTYPE_QINQ_OLD)
+                        && at + 4 <= end) {
+                    etherType = u16(at + 2);
+                    at += 4;
+                }
+                break;
+            case LINKTYPE_LINUX_SLL:
+                if (at + 16 > end) {
+                    return false;
+                }
+                etherType = u16(at + 14);
+                at += 16;
+                break;
+            case LINKTYPE_RAW:
+            case LINKTYPE_IPV4:
+            case LINKTYPE_IPV6:
+                if (at >= end) {
+                    return false;
+                }
+                int version = (map.get(at) & 0xff) >>> 4;
+                etherType = version == 4 ? ETHERTYPE_IPV4 : version == 6 ? ETHERTYPE_IPV6 : 0;
+                break;
+            default:
+                if (unsupportedLinkType != link) {
+                    unsupportedLinkType = link;
+                    logger.warn("Unsupported link type {} in {}", link, file);
+                }
+                return false;
+        }
+
+        if (etherType == ETHERTYPE_IPV4 && readIP4) {
+            return ipv4(packet, at, end, timestamp);
+        }
+        if (etherType == ETHERTYPE_IPV6 && readIP6) {
+            return ipv6(packet, at, end, timestamp);
+        }
+        return false;
+    }
+
+    private boolean ipv4(BasicPacketInfo packetInfo, int at, int end, long timestamp) {
+        if (at + 20 > end || (map.get(at) & 0xf0) != 0x40) {
+            return false;
+        }
+        int headerLength = (map.get(at) & 0x0f) << 2;
+        if (headerLength < 20 || at + headerLength > end) {
+            return false;
+        }
+        int totalLength = u16(at + 2);
+        int ipEnd = totalLength >= headerLength ? Math.min(at + totalLength, end) : end;
+        boolean fragment = (u16(at + 6) & 0x1fff) != 0;
+        int protocol = map.get(at + 9) & 0xff;
+
+        packetInfo.setIpv4((int) u32(at + 12), (int) u32(at + 16));
+        newPacket(packetInfo, timestamp);
+        if (!fragment) {
+            transport(packetInfo, protocol, at + headerLength, ipEnd, false);
+        }
+        return true;
+    }
+
+    private boolean ipv6(BasicPacketInfo packetInfo, int at, int end, long timestamp) {
+        if (at + 40 > end || (map.get(at) & 0xf0) != 0x60) {
+            return false;
+        }
+        int payloadLength = u16(at + 4);
+        int ipEnd = payloadLength > 0 ? Math.min(at + 40 + payloadLength, end) : end;
+        int next = map.get(at + 6) & 0xff;
+
+        packetInfo.setIpv6(u64(at + 8), u64(at + 16), u64(at + 24), u64(at + 32));
+        newPacket(packetInfo, timestamp);
+        int header = at + 40;
+        while (header + 8 <= ipEnd) {
+            if (next == 0 || next == 43 || next == 60) {
+                int length = ((map.get(header + 1) & 0xff) + 1) << 3;
+                next = map.get(header) & 0xff;
+                header += length;
+            } else if (next == 51) {
+                int length = ((map.get(header + 1) & 0xff) + 2) << 2;
+                next = map.get(header) & 0xff;
+                header += length;
+            } else if (next == 44) {
+                if ((u16(header + 2) & 0xfff8) != 0) {
+                    return true;
+                }
+                next = map.get(header) & 0xff;
+                header += 8;
+            } else {
+                break;
+            }
+        }
+        transport(packetInfo, next, header, ipEnd, true);
+        return true;
+    }
+
+    private void transport(BasicPacketInfo packetInfo, int protocol, int at, int end, boolean ipv6) {
+        switch (protocol) {
+            case 1:
+            case 58:
+                if ((protocol == 58) != ipv6 || at + 2 > end) {
+                    break;
+                }
+                packetInfo.setProtocol(ProtocolEnum.ICMP);
+                packetInfo.setSrcPort(0);
+                packetInfo.setDstPort(0);
+                packetInfo.setIcmpType(map.get(at) & 0xff);
+                packetInfo.setIcmpCode(map.get(at + 1) & 0xff);
+                break;
+            case 6: {
+                if (at + 20 > end) {
+                    break;
+                }
+                int headerLength = (map.get(at + 12) & 0xf0) >>> 2;
+                int payload = Math.max(0, end - at - headerLength);
+                int flags = map.get(at + 13);
+                int window = u16(at + 14);
+                packetInfo.setTCPWindow(window);
+                packetInfo.setSrcPort(u16(at));
+                packetInfo.setDstPort(u16(at + 2));
+                packetInfo.setProtocol(ProtocolEnum.TCP);
+                // the header byte holds the flags in the bit order of BasicPacketInfo
+                packetInfo.setFlags(flags);
+                packetInfo.setPayloadBytes(payload);
+                packetInfo.setHeaderBytes(headerLength);
+                packetInfo.setTcpSequence(u32(at + 4), u32(at + 8));
+                break;
+            }
+            case 17:
+                if (at + 8 > end) {
+                    break;
+                }
+                packetInfo.setSrcPort(u16(at));
+                packetInfo.setDstPort(u16(at + 2));
+                packetInfo.setPayloadBytes(end - at - 8);
+                packetInfo.setHeaderBytes(8);
+                packetInfo.setProtocol(ProtocolEnum.UDP);
+                break;
+            case 132:
+                if (at + 12 > end) {
+                    break;
+                }
+                packetInfo.setSrcPort(u16(at));
+                packetInfo.setDstPort(u16(at + 2));
+                packetInfo.setPayloadBytes(end - at - 12);
+                packetInfo.setHeaderBytes(12);
+                packetInfo.setProtocol(ProtocolEnum.SCTP);
+                break;
+            case 2:
+                if (!ipv6) {
+                    packetInfo.setProtocol(ProtocolEnum.IGMP);
+                }
+                break;
+            default:
+                logger.debug("Currently unsupported IP protocol: {}", protocol);
+                break;
+        }
+    }
+
+    private void newPacket(BasicPacketInfo packetInfo, long timestamp) {
+        packetInfo.setId(generator.nextId());
+        packetInfo.setTimeStamp(timestamp);
+        if (firstPacket == 0L) {
+            firstPacket = timestamp / 1000L;
+        }
+        lastPacket = timestamp / 1000L;
+    }
+
+    private int u16(int at) {
+        return ((map.get(at) & 0xff) << 8) | (map.get(at + 1) & 0xff);
+    }
+
+    private long u32(int at) {
+        return ((long) u16(at) << 16) | u16(at + 2);
+    }
+
+    private long u64(int at) {
+        return u32(at) << 32 | u32(at + 4);
+    }
+
+    /**
+     * Makes [offset, offset + length) of the file addressable through {@link #map}, remapping the window if needed.
+     * @return false if the file ends before offset + length
+     */
+    private boolean available(long offset, int length) throws IOException {
+        if (offset + length > size) {
+            return false;
+        }
+        if (map != null && offset >= mapStart && offset + length <= mapStart + map.capacity()) {
+            return true;
+        }
+        long windowLength = Math.min(Math.max(WINDOW, length), size - offset);
+        map = channel.map(FileChannel.MapMode.READ_ONLY, offset, windowLength);
+        if (order != null) {
+            map.order(order);
+        } else {
+            order = map.order();
+        }
+        mapStart = offset;
+        return true;
+    }
+
+    private PcapClosedException endOfFile(long offset) {
+        if (offset < size) {
+            logger.warn("Ignoring truncated record at offset {} of {}", offset, file);
+        }
+        return new PcapClosedException();
+    }
+
+    private static long pow10(int exponent) {
+        long value = 1L;
+        for (int i = 0; i < exponent; i++) {
+            value *= 10L;
+        }
+        return value;
+    }
+}
@@ -17,10 +17,12 @@ import org.jnetpcap.protocol.tcpip.Udp;
 import  org.jnetpcap.protocol.sigtran.Sctp;
 import org.jnetpcap.protocol.network.Icmp;
 import org.jnetpcap.protocol.vpn.L2TP;
+
+import cic.cs.unb.ca.jnetpcap.worker.CaptureMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class PacketReader {
+public class PacketReader implements PacketSource {
 
 	private static final Logger logger = LoggerFactory.getLogger(PacketReader.class);
 	private IdGenerator  generator = new IdGenerator();
@@ -38,10 +40,15 @@ public class PacketReader {
 	private L2TP l2tp;
 	private PcapHeader hdr;
 	private JBuffer buf;
+	// peered with the capture buffer of every packet instead of copying it
+	private PcapPacket packet;
+	private final byte[] address6 = new byte[16];
 	
 	private boolean readIP6;
 	private boolean readIP4;
 	private String file;
+	private CaptureMetrics.Device metrics;
+	private boolean parseFailed;
 	
 	public PacketReader(String filename) {
 		super();	
@@ -73,6 +80,7 @@ public class PacketReader {
 		this.l2tp = new L2TP();
 		hdr = new PcapHeader(JMemory.POINTER);
 		buf = new JBuffer(JMemory.POINTER);
+		packet = new PcapPacket(JMemory.POINTER);
 	}
 	
 	private void config(String filename){
@@ -96,31 +104,50 @@ public class PacketReader {
 			this.l2tp = new L2TP();
 			hdr = new PcapHeader(JMemory.POINTER);
 			buf = new JBuffer(JMemory.POINTER);		
+			packet = new PcapPacket(JMemory.POINTER);
 		}		
 	}
 
-	public BasicPacketInfo nextPacket(){
-		 PcapPacket      packet;
-		 BasicPacketInfo packetInfo = null;
+	/**
+	 * Counts the packets read and the ones that fail to decode, for a live capture.
+	 */
+	public void setMetrics(CaptureMetrics.Device metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public boolean nextPacket(BasicPacketInfo packetInfo){
+		 boolean decoded = false;
+		 packetInfo.reset();
+		 parseFailed = false;
 		 try{
-			 if(pcapReader.nextEx(hdr,buf) == Pcap.NEXT_EX_OK){
-				 packet = new PcapPacket(hdr, buf);
+			 int ret = pcapReader.nextEx(hdr,buf);
+			 if(ret == Pcap.NEXT_EX_TIMEDOUT && file == null){
+				 // the read timeout of a live capture expired without traffic
+				 return false;
+			 }
+			 if(ret == Pcap.NEXT_EX_OK){
+				 if(metrics != null){
+					 metrics.onPacket(hdr.wirelen());
+				 }
+				 // the packet is decoded before the next nextEx, so it can point into the capture buffer
+				 packet.peerHeaderAndData(hdr, buf);
 				 packet.scan(Ethernet.ID);				 
 				 
 				 if(this.readIP4){					 
-					 packetInfo = getIpv4Info(packet);
-					 if (packetInfo == null && this.readIP6){
-					 	packetInfo = getIpv6Info(packet);				 	
+					 decoded = getIpv4Info(packet, packetInfo);
+					 if (!decoded && this.readIP6){
+					 	decoded = getIpv6Info(packet, packetInfo);				 	
 					 }					 
 				 }else if(this.readIP6){
-					 packetInfo = getIpv6Info(packet);
-					 if (packetInfo == null && this.readIP4){
-					 	packetInfo = getIpv4Info(packet);
+					 decoded = getIpv6Info(packet, packetInfo);
+					 if (!decoded && this.readIP4){
+					 	decoded = getIpv4Info(packet, packetInfo);
 					 }
 				 }
 				 
-				 if (packetInfo == null){
-					 packetInfo = getVPNInfo(packet);
+				 if (!decoded){
+					 decoded = getVPNInfo(packet, packetInfo);
 				 }					 
 
 			 }else{
@@ -130,19 +157,25 @@ public class PacketReader {
 			 logger.debug("Read All packets on {}",file);
 			 throw e;
 		 }catch(Exception ex){
+			 parseFailed = true;
+			 decoded = false;
 			 logger.debug(ex.getMessage());
 		 }
-		 return packetInfo;
+		 if(parseFailed && metrics != null){
+			 metrics.onParseFailure();
+		 }
+		 return decoded;
 	}
 	
-	private BasicPacketInfo getIpv4Info(PcapPacket packet){
-		BasicPacketInfo packetInfo = null;		
+	private boolean getIpv4Info(PcapPacket packet, BasicPacketInfo packetInfo){
+		boolean decoded = false;		
 		try {
 						
 			if (packet.hasHeader(ipv4)){
-				packetInfo = new BasicPacketInfo(this.generator);
-				packetInfo.setSrc(this.ipv4.source());
-				packetInfo.setDst(this.ipv4.destination());
+				decoded = true;
+				packetInfo.reset();
+				packetInfo.setId(this.generator.nextId());
+				packetInfo.setIpv4(this.ipv4.sourceToInt(), this.ipv4.destinationToInt());
 				//packetInfo.setTimeStamp(packet.getCaptureHeader().timestampInMillis());
 				packetInfo.setTimeStamp(packet.getCaptureHeader().timestampInMicros());
 				
@@ -174,10 +207,7 @@ public class PacketReader {
 					packetInfo.setPayloadBytes(tcp.getPayloadLength());
 					packetInfo.setHeaderBytes(tcp.getHeaderLength());
 
-					TcpRetransmissionDTO tcpRetransmissionDTO = new TcpRetransmissionDTO(
-							this.ipv4.source(), tcp.seq(), tcp.ack(), tcp.getPayloadLength(),
-							tcp.window(), packet.getCaptureHeader().timestampInMicros());
-					packetInfo.setTcpRetransmissionDTO(tcpRetransmissionDTO);
+					packetInfo.setTcpSequence(tcp.seq(), tcp.ack());
 
 				}else if(packet.hasHeader(this.udp)){
 					packetInfo.setSrcPort(udp.source());
@@ -226,6 +256,7 @@ public class PacketReader {
 				}
 			}
 		} catch (Exception e) {
+			parseFailed = true;
 			//e.printStackTrace();
 			packet.scan(ipv4.getId());
 			String errormsg = "";
@@ -237,19 +268,21 @@ public class PacketReader {
 			//System.out.println(errormsg);
 			logger.debug(errormsg);
 			//System.exit(-1);
-			return null;
+			return false;
 		}
 		
-		return packetInfo;
+		return decoded;
 	}
 	
-	private BasicPacketInfo getIpv6Info(PcapPacket packet){
-		BasicPacketInfo packetInfo = null;
+	private boolean getIpv6Info(PcapPacket packet, BasicPacketInfo packetInfo){
+		boolean decoded = false;
 		try{
 			if(packet.hasHeader(ipv6)){
-				packetInfo = new BasicPacketInfo(this.generator);
-				packetInfo.setSrc(this.ipv6.source());
-				packetInfo.setDst(this.ipv6.destination());
+				decoded = true;
+				packetInfo.reset();
+				packetInfo.setId(this.generator.nextId());
+				packetInfo.setSrc(this.ipv6.sourceToByteArray(address6));
+				packetInfo.setDst(this.ipv6.destinationToByteArray(address6));
 				packetInfo.setTimeStamp(packet.getCaptureHeader().timestampInMillis());			
 				
 				if(packet.hasHeader(this.tcp)){						
@@ -267,6 +300,7 @@ public class PacketReader {
 				}		
 			}
 		}catch(Exception e){
+			parseFailed = true;
 			logger.debug(e.getMessage());
 			packet.scan(ipv6.getId());
 			String errormsg = "";
@@ -278,36 +312,37 @@ public class PacketReader {
 			//System.out.println(errormsg);
 			logger.debug(errormsg);
 			//System.exit(-1);
-			return null;			
+			return false;			
 		}
 				
-		return packetInfo;
+		return decoded;
 	}
 	
-	private BasicPacketInfo getVPNInfo(PcapPacket packet){		
-		BasicPacketInfo packetInfo = null;		
+	private boolean getVPNInfo(PcapPacket packet, BasicPacketInfo packetInfo){		
+		boolean decoded = false;		
 		try {
 			packet.scan(L2TP.ID);
 			
 			if (packet.hasHeader(l2tp)){				
 		    	if(this.readIP4){		
 		    		packet.scan(ipv4.getId());
-		    		packetInfo = getIpv4Info(packet);
-		    		if (packetInfo == null && this.readIP6){
+		    		decoded = getIpv4Info(packet, packetInfo);
+		    		if (!decoded && this.readIP6){
 		    			packet.scan(ipv6.getId());
-		    			packetInfo = getIpv6Info(packet);				 	
+		    			decoded = getIpv6Info(packet, packetInfo);				 	
 		    		}					 
 		    	}else if(this.readIP6){
 		    		packet.scan(ipv6.getId());
-		    		packetInfo = getIpv6Info(packet);
-		    		if (packetInfo == null && this.readIP4){
+		    		decoded = getIpv6Info(packet, packetInfo);
+		    		if (!decoded && this.readIP4){
 		    			packet.scan(ipv4.getId());
-		    			packetInfo = getIpv4Info(packet);
+		    			decoded = getIpv4Info(packet, packetInfo);
 		    		}
 		    	}				
 
 			}
 		} catch (Exception e) {
+			parseFailed = true;
 			logger.debug(e.getMessage());
 			packet.scan(l2tp.getId());
 			String errormsg = "";
@@ -319,12 +354,18 @@ public class PacketReader {
 			//System.out.println(errormsg);
 			logger.debug(errormsg);
 			//System.exit(-1);
-			return null;
+			return false;
 		}
 		
-		return packetInfo;
+		return decoded;
 	}	
 
+	@Override
+	public void close() {
+		pcapReader.close();
+	}
+
+	@Override
 	public long getFirstPacket() {
 		return firstPacket;
 	}
@@ -333,6 +374,7 @@ public class PacketReader {
 		this.firstPacket = firstPacket;
 	}
 
+	@Override
 	public long getLastPacket() {
 		return lastPacket;
 	}
@@ -343,58 +385,80 @@ public class PacketReader {
 
 	/*
 	 * So far,The value of the field BasicPacketInfo.id is not used
-	 * It doesn't matter just using a static IdGenerator for realtime PcapPacket reading
+	 * It doesn't matter just using a static IdGenerator for realtime PcapPacket reading,
+	 * every capture thread takes its ids from its own block without contending
 	 */
 	private static IdGenerator idGen = new IdGenerator();
 	public static BasicPacketInfo getBasicPacketInfo(PcapPacket packet,boolean readIP4, boolean readIP6) {
-		BasicPacketInfo packetInfo = null;
-		
+		return getBasicPacketInfo(packet, readIP4, readIP6, null);
+	}
+
+	public static BasicPacketInfo getBasicPacketInfo(PcapPacket packet,boolean readIP4, boolean readIP6, CaptureMetrics.Device metrics) {
+		BasicPacketInfo packetInfo = new BasicPacketInfo();
+		return getBasicPacketInfo(packet, readIP4, readIP6, metrics, new Protocol(), packetInfo) ? packetInfo : null;
+	}
+
+	/**
+	 * Decodes a packet into a record, with header objects the caller reuses for every packet.
+	 * @return false if the packet could not be decoded
+	 */
+	public static boolean getBasicPacketInfo(PcapPacket packet, boolean readIP4, boolean readIP6,
+			CaptureMetrics.Device metrics, Protocol protocol, BasicPacketInfo packetInfo) {
+		boolean decoded = false;
+		packetInfo.reset();
+		protocol.reset();
 		
-		Protocol protocol = new Protocol();
+		if (metrics != null) {
+			metrics.onPacket(packet.getCaptureHeader().wirelen());
+		}
 		
 		if(readIP4){					 
-			packetInfo = getIpv4Info(packet,protocol);
-			if (packetInfo == null && readIP6){
-				packetInfo = getIpv6Info(packet,protocol);				 	
+			decoded = getIpv4Info(packet,protocol,packetInfo);
+			if (!decoded && readIP6){
+				decoded = getIpv6Info(packet,protocol,packetInfo);				 	
 			}					 
 		}else if(readIP6){
-			packetInfo = getIpv6Info(packet,protocol);
-			if (packetInfo == null && readIP4){
-				packetInfo = getIpv4Info(packet,protocol);
+			decoded = getIpv6Info(packet,protocol,packetInfo);
+			if (!decoded && readIP4){
+				decoded = getIpv4Info(packet,protocol,packetInfo);
 			}
 		}
 		
-		if (packetInfo == null){
-			packetInfo = getVPNInfo(packet,protocol,readIP4,readIP6);
+		if (!decoded){
+			decoded = getVPNInfo(packet,protocol,readIP4,readIP6,packetInfo);
+		}
+		if (metrics != null && protocol.isFailed()) {
+			metrics.onParseFailure();
 		}
 		
-		return packetInfo;
+		return decoded;
 	}
 
-	private static BasicPacketInfo getVPNInfo(PcapPacket packet,Protocol protocol,boolean readIP4, boolean readIP6) {		
-		BasicPacketInfo packetInfo = null;
+	private static boolean getVPNInfo(PcapPacket packet,Protocol protocol,boolean readIP4, boolean readIP6, BasicPacketInfo packetInfo) {		
+		boolean decoded = false;
 		try {
 			packet.scan(L2TP.ID);
 			
 			if (packet.hasHeader(protocol.getL2tp())){
 		    	if(readIP4){		
 		    		packet.scan(protocol.getIpv4().getId());
-		    		packetInfo = getIpv4Info(packet,protocol);
-		    		if (packetInfo == null && readIP6){
+		    		decoded = getIpv4Info(packet,protocol,packetInfo);
+		    		if (!decoded && readIP6){
 		    			packet.scan(protocol.getIpv6().getId());
-		    			packetInfo = getIpv6Info(packet,protocol);				 	
+		    			decoded = getIpv6Info(packet,protocol,packetInfo);				 	
 		    		}					 
 		    	}else if(readIP6){
 		    		packet.scan(protocol.getIpv6().getId());
-		    		packetInfo = getIpv6Info(packet,protocol);
-		    		if (packetInfo == null && readIP4){
+		    		decoded = getIpv6Info(packet,protocol,packetInfo);
+		    		if (!decoded && readIP4){
 		    			packet.scan(protocol.getIpv4().getId());
-		    			packetInfo = getIpv4Info(packet,protocol);
+		    			decoded = getIpv4Info(packet,protocol,packetInfo);
 		    		}
 		    	}				
 
 			}
 		} catch (Exception e) {
+			protocol.setFailed();
 			/*
 			 * BufferUnderflowException while decoding header
 			 * havn't fixed, so do not e.printStackTrace() 
@@ -407,17 +471,19 @@ public class PacketReader {
 			errormsg+="********************************************************************************"+"\n";
 			errormsg+=packet.toHexdump()+"\n";
 			logger.error(errormsg);*/
-			return null;
+			return false;
 		}
 		
-		return packetInfo;
+		return decoded;
 	}
 
-	private static BasicPacketInfo getIpv6Info(PcapPacket packet,Protocol protocol) {
-		BasicPacketInfo packetInfo = null;
+	private static boolean getIpv6Info(PcapPacket packet,Protocol protocol,BasicPacketInfo packetInfo) {
+		boolean decoded = false;
 		try{
 			if(packet.hasHeader(protocol.getIpv6())){
-				packetInfo = new BasicPacketInfo(idGen);
+				decoded = true;
+				packetInfo.reset();
+				packetInfo.setId(idGen.nextId());
 				packetInfo.setSrc(protocol.getIpv6().source());
 				packetInfo.setDst(protocol.getIpv6().destination());
 				packetInfo.setTimeStamp(packet.getCaptureHeader().timestampInMillis());			
@@ -437,6 +503,7 @@ public class PacketReader {
 				}		
 			}
 		}catch(Exception e){
+			protocol.setFailed();
 			/*
 			 * BufferUnderflowException while decoding header
 			 * havn't fixed, so do not e.printStackTrace()
@@ -450,20 +517,21 @@ public class PacketReader {
 			errormsg+=packet.toHexdump()+"\n";
 			logger.error(errormsg);
 			//System.exit(-1);*/
-			return null;			
+			return false;			
 		}
 				
-		return packetInfo;
+		return decoded;
 	}
 
-	private static BasicPacketInfo getIpv4Info(PcapPacket packet,Protocol protocol) {
-		BasicPacketInfo packetInfo = null;		
+	private static boolean getIpv4Info(PcapPacket packet,Protocol protocol,BasicPacketInfo packetInfo) {
+		boolean decoded = false;		
 		try {
 						
 			if (packet.hasHeader(protocol.getIpv4())){
-				packetInfo = new BasicPacketInfo(idGen);
-				packetInfo.setSrc(protocol.getIpv4().source());
-				packetInfo.setDst(protocol.getIpv4().destination());
+				decoded = true;
+				packetInfo.reset();
+				packetInfo.setId(idGen.nextId());
+				packetInfo.setIpv4(protocol.getIpv4().sourceToInt(), protocol.getIpv4().destinationToInt());
 				//packetInfo.setTimeStamp(packet.getCaptureHeader().timestampInMillis());
 				packetInfo.setTimeStamp(packet.getCaptureHeader().timestampInMicros());
 				
@@ -502,6 +570,7 @@ public class PacketReader {
 				}
 			}
 		} catch (Exception e) {
+			protocol.setFailed();
 			/*
 			 * BufferUnderflowException while decoding header
 			 * havn't fixed, so do not e.printStackTrace()
@@ -517,6 +586,6 @@ public class PacketReader {
 			return null;*/
 		}
 		
-		return packetInfo;
+		return decoded;
 	}
 }
@@ -0,0 +1,252 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Bounded multi-producer single-consumer ring of preallocated, mutable slots, in the style of the LMAX Disruptor.
+ *
+ * Producers claim a range of sequences with one CAS ({@link #next(int)} waits for room,
+ * {@link #tryNext(int)} gives up when the ring is full), fill the slots in place and
+ * {@link #publish(long, long)} the range. The consumer hands every published slot to a handler in one
+ * batch and frees them all at once. Nothing is allocated per element.
+ *
+ * Each slot has an availability flag holding the round (sequence / capacity) it was last published
+ * in, so producers that finish out of order never expose a slot that is still being filled.
+ */
+public class PacketRing<E> {
+    public static final Logger logger = LoggerFactory.getLogger(PacketRing.class);
+
+    public interface Handler<E> {
+        void onSlot(E slot, boolean endOfBatch);
+    }
+
+    /**
+     * How the consumer waits for slots to be published.
+     */
+    public enum WaitStrategy {
+        /** busy spin, lowest latency but keeps a core busy per consumer */
+        SPIN,
+        /** yield the core to other threads between polls */
+        YIELD,
+        /** yield a few times, then park for up to a millisecond */
+        SLEEP,
+        /** sleep on a condition that producers signal */
+        BLOCK;
+
+        /**
+         * Strategy from the cfm.waitStrategy system property, SLEEP by default.
+         */
+        public static WaitStrategy fromProperty() {
+            String name = System.getProperty("cfm.waitStrategy", SLEEP.name());
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown cfm.waitStrategy {}, using {}", name, SLEEP);
+                return SLEEP;
+            }
+        }
+    }
+
+    private static final int SPINS = 64;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Object[] slots;
+    private final AtomicIntegerArray published;
+    private final int mask;
+    private final int shift;
+    private final WaitStrategy waitStrategy;
+
+    // highest sequence claimed by a producer
+    private final AtomicLong cursor = new AtomicLong(-1L);
+    // highest sequence the consumer is done with; written by the consumer only
+    private final AtomicLong consumed = new AtomicLong(-1L);
+    private volatile long peakSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile boolean consumerWaiting;
+
+    public PacketRing(int capacity, Supplier<E> factory, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new Object[size];
+        published = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = factory.get();
+            published.set(i, -1);
+        }
+        mask = size - 1;
+        shift = Integer.numberOfTrailingZeros(size);
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Claims the next n sequences, waiting while the ring is full.
+     * @return the highest claimed sequence, the range is [result - n + 1, result]
+     */
+    public long next(int n) {
+        checkBatch(n);
+        int idle = 0;
+        while (true) {
+            long current = cursor.get();
+            long next = current + n;
+            if (next - consumed.get() > slots.length) {
+                idle = backOff(idle);
+            } else if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Claims the next n sequences if there is room for all of them.
+     * @return the highest claimed sequence, or -1 if the ring is full
+     */
+    public long tryNext(int n) {
+        checkBatch(n);
+        while (true) {
+            long current = cursor.get();
+            long next = current + n;
+            if (next - consumed.get() > slots.length) {
+                return -1L;
+            }
+            if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) slots[(int) sequence & mask];
+    }
+
+    public void publish(long sequence) {
+        publish(sequence, sequence);
+    }
+
+    /**
+     * Hands the filled slots [lo, hi] to the consumer.
+     */
+    public void publish(long lo, long hi) {
+        for (long sequence = lo; sequence < hi; sequence++) {
+            published.lazySet((int) sequence & mask, (int) (sequence >>> shift));
+        }
+        if (waitStrategy != WaitStrategy.BLOCK) {
+            published.lazySet((int) hi & mask, (int) (hi >>> shift));
+            return;
+        }
+        // a full store, so either the consumer sees the slot or we see it waiting
+        published.set((int) hi & mask, (int) (hi >>> shift));
+        if (consumerWaiting) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Consumer side only: hands every published slot to the handler, in sequence order, then frees them.
+     * @return the number of slots handled
+     */
+    public int poll(Handler<? super E> handler) {
+        long first = consumed.get() + 1;
+        long claimed = cursor.get();
+        long last = first - 1;
+        while (last < claimed && isPublished(last + 1)) {
+            last++;
+        }
+        if (last < first) {
+            return 0;
+        }
+        long size = claimed - first + 1;
+        if (size > peakSize) {
+            peakSize = size;
+        }
+        for (long sequence = first; sequence <= last; sequence++) {
+            handler.onSlot(get(sequence), sequence == last);
+        }
+        consumed.lazySet(last);
+        return (int) (last - first + 1);
+    }
+
+    /**
+     * Consumer side only: waits once according to the wait strategy, after a poll that found nothing.
+     * @param idle number of empty polls in a row so far
+     * @return the new number of empty polls in a row
+     */
+    public int await(int idle) {
+        switch (waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case BLOCK:
+                lock.lock();
+                try {
+                    consumerWaiting = true;
+                    if (!isPublished(consumed.get() + 1)) {
+                        notEmpty.awaitNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    consumerWaiting = false;
+                    lock.unlock();
+                }
+                break;
+            default:
+                return backOff(idle);
+        }
+        return idle + 1;
+    }
+
+    /**
+     * @return number of claimed slots the consumer is not done with yet
+     */
+    public long size() {
+        return Math.max(0L, cursor.get() - consumed.get());
+    }
+
+    /**
+     * @return the largest backlog the consumer has found so far
+     */
+    public long peakSize() {
+        return peakSize;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> shift);
+    }
+
+    private void checkBatch(int n) {
+        if (n < 1 || n > slots.length) {
+            throw new IllegalArgumentException("Cannot claim " + n + " slots of " + slots.length);
+        }
+    }
+
+    private static int backOff(int idle) {
+        if (idle < SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(idle - SPINS, 10)));
+        }
+        return idle + 1;
+    }
+}
@@ -0,0 +1,74 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.jnetpcap.PcapClosedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * A stream of decoded packets from a capture.
+ *
+ * {@link #nextPacket(BasicPacketInfo)} fills a record the caller reuses for every packet, so reading
+ * allocates nothing per packet; it returns false for packets that could not be decoded and throws
+ * {@link PcapClosedException} once the capture is exhausted.
+ */
+public interface PacketSource {
+
+    String JNETPCAP = "jnetpcap";
+    String MMAP = "mmap";
+
+    /**
+     * Resets the record and decodes the next packet into it.
+     * @return false if the packet could not be decoded, the record then holds no packet
+     */
+    boolean nextPacket(BasicPacketInfo packet);
+
+    /**
+     * Decodes the next packet into a new record.
+     * @return the packet, or null if it could not be decoded
+     */
+    default BasicPacketInfo nextPacket() {
+        BasicPacketInfo packet = new BasicPacketInfo();
+        return nextPacket(packet) ? packet : null;
+    }
+
+    /**
+     * @return capture time of the first packet in milliseconds
+     */
+    long getFirstPacket();
+
+    /**
+     * @return capture time of the last packet read so far in milliseconds
+     */
+    long getLastPacket();
+
+    void close();
+
+    /**
+     * Opens a capture file with the reader selected by the cfm.packetSource system property:
+     * "jnetpcap" (default) or "mmap" for {@link MappedPcapReader}, which needs no native library.
+     * Falls back to the mmap reader when the jnetpcap native library cannot be loaded.
+     */
+    static PacketSource openOffline(String filename, boolean readIP4, boolean readIP6) {
+        Logger logger = LoggerFactory.getLogger(PacketSource.class);
+        String kind = System.getProperty("cfm.packetSource", JNETPCAP);
+        if (!MMAP.equalsIgnoreCase(kind)) {
+            if (!JNETPCAP.equalsIgnoreCase(kind)) {
+                logger.warn("Unknown cfm.packetSource {}, using {}", kind, JNETPCAP);
+            }
+            try {
+                return new PacketReader(filename, readIP4, readIP6);
+            } catch (LinkageError e) {
+                logger.warn("jnetpcap is not available ({}), reading {} with the mmap reader", e.toString(), filename);
+            }
+        }
+        try {
+            return new MappedPcapReader(filename, readIP4, readIP6);
+        } catch (IOException e) {
+            logger.error("Error while opening file for capture: {}", e.getMessage());
+            System.exit(-1);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import cic.cs.unb.ca.jnetpcap.worker.FlowGenListener;
+import org.jnetpcap.PcapClosedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the flows of one large classic pcap file on several threads.
+ *
+ * The file is cut at record boundaries into byte ranges ("slices"), and every slice is read by its own
+ * {@link MappedPcapReader} into its own {@link FlowGenerator}. A slice starts without the flows that were
+ * still open at its beginning, so connections that cross a boundary are reconciled afterwards, one
+ * boundary after the other: the flows open at the end of the previous slice are carried into a new
+ * generator, and the packets the slice saw of their connections are replayed into them until the
+ * connection is started afresh at the same packet as in the slice. The slice's own flows are exact
+ * from that packet on. The flows written are those of a sequential run, in a different order.
+ *
+ * That holds only while no expired connections are remembered: a connection that resumes after its
+ * flow expired continues it however much later it resumes, and which connections are still remembered
+ * depends on every expiry before. Files are therefore only sliced with cfm.resumableFlows=0.
+ *
+ * Only connections that show up before the flow timeout has elapsed in a slice can continue a carried
+ * flow, so only their packets are remembered (16 bytes each). Slices should therefore span much more
+ * time than the flow timeout.
+ */
+public class PcapSlicer {
+    public static final Logger logger = LoggerFactory.getLogger(PcapSlicer.class);
+
+    private static final long DEFAULT_MIN_SLICE_BYTES = 1L << 30;
+
+    private final String file;
+    private final boolean readIP4;
+    private final boolean readIP6;
+    private final long[] bounds;
+    private final long flowTimeout;
+    private final long activityTimeout;
+    private FlowGenListener mListener;
+    private List<BasicFlow> remaining = Collections.emptyList();
+
+    private PcapSlicer(String file, boolean readIP4, boolean readIP6, long[] bounds, long flowTimeout, long activityTimeout) {
+        this.file = file;
+        this.readIP4 = readIP4;
+        this.readIP6 = readIP6;
+        this.bounds = bounds;
+        this.flowTimeout = flowTimeout;
+        this.activityTimeout = activityTimeout;
+    }
+
+    /**
+     * Minimum slice size in bytes from the cfm.sliceBytes system property, 1 GiB by default. 0 disables slicing.
+     */
+    public static long minSliceBytes() {
+        return Long.getLong("cfm.sliceBytes", DEFAULT_MIN_SLICE_BYTES);
+    }
+
+    /**
+     * Cuts the file into at most maxSlices slices of at least {@link #minSliceBytes()} bytes.
+     * @return the slicer, or null if the file is too small, is not a classic pcap file, is not
+     * read with the mmap reader (cfm.packetSource) or expired connections are remembered (cfm.resumableFlows)
+     */
+    public static PcapSlicer open(String file, boolean readIP4, boolean readIP6, int maxSlices,
+                                  long flowTimeout, long activityTimeout) {
+        long minBytes = minSliceBytes();
+        if (maxSlices < 2 || minBytes <= 0
+                || !PacketSource.MMAP.equalsIgnoreCase(System.getProperty("cfm.packetSource", PacketSource.JNETPCAP))) {
+            return null;
+        }
+        int slices = (int) Math.min(maxSlices, new File(file).length() / minBytes);
+        if (slices >= 2 && FlowGenerator.defaultResumableFlows() > 0) {
+            logger.info("{} is read in one piece, run with -Dcfm.resumableFlows=0 to slice it", file);
+            return null;
+        }
+        if (slices < 2) {
+            return null;
+        }
+        MappedPcapReader reader = null;
+        try {
+            reader = new MappedPcapReader(file, readIP4, readIP6);
+            if (reader.isPcapng()) {
+                logger.info("{} is a pcapng file, it is read in one piece", file);
+                return null;
+            }
+            long size = reader.size();
+            long[] bounds = new long[slices + 1];
+            int count = 1;
+            for (int i = 1; i < slices; i++) {
+                long offset = reader.findRecord(size / slices * i);
+                if (offset > bounds[count - 1]) {
+                    bounds[count++] = offset;
+                }
+            }
+            bounds[count] = size;
+            if (count < 2) {
+                logger.info("No record boundaries found to slice {}", file);
+                return null;
+            }
+            return new PcapSlicer(file, readIP4, readIP6, Arrays.copyOf(bounds, count + 1), flowTimeout, activityTimeout);
+        } catch (IOException e) {
+            logger.debug("Cannot slice {}: {}", file, e.getMessage());
+            return null;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    public int getSliceCount() {
+        return bounds.length - 1;
+    }
+
+    public void addFlowListener(FlowGenListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Reads all slices in parallel and delivers the finished flows to the listener, one at a time.
+     * The flows still open at the end of the file can be dumped afterwards.
+     */
+    public Stats run() throws IOException, InterruptedException {
+        int count = getSliceCount();
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(count, r -> {
+            Thread thread = new Thread(r, "pcap-slice-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Slice>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                futures.add(pool.submit(new Slice(i, bounds[i], bounds[i + 1])));
+            }
+            Stats stats = new Stats();
+            List<BasicFlow> open = null;
+            long clock = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                Slice slice = get(futures.get(i));
+                futures.set(i, null);
+                open = i == 0 ? slice.generator.getCurrentFlows() : reconcile(slice, open, clock);
+                stats.add(slice);
+                clock = Math.max(clock, slice.maxTimestamp);
+                if (i + 1 < count && slice.stoppedAt != bounds[i + 1]) {
+                    throw new IOException(String.format("Slice boundary at offset %d of %s is not a record boundary, "
+                            + "run again with -Dcfm.sliceBytes=0", bounds[i + 1], file));
+                }
+            }
+            remaining = open;
+            return stats;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Appends the flows still open at the end of the file, see {@link FlowGenerator#dumpLabeledCurrentFlow(String, String)}.
+     * Only valid after {@link #run()}.
+     */
+    public long dumpLabeledCurrentFlow(String fileFullPath, String header) {
+        FlowGenerator generator = new FlowGenerator(true, flowTimeout, activityTimeout);
+        for (BasicFlow flow : remaining) {
+            generator.adopt(flow);
+        }
+        return generator.dumpLabeledCurrentFlow(fileFullPath, header);
+    }
+
+    /**
+     * Hands the flows still open at the end of the file to a listener, see
+     * {@link FlowGenerator#dumpLabeledCurrentFlow(FlowGenListener)}. Only valid after {@link #run()}.
+     */
+    public long dumpLabeledCurrentFlow(FlowGenListener listener) {
+        FlowGenerator generator = new FlowGenerator(true, flowTimeout, activityTimeout);
+        for (BasicFlow flow : remaining) {
+            generator.adopt(flow);
+        }
+        return generator.dumpLabeledCurrentFlow(listener);
+    }
+
+    private List<BasicFlow> reconcile(Slice slice, List<BasicFlow> carried, long clock) throws IOException {
+        FlowGenerator replay = new FlowGenerator(true, flowTimeout, activityTimeout);
+        replay.addFlowListener(this::deliver);
+        replay.advanceTime(clock);
+        for (BasicFlow flow : carried) {
+            replay.adopt(flow);
+        }
+
+        PriorityQueue<Tail> dirty = new PriorityQueue<>(Comparator.comparingLong(Tail::nextPosition));
+        slice.tails.forEach(tail -> {
+            if (replay.currentFlow(tail.probe) != null) {
+                tail.keepFrom = Long.MAX_VALUE;
+                dirty.add(tail);
+            }
+        });
+        int connections = dirty.size();
+        long replayed = 0;
+        if (!dirty.isEmpty()) {
+            MappedPcapReader reader = new MappedPcapReader(file, readIP4, readIP6);
+            BasicPacketInfo packet = new BasicPacketInfo();
+            try {
+                while (!dirty.isEmpty()) {
+                    Tail tail = dirty.poll();
+                    int i = tail.cursor++;
+                    long position = tail.positions[i] >>> 1;
+                    replay.advanceTime(Math.max(clock, tail.clocks[i]));
+                    if ((tail.positions[i] & 1L) != 0 && replay.currentFlow(tail.probe) == null) {
+                        // both start the connection afresh with this packet, the slice is exact from here on
+                        tail.keepFrom = position;
+                        continue;
+                    }
+                    if (reader.packetAt(position, packet)) {
+                        replay.addPacket(packet);
+                    }
+                    replayed++;
+                    if (tail.cursor < tail.count) {
+                        dirty.add(tail);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        replay.advanceTime(Math.max(clock, slice.maxTimestamp));
+        logger.debug("Slice {} of {}: {} flows carried in, {} connections replayed with {} packets",
+                slice.index, file, carried.size(), connections, replayed);
+
+        List<BasicFlow> open = replay.getCurrentFlows();
+        slice.tails.forEach(tail -> tail.settle(open));
+        for (BasicFlow flow : slice.generator.getCurrentFlows()) {
+            if (slice.tails.find(flow) < 0) {
+                open.add(flow);
+            }
+        }
+        return open;
+    }
+
+    private void deliver(BasicFlow flow) {
+        synchronized (this) {
+            if (mListener != null) {
+                mListener.onFlowGenerated(flow);
+            }
+        }
+    }
+
+    private static Slice get(Future<Slice> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private final class Slice implements Callable<Slice> {
+        final int index;
+        final long start;
+        final long end;
+        final FlowGenerator generator;
+        // connections seen before the flow timeout elapsed, the only ones that may continue a carried flow
+        final FlowTable<Tail> tails = new FlowTable<>();
+        long horizonTick;
+        boolean pastHorizon;
+
+        long stoppedAt;
+        long decoded;
+        long discarded;
+        long disorderedAt;
+        long firstTimestamp;
+        long lastTimestamp;
+        long maxTimestamp = Long.MIN_VALUE;
+
+        Slice(int index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.generator = new FlowGenerator(true, flowTimeout, activityTimeout);
+        }
+
+        @Override
+        public Slice call() throws IOException {
+            generator.addFlowListener(index == 0 ? PcapSlicer.this::deliver : this::finished);
+            MappedPcapReader reader = new MappedPcapReader(file, readIP4, readIP6);
+            try {
+                reader.setRange(start, end);
+                BasicPacketInfo packet = new BasicPacketInfo();
+                while (true) {
+                    long position = reader.position();
+                    boolean decoded;
+                    try {
+                        decoded = reader.nextPacket(packet);
+                    } catch (PcapClosedException e) {
+                        break;
+                    }
+                    if (decoded) {
+                        add(position, packet);
+                    } else {
+                        discarded++;
+                    }
+                }
+                stoppedAt = reader.position();
+            } finally {
+                reader.close();
+            }
+            return this;
+        }
+
+        private void add(long position, BasicPacketInfo packet) {
+            long timestamp = packet.getTimeStamp();
+            decoded++;
+            if (decoded == 1) {
+                firstTimestamp = timestamp;
+                // carried flows expire by firstTimestamp + flowTimeout, once the clock leaves that tick
+                horizonTick = TimerWheel.tickOf(timestamp + flowTimeout);
+            } else if (disorderedAt == 0 && timestamp < lastTimestamp) {
+                disorderedAt = decoded;
+            }
+            lastTimestamp = timestamp;
+
+            Tail tail = null;
+            if (index > 0) {
+                int slot = tails.find(packet);
+                if (slot >= 0) {
+                    tail = tails.get(slot);
+                } else if (!pastHorizon) {
+                    tail = new Tail(packet.copy());
+                    tails.insert(slot, tail, true);
+                }
+            }
+            if (tail == null) {
+                generator.addPacket(packet);
+            } else {
+                BasicFlow before = generator.currentFlow(packet);
+                tail.record(position, before == null, maxTimestamp);
+                generator.addPacket(packet);
+                BasicFlow after = generator.currentFlow(packet);
+                if (after != null && after != before) {
+                    tail.created(after, position);
+                }
+            }
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            if (TimerWheel.tickOf(timestamp) > horizonTick) {
+                pastHorizon = true;
+            }
+        }
+
+        // flows of remembered connections wait for the reconciliation
+        private void finished(BasicFlow flow) {
+            int slot = tails.find(flow);
+            if (slot >= 0) {
+                tails.get(slot).finished++;
+            } else {
+                deliver(flow);
+            }
+        }
+    }
+
+    /**
+     * What a slice saw of one connection.
+     */
+    private final class Tail {
+        final BasicPacketInfo probe;
+        // file offset << 1, plus 1 if the slice had no open flow for the connection when the packet arrived
+        long[] positions = new long[4];
+        // latest timestamp the slice had seen before the packet
+        long[] clocks = new long[4];
+        int count;
+        int cursor;
+
+        // flows the slice created for the connection, with the offset of their first packet; they
+        // finish in creation order, so all but possibly the last are finished
+        final List<BasicFlow> flows = new ArrayList<>(2);
+        long[] starts = new long[2];
+        int finished;
+        long keepFrom = Long.MIN_VALUE;
+
+        Tail(BasicPacketInfo probe) {
+            this.probe = probe;
+        }
+
+        void record(long position, boolean fresh, long clock) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count << 1);
+                clocks = Arrays.copyOf(clocks, count << 1);
+            }
+            positions[count] = position << 1 | (fresh ? 1L : 0L);
+            clocks[count++] = clock;
+        }
+
+        void created(BasicFlow flow, long position) {
+            if (flows.size() == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length << 1);
+            }
+            starts[flows.size()] = position;
+            flows.add(flow);
+        }
+
+        long nextPosition() {
+            return positions[cursor] >>> 1;
+        }
+
+        // delivers the finished flows that are exact and hands over the open one
+        void settle(List<BasicFlow> open) {
+            for (int i = 0; i < flows.size(); i++) {
+                if (starts[i] < keepFrom) {
+                    continue;
+                }
+                if (i < finished) {
+                    deliver(flows.get(i));
+                } else {
+                    open.add(flows.get(i));
+                }
+            }
+        }
+    }
+
+    public static class Stats {
+        private long valid;
+        private long discarded;
+        private long disorderedId;
+        private boolean seen;
+        private long lastTimestamp;
+
+        private void add(Slice slice) {
+            if (disorderedId == 0) {
+                if (slice.decoded > 0 && seen && lastTimestamp > slice.firstTimestamp) {
+                    disorderedId = valid + 1;
+                } else if (slice.disorderedAt > 0) {
+                    disorderedId = valid + slice.disorderedAt;
+                }
+            }
+            if (slice.decoded > 0) {
+                seen = true;
+                lastTimestamp = slice.lastTimestamp;
+            }
+            valid += slice.decoded;
+            discarded += slice.discarded;
+        }
+
+        public long getTotal() {
+            return valid + discarded;
+        }
+
+        public long getValid() {
+            return valid;
+        }
+
+        public long getDiscarded() {
+            return discarded;
+        }
+
+        /**
+         * @return ID of the first packet that is older than the one before it, or 0 if the file is ordered
+         */
+        public long getDisorderedId() {
+            return disorderedId;
+        }
+    }
+}
@@ -13,6 +13,7 @@ public class Protocol {
 	private Ip4  ipv4;
 	private Ip6  ipv6;
 	private L2TP l2tp;
+	private boolean failed;
 	public Protocol() {
 		super();
 		tcp = new Tcp();
@@ -40,5 +41,17 @@ public class Protocol {
 	public L2TP getL2tp() {
 		return l2tp;
 	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+	public void setFailed() {
+		this.failed = true;
+	}
+
+	public void reset() {
+		this.failed = false;
+	}
 	
 }
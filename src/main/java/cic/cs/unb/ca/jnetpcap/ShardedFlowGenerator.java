@@ -0,0 +1,466 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import cic.cs.unb.ca.jnetpcap.worker.FlowGenListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Partitions packets over independent FlowGenerator shards, RSS style.
+ *
+ * A packet goes to the shard picked by the symmetric hash of its 5-tuple, so both directions of a
+ * connection always meet the same FlowGenerator. Every shard is owned by one worker thread and fed
+ * through a preallocated lock-free {@link PacketRing}; addPacket may be called from several capture
+ * threads at once. Finished flows of all shards are delivered to a single listener, one at a time.
+ *
+ * Flow expiration keeps the order of a single FlowGenerator: whenever a packet moves the capture
+ * clock into a new tick of the timing wheel, the timestamp is passed in-band to every other shard.
+ */
+public class ShardedFlowGenerator {
+    public static final Logger logger = LoggerFactory.getLogger(ShardedFlowGenerator.class);
+
+    private static final int PACKET = 0;
+    private static final int TICK = 1;
+    private static final int STOP = 2;
+    private static final int SNAPSHOT = 3;
+
+    private final Shard[] shards;
+    private final AtomicLong clockTick = new AtomicLong(Long.MIN_VALUE);
+    private volatile FlowGenListener mListener;
+
+    public ShardedFlowGenerator(int shardCount, boolean bidirectional, long flowTimeout, long activityTimeout) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        }
+        FlowGenListener merged = flow -> {
+            FlowGenListener listener = mListener;
+            if (listener != null) {
+                synchronized (this) {
+                    listener.onFlowGenerated(flow);
+                }
+            }
+        };
+        int ringSize = defaultRingSize();
+        PacketRing.WaitStrategy waitStrategy = PacketRing.WaitStrategy.fromProperty();
+        // the hash spreads flows evenly, so every shard gets its share of the flow limits
+        int maxFlows = FlowGenerator.defaultMaxFlows();
+        int resumableFlows = FlowGenerator.defaultResumableFlows();
+        FlowGenerator.EvictionPolicy evictionPolicy = FlowGenerator.EvictionPolicy.fromProperty();
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            FlowGenerator generator = new FlowGenerator(bidirectional, flowTimeout, activityTimeout);
+            generator.setFlowLimit((maxFlows + shardCount - 1) / shardCount, evictionPolicy);
+            generator.setResumableFlows((resumableFlows + shardCount - 1) / shardCount);
+            generator.addFlowListener(merged);
+            shards[i] = new Shard(i, generator, new PacketRing<>(ringSize, Event::new, waitStrategy));
+        }
+        for (Shard shard : shards) {
+            shard.start();
+        }
+    }
+
+    /**
+     * Number of shards from the cfm.shards system property, one per available core by default.
+     */
+    public static int defaultShardCount() {
+        return Math.max(1, Integer.getInteger("cfm.shards", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Slots of each shard's ring from the cfm.ringSize system property, rounded up to a power of two.
+     */
+    public static int defaultRingSize() {
+        return Math.max(2, Integer.getInteger("cfm.ringSize", 1 << 14));
+    }
+
+    public void addFlowListener(FlowGenListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues a packet for its shard, waiting while that shard is saturated.
+     */
+    public void addPacket(BasicPacketInfo packet) {
+        if (packet == null) {
+            return;
+        }
+        int target = shardOf(packet);
+        Shard shard = shards[target];
+        long sequence = shard.ring.next(1);
+        shard.ring.get(sequence).packet(packet);
+        shard.ring.publish(sequence);
+        tick(packet.getTimeStamp(), target, true);
+    }
+
+    /**
+     * Queues a packet for its shard without ever waiting, for capture threads that must keep up with
+     * the interface. The packet is counted as dropped when the shard's ring is full.
+     * @return false if the packet was dropped
+     */
+    public boolean offerPacket(BasicPacketInfo packet) {
+        if (packet == null) {
+            return true;
+        }
+        int target = shardOf(packet);
+        Shard shard = shards[target];
+        long sequence = shard.ring.tryNext(1);
+        boolean queued = sequence >= 0;
+        if (queued) {
+            shard.ring.get(sequence).packet(packet);
+            shard.ring.publish(sequence);
+        } else {
+            shard.dropped.increment();
+        }
+        tick(packet.getTimeStamp(), target, false);
+        return queued;
+    }
+
+    /**
+     * Queues packets[0, count) in order, claiming and publishing one range of slots per shard
+     * instead of one slot per packet. Meant for a single reading thread, such as a file reader.
+     */
+    public void addPackets(BasicPacketInfo[] packets, int count) {
+        // a shard may get a tick for every packet as well, so a batch needs up to twice its size in slots
+        int batch = shards[0].ring.capacity() / 2;
+        for (int from = 0; from < count; from += batch) {
+            addBatch(packets, from, Math.min(count, from + batch));
+        }
+    }
+
+    private void addBatch(BasicPacketInfo[] packets, int from, int to) {
+        int count = to - from;
+        int[] targets = new int[count];
+        long[] ticks = new long[count];
+        int[] events = new int[shards.length];
+        int nTicks = 0;
+        for (int i = 0; i < count; i++) {
+            BasicPacketInfo packet = packets[from + i];
+            if (packet == null) {
+                targets[i] = -1;
+                continue;
+            }
+            targets[i] = shardOf(packet);
+            events[targets[i]]++;
+            ticks[i] = Long.MIN_VALUE;
+            long tick = TimerWheel.tickOf(packet.getTimeStamp());
+            long last = clockTick.get();
+            if (tick > last && clockTick.compareAndSet(last, tick)) {
+                ticks[i] = packet.getTimeStamp();
+                nTicks++;
+                events[targets[i]]--;
+            }
+        }
+        // a shard gets every tick but the ones raised by its own packets
+        long[] cursors = new long[shards.length];
+        long[] ends = new long[shards.length];
+        for (Shard shard : shards) {
+            int n = events[shard.index] + nTicks;
+            if (n == 0) {
+                continue;
+            }
+            ends[shard.index] = shard.ring.next(n);
+            cursors[shard.index] = ends[shard.index] - n + 1;
+        }
+        long[] starts = cursors.clone();
+        for (int i = 0; i < count; i++) {
+            int target = targets[i];
+            if (target < 0) {
+                continue;
+            }
+            shards[target].ring.get(cursors[target]++).packet(packets[from + i]);
+            if (ticks[i] != Long.MIN_VALUE) {
+                for (Shard shard : shards) {
+                    if (shard.index != target) {
+                        shard.ring.get(cursors[shard.index]++).tick(ticks[i]);
+                    }
+                }
+            }
+        }
+        for (Shard shard : shards) {
+            if (events[shard.index] + nTicks > 0) {
+                shard.ring.publish(starts[shard.index], ends[shard.index]);
+            }
+        }
+    }
+
+    /**
+     * Moves the expiration clock of every shard, see {@link FlowGenerator#advanceTime(long)}.
+     */
+    public void advanceTime(long timestamp) {
+        for (Shard shard : shards) {
+            long sequence = shard.ring.next(1);
+            shard.ring.get(sequence).tick(timestamp);
+            shard.ring.publish(sequence);
+        }
+    }
+
+    /**
+     * Renders the open flows of every shard as CSV rows, see {@link FlowGenerator#snapshotCurrentFlows(Consumer)}.
+     * The request is queued behind the packets already handed over, and each shard only copies its
+     * flows between two packets. The copies are rendered on the calling thread, so the shards go back
+     * to their packets while the rows are formatted and written. Blocks until every shard has copied
+     * its flows; call it from a thread that drives nothing else.
+     * @return number of rows
+     */
+    public long snapshotCurrentFlows(Consumer<String> rows) throws InterruptedException {
+        SnapshotRequest request = new SnapshotRequest(shards.length);
+        for (Shard shard : shards) {
+            long sequence = shard.ring.next(1);
+            shard.ring.get(sequence).snapshot(request);
+            shard.ring.publish(sequence);
+        }
+        request.done.await();
+        long total = 0;
+        for (List<BasicFlow> copies : request.copies) {
+            for (BasicFlow flow : copies) {
+                rows.accept(flow.dumpFlowBasedFeaturesEx());
+                total++;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Processes every queued packet and stops the worker threads. The shards can be dumped afterwards.
+     */
+    public void finish() {
+        for (Shard shard : shards) {
+            long sequence = shard.ring.next(1);
+            shard.ring.get(sequence).stop();
+            shard.ring.publish(sequence);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while waiting for {}", shard.thread.getName());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends the flows still open in every shard, see {@link FlowGenerator#dumpLabeledCurrentFlow(String, String)}.
+     * Only valid after {@link #finish()}.
+     */
+    public long dumpLabeledCurrentFlow(String fileFullPath, String header) {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.generator.dumpLabeledCurrentFlow(fileFullPath, header);
+        }
+        return total;
+    }
+
+    /**
+     * Hands the flows still open in every shard to a listener, see {@link FlowGenerator#dumpLabeledCurrentFlow(FlowGenListener)}.
+     * Only valid after {@link #finish()}.
+     */
+    public long dumpLabeledCurrentFlow(FlowGenListener listener) {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.generator.dumpLabeledCurrentFlow(listener);
+        }
+        return total;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return number of open flows in all shards, read without stopping them
+     */
+    public long getActiveFlowCount() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.generator.getActiveFlowCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return flows of all shards finished early under the flow limit, see {@link FlowGenerator#getEvictedFlowCount()}
+     */
+    public long getEvictedFlowCount() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.generator.getEvictedFlowCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return lone SYN packets of all shards refused a flow, see {@link FlowGenerator#getRefusedFlowCount()}
+     */
+    public long getRefusedFlowCount() {
+        long count = 0;
+        for (Shard shard : shards) {
+            count += shard.generator.getRefusedFlowCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return packets and clock ticks queued in all shards and not processed yet
+     */
+    public long getQueueDepth() {
+        long depth = 0;
+        for (Shard shard : shards) {
+            depth += shard.ring.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the largest backlog any single shard has had so far
+     */
+    public long getPeakQueueDepth() {
+        long peak = 0;
+        for (Shard shard : shards) {
+            peak = Math.max(peak, shard.ring.peakSize());
+        }
+        return peak;
+    }
+
+    /**
+     * @return packets refused by {@link #offerPacket(BasicPacketInfo)} because their shard was full
+     */
+    public long getDroppedPackets() {
+        long dropped = 0;
+        for (Shard shard : shards) {
+            dropped += shard.dropped.sum();
+        }
+        return dropped;
+    }
+
+    private int shardOf(BasicPacketInfo packet) {
+        return (FlowTable.symmetricHash(packet) & Integer.MAX_VALUE) % shards.length;
+    }
+
+    private void tick(long timestamp, int target, boolean wait) {
+        long tick = TimerWheel.tickOf(timestamp);
+        long last = clockTick.get();
+        if (tick > last && clockTick.compareAndSet(last, tick)) {
+            for (Shard shard : shards) {
+                if (shard.index == target) {
+                    continue;
+                }
+                // a lost tick only delays expiration until the next one
+                long sequence = wait ? shard.ring.next(1) : shard.ring.tryNext(1);
+                if (sequence >= 0) {
+                    shard.ring.get(sequence).tick(timestamp);
+                    shard.ring.publish(sequence);
+                }
+            }
+        }
+    }
+
+    private static final class SnapshotRequest {
+        // the copies of each shard, indexed by shard and published by counting down done
+        final List<List<BasicFlow>> copies;
+        final CountDownLatch done;
+
+        SnapshotRequest(int shards) {
+            this.copies = new ArrayList<>(Collections.<List<BasicFlow>>nCopies(shards, Collections.emptyList()));
+            this.done = new CountDownLatch(shards);
+        }
+    }
+
+    /**
+     * A preallocated ring slot, filled in place by the producers. The packet is copied into the slot's
+     * own record, so producers can reuse theirs for the next packet.
+     */
+    private static final class Event {
+        int kind;
+        final BasicPacketInfo packet = new BasicPacketInfo();
+        long timestamp;
+        SnapshotRequest snapshot;
+
+        void packet(BasicPacketInfo packet) {
+            this.kind = PACKET;
+            this.packet.copyFrom(packet);
+        }
+
+        void tick(long timestamp) {
+            this.kind = TICK;
+            this.timestamp = timestamp;
+        }
+
+        void stop() {
+            this.kind = STOP;
+        }
+
+        void snapshot(SnapshotRequest snapshot) {
+            this.kind = SNAPSHOT;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static final class Shard implements Runnable, PacketRing.Handler<Event> {
+        final int index;
+        final FlowGenerator generator;
+        final PacketRing<Event> ring;
+        final LongAdder dropped = new LongAdder();
+        final Thread thread;
+        private boolean stopped;
+
+        Shard(int index, FlowGenerator generator, PacketRing<Event> ring) {
+            this.index = index;
+            this.generator = generator;
+            this.ring = ring;
+            this.thread = new Thread(this, "flow-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (!stopped) {
+                idle = ring.poll(this) > 0 ? 0 : ring.await(idle);
+            }
+        }
+
+        @Override
+        public void onSlot(Event e, boolean endOfBatch) {
+            BasicPacketInfo packet = e.packet;
+            SnapshotRequest snapshot = e.snapshot;
+            e.snapshot = null;
+            try {
+                switch (e.kind) {
+                    case PACKET:
+                        generator.addPacket(packet);
+                        break;
+                    case TICK:
+                        generator.advanceTime(e.timestamp);
+                        break;
+                    case SNAPSHOT:
+                        try {
+                            List<BasicFlow> copies = new ArrayList<>();
+                            generator.snapshotCurrentFlows(copies::add);
+                            snapshot.copies.set(index, copies);
+                        } finally {
+                            snapshot.done.countDown();
+                        }
+                        break;
+                    default:
+                        stopped = true;
+                        break;
+                }
+            } catch (Exception ex) {
+                logger.error("Flow shard {} failed to process {}", index, packet, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package cic.cs.unb.ca.jnetpcap;
+
+/**
+ * A fixed number of running statistics (count, sum, min, max, mean, variance) packed into one double[].
+ *
+ * Replaces one commons-math SummaryStatistics per statistic and reproduces its results bit for bit:
+ * mean and second moment follow the same Welford updates as FirstMoment/SecondMoment, the variance
+ * is bias corrected, and min/max/mean are NaN until the first value.
+ */
+public final class StatsBlock {
+
+    private static final int N = 0;
+    private static final int SUM = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+    private static final int MEAN = 4;
+    private static final int M2 = 5;
+    private static final int WIDTH = 6;
+
+    private final double[] values;
+
+    public StatsBlock(int statistics) {
+        values = new double[statistics * WIDTH];
+        for (int base = 0; base < values.length; base += WIDTH) {
+            values[base + MIN] = Double.NaN;
+            values[base + MAX] = Double.NaN;
+        }
+    }
+
+    private StatsBlock(double[] values) {
+        this.values = values;
+    }
+
+    /**
+     * @return a block with the current values that no longer changes with this one
+     */
+    public StatsBlock copy() {
+        return new StatsBlock(values.clone());
+    }
+
+    public void add(int statistic, double value) {
+        int base = statistic * WIDTH;
+        double n = values[base + N] + 1;
+        values[base + N] = n;
+        values[base + SUM] += value;
+        double min = values[base + MIN];
+        if (value < min || Double.isNaN(min)) {
+            values[base + MIN] = value;
+        }
+        double max = values[base + MAX];
+        if (value > max || Double.isNaN(max)) {
+            values[base + MAX] = value;
+        }
+        double dev = value - values[base + MEAN];
+        double nDev = dev / n;
+        values[base + MEAN] += nDev;
+        values[base + M2] += (n - 1) * dev * nDev;
+    }
+
+    public long getN(int statistic) {
+        return (long) values[statistic * WIDTH + N];
+    }
+
+    public double getSum(int statistic) {
+        return values[statistic * WIDTH + SUM];
+    }
+
+    public double getMin(int statistic) {
+        return values[statistic * WIDTH + MIN];
+    }
+
+    public double getMax(int statistic) {
+        return values[statistic * WIDTH + MAX];
+    }
+
+    public double getMean(int statistic) {
+        int base = statistic * WIDTH;
+        return values[base + N] == 0 ? Double.NaN : values[base + MEAN];
+    }
+
+    public double getVariance(int statistic) {
+        int base = statistic * WIDTH;
+        double n = values[base + N];
+        if (n == 0) {
+            return Double.NaN;
+        }
+        return n == 1 ? 0.0 : values[base + M2] / (n - 1);
+    }
+
+    public double getStandardDeviation(int statistic) {
+        double n = values[statistic * WIDTH + N];
+        if (n == 0) {
+            return Double.NaN;
+        }
+        return n == 1 ? 0.0 : Math.sqrt(getVariance(statistic));
+    }
+}
@@ -0,0 +1,151 @@
+package cic.cs.unb.ca.jnetpcap;
+
+/**
+ * Detects retransmitted TCP segments of one connection.
+ *
+ * A segment is identified by a 64-bit fingerprint of its direction, sequence and acknowledgement
+ * numbers, payload length and window. The tracker remembers the fingerprints of the last
+ * {@link #MAX_WINDOW} distinct segments in arrival order, in a ring next to an open-addressing set,
+ * so a segment seen again within that window counts as a retransmission. Retransmissions follow the
+ * original within one retransmission timeout, far fewer segments than the window, while the memory
+ * of a connection stays constant however long it runs. Both arrays start small and only grow with
+ * the connection up to the window.
+ *
+ * Not thread-safe: every BasicFlow owns its own tracker.
+ */
+public class TcpRetransmissionTracker {
+
+    public static final int MAX_WINDOW = 1024;
+    private static final int MIN_WINDOW = 16;
+    // marks a free slot of the set; a fingerprint that happens to be 0 is stored as 1
+    private static final long EMPTY = 0L;
+
+    private long[] window;
+    private int head;
+    private int count;
+
+    private long[] set;
+    private int mask;
+
+    public TcpRetransmissionTracker() {
+        allocate(MIN_WINDOW);
+    }
+
+    private void allocate(int windowSize) {
+        window = new long[windowSize];
+        set = new long[windowSize << 1];
+        mask = set.length - 1;
+    }
+
+    /**
+     * Records a segment.
+     * @param forward whether the segment travels from the flow source to the flow destination
+     * @return false if the same segment is still in the window, i.e. the segment is a retransmission
+     */
+    public boolean add(boolean forward, long seq, long ack, int payloadLength, int tcpWindow) {
+        return add(fingerprint(forward, seq, ack, payloadLength, tcpWindow));
+    }
+
+    private boolean add(long fingerprint) {
+        int slot = mix(fingerprint) & mask;
+        while (set[slot] != EMPTY) {
+            if (set[slot] == fingerprint) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (count == window.length) {
+            if (window.length < MAX_WINDOW) {
+                grow();
+            } else {
+                remove(window[head]);
+                head = (head + 1) % window.length;
+                count--;
+            }
+            slot = mix(fingerprint) & mask;
+            while (set[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        set[slot] = fingerprint;
+        window[(head + count) % window.length] = fingerprint;
+        count++;
+        return true;
+    }
+
+    /**
+     * @return number of segments in the window
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return a new tracker with only the last segments of this window, in the smallest arrays that hold them
+     */
+    public TcpRetransmissionTracker tail(int segments) {
+        TcpRetransmissionTracker tail = new TcpRetransmissionTracker();
+        for (int i = Math.max(0, count - segments); i < count; i++) {
+            tail.add(window[(head + i) % window.length]);
+        }
+        return tail;
+    }
+
+    private void grow() {
+        long[] oldWindow = window;
+        int oldHead = head;
+        allocate(oldWindow.length << 1);
+        head = 0;
+        for (int i = 0; i < count; i++) {
+            long fingerprint = oldWindow[(oldHead + i) % oldWindow.length];
+            window[i] = fingerprint;
+            int slot = mix(fingerprint) & mask;
+            while (set[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            set[slot] = fingerprint;
+        }
+    }
+
+    private void remove(long fingerprint) {
+        int slot = mix(fingerprint) & mask;
+        while (set[slot] != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        set[slot] = EMPTY;
+        // backward-shift deletion: pull later members of the cluster into the hole
+        int hole = slot;
+        int cur = (slot + 1) & mask;
+        while (set[cur] != EMPTY) {
+            int home = mix(set[cur]) & mask;
+            if (((cur - home) & mask) >= ((cur - hole) & mask)) {
+                set[hole] = set[cur];
+                set[cur] = EMPTY;
+                hole = cur;
+            }
+            cur = (cur + 1) & mask;
+        }
+    }
+
+    static long fingerprint(boolean forward, long seq, long ack, int payloadLength, int tcpWindow) {
+        long numbers = (seq & 0xFFFFFFFFL) << 32 | (ack & 0xFFFFFFFFL);
+        long segment = (payloadLength & 0xFFFFFFFFL) << 17 | (tcpWindow & 0xFFFFL) << 1 | (forward ? 1L : 0L);
+        long h = murmur(numbers ^ murmur(segment));
+        return h == EMPTY ? 1L : h;
+    }
+
+    private static int mix(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
+    // finalizer of MurmurHash3, spreads every input bit over the whole word
+    private static long murmur(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,218 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel over microsecond timestamps.
+ *
+ * Four levels of 256 buckets; a level-0 bucket spans one tick of 2^20 us (about a second), every
+ * higher level is 256 times coarser. Scheduling is O(1) and every entry is moved at most once per
+ * level, so expiration is amortized O(1) per entry.
+ *
+ * Deadlines are re-evaluated lazily: when an entry comes due the {@link Expiry} is asked for the
+ * current deadline of the item, so owners never have to reschedule on every update, they only have
+ * to make sure the deadline never moves backwards.
+ *
+ * Not thread-safe.
+ */
+public class TimerWheel<T> {
+
+    public interface Expiry<T> {
+        /**
+         * @return the current deadline of the item, or a negative value if the item is no longer tracked
+         */
+        long deadline(T item);
+
+        void expire(T item);
+    }
+
+    private static final int TICK_SHIFT = 20;
+    private static final int LEVELS = 4;
+    private static final int BITS = 8;
+    private static final int SLOTS = 1 << BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+
+    private final Bucket[] buckets = new Bucket[LEVELS * SLOTS];
+    private long currentTick = -1;
+    private int size;
+
+    public void schedule(T item, long deadline) {
+        if (currentTick < 0) {
+            currentTick = deadline >> TICK_SHIFT;
+        }
+        // an entry fires once its tick is over, which guarantees the deadline has passed
+        long delta = Math.min(Math.max((deadline >> TICK_SHIFT) + 1 - currentTick, 1L), MAX_DELTA);
+        long tick = currentTick + delta;
+        int level = 0;
+        while (delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        int index = level * SLOTS + (int) ((tick >> (BITS * level)) & SLOT_MASK);
+        Bucket bucket = buckets[index];
+        if (bucket == null) {
+            bucket = buckets[index] = new Bucket();
+        }
+        bucket.add(item, deadline);
+        size++;
+    }
+
+    /**
+     * Moves the wheel to the given timestamp and expires every entry whose deadline lies before it.
+     * Timestamps older than the current position are ignored.
+     */
+    public void advance(long now, Expiry<T> expiry) {
+        long target = now >> TICK_SHIFT;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, target);
+            return;
+        }
+        while (currentTick < target) {
+            currentTick++;
+            int slot = (int) (currentTick & SLOT_MASK);
+            if (slot == 0) {
+                cascade();
+            }
+            Bucket bucket = buckets[slot];
+            if (bucket != null && bucket.count > 0) {
+                fire(bucket, now, expiry);
+            }
+            if (size == 0) {
+                currentTick = target;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The wheel only acts when a timestamp moves it into a new tick.
+     */
+    public static long tickOf(long timestamp) {
+        return timestamp >> TICK_SHIFT;
+    }
+
+    /**
+     * Drops every entry the {@link Expiry} no longer tracks, without waiting for it to come due.
+     * Owners that remove many items early call it now and then to release them.
+     */
+    public void purge(Expiry<T> expiry) {
+        for (Bucket bucket : buckets) {
+            if (bucket == null) {
+                continue;
+            }
+            int kept = 0;
+            for (int i = 0; i < bucket.count; i++) {
+                if (expiry.deadline(unchecked(bucket.items[i])) >= 0) {
+                    bucket.items[kept] = bucket.items[i];
+                    bucket.deadlines[kept++] = bucket.deadlines[i];
+                }
+            }
+            Arrays.fill(bucket.items, kept, bucket.count, null);
+            size -= bucket.count - kept;
+            bucket.count = kept;
+        }
+    }
+
+    public void clear() {
+        for (Bucket bucket : buckets) {
+            if (bucket != null) {
+                bucket.reset();
+            }
+        }
+        size = 0;
+    }
+
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            int slot = (int) ((currentTick >> (BITS * level)) & SLOT_MASK);
+            Bucket bucket = buckets[level * SLOTS + slot];
+            if (bucket != null && bucket.count > 0) {
+                Object[] items = bucket.items;
+                long[] deadlines = bucket.deadlines;
+                int count = bucket.detach();
+                size -= count;
+                for (int i = 0; i < count; i++) {
+                    schedule(unchecked(items[i]), deadlines[i]);
+                }
+                bucket.recycle(items, deadlines);
+            }
+            if (slot != 0) {
+                break;
+            }
+        }
+    }
+
+    private void fire(Bucket bucket, long now, Expiry<T> expiry) {
+        Object[] items = bucket.items;
+        long[] deadlines = bucket.deadlines;
+        int count = bucket.detach();
+        size -= count;
+        for (int i = 0; i < count; i++) {
+            T item = unchecked(items[i]);
+            long deadline = expiry.deadline(item);
+            if (deadline < 0) {
+                continue;
+            }
+            if (now > deadline) {
+                expiry.expire(item);
+            } else {
+                schedule(item, deadline);
+            }
+        }
+        bucket.recycle(items, deadlines);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T unchecked(Object item) {
+        return (T) item;
+    }
+
+    private static final class Bucket {
+        private static final int INITIAL_CAPACITY = 8;
+
+        Object[] items = new Object[INITIAL_CAPACITY];
+        long[] deadlines = new long[INITIAL_CAPACITY];
+        int count;
+        Object[] spareItems;
+        long[] spareDeadlines;
+
+        void add(Object item, long deadline) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, count << 1);
+                deadlines = Arrays.copyOf(deadlines, count << 1);
+            }
+            items[count] = item;
+            deadlines[count++] = deadline;
+        }
+
+        // hands the current arrays to the caller, so entries re-added while they are processed
+        // land in separate storage
+        int detach() {
+            int n = count;
+            if (spareItems == null) {
+                spareItems = new Object[INITIAL_CAPACITY];
+                spareDeadlines = new long[INITIAL_CAPACITY];
+            }
+            items = spareItems;
+            deadlines = spareDeadlines;
+            spareItems = null;
+            spareDeadlines = null;
+            count = 0;
+            return n;
+        }
+
+        void recycle(Object[] oldItems, long[] oldDeadlines) {
+            Arrays.fill(oldItems, null);
+            spareItems = oldItems;
+            spareDeadlines = oldDeadlines;
+        }
+
+        void reset() {
+            Arrays.fill(items, 0, count, null);
+            count = 0;
+        }
+    }
+}
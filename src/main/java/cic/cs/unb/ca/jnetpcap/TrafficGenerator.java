@@ -0,0 +1,674 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Writes synthetic traffic as a classic pcap file: Ethernet, IPv4, microsecond timestamps.
+ *
+ * A fixed number of conversations is active at any time. Every packet comes from a random active
+ * conversation and the capture clock advances by the inter-arrival distribution; finished
+ * conversations are replaced until the requested number of flows has been started. Conversations are
+ * TCP sessions (handshake, data, FIN teardown or RST abort), RST storms from spoofed sources, UDP
+ * request/response dialogues and ICMP echo exchanges. The same seed and settings always produce the
+ * same file, and memory use does not depend on the number of packets.
+ */
+public class TrafficGenerator {
+    public static final Logger logger = LoggerFactory.getLogger(TrafficGenerator.class);
+
+    private static final int SNAPLEN_MAX = 65535;
+    private static final int ETHERNET = 14;
+    private static final int IPV4 = 20;
+    private static final int TCP = 20;
+    private static final int UDP = 8;
+    private static final int ICMP = 8;
+    private static final int MSS = 1460;
+    private static final int FIN = 0x01, SYN = 0x02, RST = 0x04, PSH = 0x08, ACK = 0x10;
+    private static final int[] UDP_SERVICES = {53, 123, 161, 500, 1900, 5353};
+    private static final int[] TCP_SERVICES = {22, 25, 80, 443, 445, 3306, 8080};
+
+    private static final int KIND_TCP = 0, KIND_RST_STORM = 1, KIND_UDP = 2, KIND_ICMP = 3;
+
+    private long seed = 1L;
+    private long flows = 10000L;
+    private long maxPackets = Long.MAX_VALUE;
+    private int concurrency = 1000;
+    private int clients = 4096;
+    private int servers = 64;
+    private final int[] mix = {70, 5, 20, 5};
+    private Distribution payloadSize = Distribution.parse("exp:400");
+    private Distribution interArrival = Distribution.parse("exp:100");
+    private Distribution exchanges = Distribution.parse("exp:8");
+    private Distribution stormSize = Distribution.parse("uniform:20:200");
+    private double disorder = 0.0;
+    private long maxDisorderMicros = 1000000L;
+    private int snaplen = SNAPLEN_MAX;
+    private long startMicros = 1500000000000000L;
+
+    private SplittableRandom random;
+    private long clock;
+    private long packets;
+    private long startedFlows;
+    private long disordered;
+    private long bytes;
+    private final byte[] record = new byte[16 + ETHERNET + IPV4 + TCP + MSS];
+
+    public TrafficGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param flows number of conversations to start; an RST storm counts as one
+     */
+    public TrafficGenerator setFlows(long flows) {
+        this.flows = flows;
+        return this;
+    }
+
+    /**
+     * Stops after this many packets even if conversations are still open.
+     */
+    public TrafficGenerator setMaxPackets(long maxPackets) {
+        this.maxPackets = maxPackets;
+        return this;
+    }
+
+    public TrafficGenerator setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public TrafficGenerator setHosts(int clients, int servers) {
+        this.clients = clients;
+        this.servers = servers;
+        return this;
+    }
+
+    /**
+     * Relative weights of the conversation kinds.
+     */
+    public TrafficGenerator setMix(int tcp, int rstStorm, int udp, int icmp) {
+        mix[KIND_TCP] = tcp;
+        mix[KIND_RST_STORM] = rstStorm;
+        mix[KIND_UDP] = udp;
+        mix[KIND_ICMP] = icmp;
+        return this;
+    }
+
+    /**
+     * @param payloadSize bytes of payload of data packets, clipped to one MSS
+     */
+    public TrafficGenerator setPayloadSize(Distribution payloadSize) {
+        this.payloadSize = payloadSize;
+        return this;
+    }
+
+    /**
+     * @param interArrival microseconds between consecutive packets of the capture
+     */
+    public TrafficGenerator setInterArrival(Distribution interArrival) {
+        this.interArrival = interArrival;
+        return this;
+    }
+
+    /**
+     * @param exchanges data packets of a TCP session, request/response pairs of UDP and ICMP
+     */
+    public TrafficGenerator setExchanges(Distribution exchanges) {
+        this.exchanges = exchanges;
+        return this;
+    }
+
+    public TrafficGenerator setStormSize(Distribution stormSize) {
+        this.stormSize = stormSize;
+        return this;
+    }
+
+    /**
+     * @param fraction share of packets written with a timestamp up to maxMicros earlier than the previous one
+     */
+    public TrafficGenerator setDisorder(double fraction, long maxMicros) {
+        this.disorder = fraction;
+        this.maxDisorderMicros = Math.max(1L, maxMicros);
+        return this;
+    }
+
+    public TrafficGenerator setSnaplen(int snaplen) {
+        this.snaplen = Math.max(ETHERNET + IPV4, Math.min(snaplen, SNAPLEN_MAX));
+        return this;
+    }
+
+    public TrafficGenerator setStartMicros(long startMicros) {
+        this.startMicros = startMicros;
+        return this;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    public long getStartedFlows() {
+        return startedFlows;
+    }
+
+    public long getDisordered() {
+        return disordered;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of packets written
+     */
+    public long write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            return write(out);
+        }
+    }
+
+    public long write(OutputStream out) throws IOException {
+        random = new SplittableRandom(seed);
+        clock = startMicros;
+        packets = 0L;
+        startedFlows = 0L;
+        disordered = 0L;
+        bytes = 0L;
+
+        byte[] header = new byte[24];
+        putIntLE(header, 0, 0xa1b2c3d4);
+        putShortLE(header, 4, 2);
+        putShortLE(header, 6, 4);
+        putIntLE(header, 16, snaplen);
+        putIntLE(header, 20, 1);
+        out.write(header);
+        bytes += header.length;
+
+        Conversation[] active = new Conversation[Math.max(1, concurrency)];
+        int open = 0;
+        while (open < active.length && startedFlows < flows) {
+            active[open++] = start(new Conversation());
+        }
+        while (open > 0 && packets < maxPackets) {
+            int i = random.nextInt(open);
+            Conversation c = active[i];
+            emit(c, out);
+            if (c.done) {
+                if (startedFlows < flows) {
+                    start(c);
+                } else {
+                    active[i] = active[--open];
+                    active[open] = null;
+                }
+            }
+        }
+        return packets;
+    }
+
+    private Conversation start(Conversation c) {
+        startedFlows++;
+        c.kind = pickKind();
+        c.step = 0;
+        c.done = false;
+        c.client = 0x0a000000 | (1 + random.nextInt(Math.max(1, clients)));
+        c.server = 0xc0a80000 | (1 + random.nextInt(Math.max(1, servers)));
+        c.clientPort = 1024 + random.nextInt(64512);
+        c.clientSeq = random.nextInt() & 0xffffffffL;
+        c.serverSeq = random.nextInt() & 0xffffffffL;
+        switch (c.kind) {
+            case KIND_TCP:
+                c.serverPort = TCP_SERVICES[random.nextInt(TCP_SERVICES.length)];
+                c.remaining = Math.max(1, exchanges.sampleInt(random));
+                c.abort = random.nextInt(10) == 0;
+                break;
+            case KIND_RST_STORM:
+                c.serverPort = TCP_SERVICES[random.nextInt(TCP_SERVICES.length)];
+                c.remaining = Math.max(1, stormSize.sampleInt(random));
+                break;
+            case KIND_UDP:
+                c.serverPort = UDP_SERVICES[random.nextInt(UDP_SERVICES.length)];
+                c.remaining = 2 * Math.max(1, exchanges.sampleInt(random));
+                break;
+            default:
+                c.serverPort = random.nextInt(65536);
+                c.remaining = 2 * (1 + random.nextInt(4));
+                break;
+        }
+        return c;
+    }
+
+    private int pickKind() {
+        int total = mix[0] + mix[1] + mix[2] + mix[3];
+        if (total <= 0) {
+            return KIND_TCP;
+        }
+        int r = random.nextInt(total);
+        for (int kind = 0; kind < mix.length; kind++) {
+            r -= mix[kind];
+            if (r < 0) {
+                return kind;
+            }
+        }
+        return KIND_TCP;
+    }
+
+    private void emit(Conversation c, OutputStream out) throws IOException {
+        switch (c.kind) {
+            case KIND_TCP:
+                tcpSession(c, out);
+                break;
+            case KIND_RST_STORM: {
+                int spoofed = random.nextInt();
+                tcp(out, spoofed, c.server, 1024 + random.nextInt(64512), c.serverPort,
+                        random.nextInt() & 0xffffffffL, 0L, RST, 0);
+                c.done = --c.remaining == 0;
+                break;
+            }
+            case KIND_UDP: {
+                boolean request = (c.remaining & 1) == 0;
+                int size = payload();
+                if (request) {
+                    udp(out, c.client, c.server, c.clientPort, c.serverPort, size);
+                } else {
+                    udp(out, c.server, c.client, c.serverPort, c.clientPort, size);
+                }
+                c.done = --c.remaining == 0;
+                break;
+            }
+            default: {
+                boolean request = (c.remaining & 1) == 0;
+                int sequence = c.step++ >> 1;
+                if (request) {
+                    icmp(out, c.client, c.server, 8, c.serverPort, sequence);
+                } else {
+                    icmp(out, c.server, c.client, 0, c.serverPort, sequence);
+                }
+                c.done = --c.remaining == 0;
+                break;
+            }
+        }
+    }
+
+    private void tcpSession(Conversation c, OutputStream out) throws IOException {
+        switch (c.step) {
+            case 0:
+                clientSegment(c, out, SYN, 0);
+                c.clientSeq++;
+                c.step++;
+                return;
+            case 1:
+                serverSegment(c, out, SYN | ACK, 0);
+                c.serverSeq++;
+                c.step++;
+                return;
+            case 2:
+                clientSegment(c, out, ACK, 0);
+                c.step++;
+                return;
+            case 3:
+                int size = payload();
+                if (random.nextInt(5) < 2) {
+                    clientSegment(c, out, PSH | ACK, size);
+                    c.clientSeq += size;
+                } else {
+                    serverSegment(c, out, PSH | ACK, size);
+                    c.serverSeq += size;
+                }
+                if (--c.remaining == 0) {
+                    c.step = c.abort ? 8 : 4;
+                }
+                return;
+            case 4:
+                clientSegment(c, out, FIN | ACK, 0);
+                c.clientSeq++;
+                c.step++;
+                return;
+            case 5:
+                serverSegment(c, out, ACK, 0);
+                c.step++;
+                return;
+            case 6:
+                serverSegment(c, out, FIN | ACK, 0);
+                c.serverSeq++;
+                c.step++;
+                return;
+            case 7:
+                clientSegment(c, out, ACK, 0);
+                c.done = true;
+                return;
+            default:
+                if (random.nextBoolean()) {
+                    clientSegment(c, out, RST | ACK, 0);
+                } else {
+                    serverSegment(c, out, RST | ACK, 0);
+                }
+                c.done = true;
+        }
+    }
+
+    private void clientSegment(Conversation c, OutputStream out, int flags, int size) throws IOException {
+        tcp(out, c.client, c.server, c.clientPort, c.serverPort, c.clientSeq, (flags & ACK) != 0 ? c.serverSeq : 0L, flags, size);
+    }
+
+    private void serverSegment(Conversation c, OutputStream out, int flags, int size) throws IOException {
+        tcp(out, c.server, c.client, c.serverPort, c.clientPort, c.serverSeq, c.clientSeq, flags, size);
+    }
+
+    private int payload() {
+        return Math.max(0, Math.min(MSS, payloadSize.sampleInt(random)));
+    }
+
+    private void tcp(OutputStream out, int src, int dst, int srcPort, int dstPort, long seq, long ack, int flags,
+                     int size) throws IOException {
+        int l4 = 16 + ETHERNET + IPV4;
+        putShort(record, l4, srcPort);
+        putShort(record, l4 + 2, dstPort);
+        putInt(record, l4 + 4, (int) seq);
+        putInt(record, l4 + 8, (int) ack);
+        record[l4 + 12] = (byte) ((TCP / 4) << 4);
+        record[l4 + 13] = (byte) flags;
+        putShort(record, l4 + 14, 65535);
+        putInt(record, l4 + 16, 0);
+        frame(out, src, dst, 6, TCP, size);
+    }
+
+    private void udp(OutputStream out, int src, int dst, int srcPort, int dstPort, int size) throws IOException {
+        int l4 = 16 + ETHERNET + IPV4;
+        putShort(record, l4, srcPort);
+        putShort(record, l4 + 2, dstPort);
+        putShort(record, l4 + 4, UDP + size);
+        putShort(record, l4 + 6, 0);
+        frame(out, src, dst, 17, UDP, size);
+    }
+
+    private void icmp(OutputStream out, int src, int dst, int type, int id, int sequence) throws IOException {
+        int l4 = 16 + ETHERNET + IPV4;
+        record[l4] = (byte) type;
+        record[l4 + 1] = 0;
+        putShort(record, l4 + 2, 0);
+        putShort(record, l4 + 4, id);
+        putShort(record, l4 + 6, sequence);
+        frame(out, src, dst, 1, ICMP, 56);
+    }
+
+    private void frame(OutputStream out, int src, int dst, int protocol, int l4Header, int size) throws IOException {
+        int eth = 16;
+        putInt(record, eth, 0x02000000);
+        putShort(record, eth + 4, dst & 0xffff);
+        putInt(record, eth + 6, 0x02000000);
+        putShort(record, eth + 10, src & 0xffff);
+        putShort(record, eth + 12, 0x0800);
+
+        int ip = eth + ETHERNET;
+        int totalLength = IPV4 + l4Header + size;
+        record[ip] = 0x45;
+        record[ip + 1] = 0;
+        putShort(record, ip + 2, totalLength);
+        putShort(record, ip + 4, (int) packets);
+        putShort(record, ip + 6, 0x4000);
+        record[ip + 8] = 64;
+        record[ip + 9] = (byte) protocol;
+        putShort(record, ip + 10, 0);
+        putInt(record, ip + 12, src);
+        putInt(record, ip + 16, dst);
+        putShort(record, ip + 10, checksum(record, ip, IPV4));
+        int payload = ip + IPV4 + l4Header;
+        Arrays.fill(record, payload, payload + size, (byte) 0);
+
+        clock += Math.max(0L, interArrival.sampleLong(random));
+        long timestamp = clock;
+        if (disorder > 0.0 && random.nextDouble() < disorder) {
+            timestamp -= 1 + random.nextLong(maxDisorderMicros);
+            disordered++;
+        }
+        int wire = ETHERNET + totalLength;
+        int captured = Math.min(wire, snaplen);
+        putIntLE(record, 0, (int) (timestamp / 1000000L));
+        putIntLE(record, 4, (int) (timestamp % 1000000L));
+        putIntLE(record, 8, captured);
+        putIntLE(record, 12, wire);
+        out.write(record, 0, 16 + captured);
+        bytes += 16 + captured;
+        packets++;
+    }
+
+    private static int checksum(byte[] b, int offset, int length) {
+        int sum = 0;
+        for (int i = offset; i < offset + length; i += 2) {
+            sum += ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return ~sum & 0xffff;
+    }
+
+    private static void putShort(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 8);
+        b[offset + 1] = (byte) v;
+    }
+
+    private static void putInt(byte[] b, int offset, int v) {
+        putShort(b, offset, v >>> 16);
+        putShort(b, offset + 2, v);
+    }
+
+    private static void putShortLE(byte[] b, int offset, int v) {
+        b[offset] = (byte) v;
+        b[offset + 1] = (byte) (v >>> 8);
+    }
+
+    private static void putIntLE(byte[] b, int offset, int v) {
+        putShortLE(b, offset, v);
+        putShortLE(b, offset + 2, v >>> 16);
+    }
+
+    private static final class Conversation {
+        int kind;
+        int step;
+        int remaining;
+        boolean abort;
+        boolean done;
+        int client;
+        int server;
+        int clientPort;
+        int serverPort;
+        long clientSeq;
+        long serverSeq;
+    }
+
+    /**
+     * A non-negative random quantity written as "fixed:V", "uniform:MIN:MAX", "exp:MEAN" or "normal:MEAN:SD".
+     */
+    public static final class Distribution {
+        private final String kind;
+        private final double a;
+        private final double b;
+
+        private Distribution(String kind, double a, double b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        public static Distribution parse(String spec) {
+            String[] parts = spec.trim().split(":");
+            try {
+                switch (parts[0].toLowerCase()) {
+                    case "fixed":
+                        return new Distribution("fixed", Double.parseDouble(parts[1]), 0);
+                    case "uniform":
+                        return new Distribution("uniform", Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                    case "exp":
+                        return new Distribution("exp", Double.parseDouble(parts[1]), 0);
+                    case "normal":
+                        return new Distribution("normal", Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                    default:
+                        break;
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("Invalid distribution: " + spec);
+        }
+
+        double sample(SplittableRandom random) {
+            double v;
+            switch (kind) {
+                case "fixed":
+                    v = a;
+                    break;
+                case "uniform":
+                    v = a + (b - a) * random.nextDouble();
+                    break;
+                case "exp":
+                    v = -a * Math.log(1.0 - random.nextDouble());
+                    break;
+                default:
+                    v = a + b * gaussian(random);
+                    break;
+            }
+            return Math.max(0.0, v);
+        }
+
+        int sampleInt(SplittableRandom random) {
+            return (int) Math.min(Integer.MAX_VALUE, Math.round(sample(random)));
+        }
+
+        long sampleLong(SplittableRandom random) {
+            return Math.round(sample(random));
+        }
+
+        private static double gaussian(SplittableRandom random) {
+            double u = 1.0 - random.nextDouble();
+            return Math.sqrt(-2.0 * Math.log(u)) * Math.cos(2.0 * Math.PI * random.nextDouble());
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case "uniform":
+                case "normal":
+                    return kind + ":" + a + ":" + b;
+                default:
+                    return kind + ":" + a;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args[0].startsWith("--")) {
+            usage();
+            return;
+        }
+        TrafficGenerator generator = new TrafficGenerator();
+        File file = new File(args[0]);
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--seed":
+                        generator.setSeed(Long.parseLong(value));
+                        break;
+                    case "--flows":
+                        generator.setFlows(Long.parseLong(value));
+                        break;
+                    case "--packets":
+                        generator.setMaxPackets(Long.parseLong(value));
+                        break;
+                    case "--concurrency":
+                        generator.setConcurrency(Integer.parseInt(value));
+                        break;
+                    case "--hosts": {
+                        String[] hosts = value.split(":");
+                        generator.setHosts(Integer.parseInt(hosts[0]), Integer.parseInt(hosts[1]));
+                        break;
+                    }
+                    case "--mix": {
+                        String[] w = value.split(",");
+                        generator.setMix(Integer.parseInt(w[0]), Integer.parseInt(w[1]), Integer.parseInt(w[2]),
+                                Integer.parseInt(w[3]));
+                        break;
+                    }
+                    case "--size":
+                        generator.setPayloadSize(Distribution.parse(value));
+                        break;
+                    case "--iat":
+                        generator.setInterArrival(Distribution.parse(value));
+                        break;
+                    case "--exchanges":
+                        generator.setExchanges(Distribution.parse(value));
+                        break;
+                    case "--storm":
+                        generator.setStormSize(Distribution.parse(value));
+                        break;
+                    case "--disorder": {
+                        String[] d = value.split(":");
+                        generator.setDisorder(Double.parseDouble(d[0]),
+                                d.length > 1 ? Long.parseLong(d[1]) : generator.maxDisorderMicros);
+                        break;
+                    }
+                    case "--snaplen":
+                        generator.setSnaplen(Integer.parseInt(value));
+                        break;
+                    case "--start":
+                        generator.setStartMicros(Long.parseLong(value) * 1000000L);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println(e.getMessage());
+            usage();
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            generator.write(file);
+        } catch (IOException e) {
+            logger.error("Cannot write {}", file, e);
+            return;
+        }
+        long millis = Math.max(1L, System.currentTimeMillis() - start);
+        System.out.println(String.format("%s: %d packets, %d flows, %d disordered, %d bytes in %d ms",
+                file.getPath(), generator.getPackets(), generator.getStartedFlows(), generator.getDisordered(),
+                generator.getBytes(), millis));
+    }
+
+    private static void usage() {
+        System.out.println("Usage: TrafficGenerator <out.pcap> [options]");
+        System.out.println("  --seed N              random seed (1)");
+        System.out.println("  --flows N             conversations to start (10000)");
+        System.out.println("  --packets N           stop after N packets");
+        System.out.println("  --concurrency N       conversations open at once (1000)");
+        System.out.println("  --hosts C:S           client and server address pool sizes (4096:64)");
+        System.out.println("  --mix T,R,U,I         weights of TCP sessions, RST storms, UDP dialogues, ICMP echo (70,5,20,5)");
+        System.out.println("  --size DIST           payload bytes of data packets (exp:400)");
+        System.out.println("  --iat DIST            microseconds between packets (exp:100)");
+        System.out.println("  --exchanges DIST      data packets per TCP session, request/response pairs per UDP dialogue (exp:8)");
+        System.out.println("  --storm DIST          packets per RST storm (uniform:20:200)");
+        System.out.println("  --disorder P[:MAX]    share of packets stamped up to MAX microseconds in the past (0:1000000)");
+        System.out.println("  --snaplen N           bytes captured per packet (65535)");
+        System.out.println("  --start SECONDS       epoch second of the first packet (1500000000)");
+        System.out.println("  DIST is fixed:V, uniform:MIN:MAX, exp:MEAN or normal:MEAN:SD");
+    }
+}
@@ -0,0 +1,29 @@
+package cic.cs.unb.ca.jnetpcap.columnar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compression of the column chunks of a columnar flow file. A chunk that does not get smaller is
+ * stored uncompressed whatever the codec, so the reader can still map it without copying.
+ */
+public enum Codec {
+    NONE,
+    /** java.util.zip Deflate, at the fastest level */
+    DEFLATE;
+
+    private static final Logger logger = LoggerFactory.getLogger(Codec.class);
+
+    /**
+     * Codec from the cfm.compression system property, NONE by default.
+     */
+    public static Codec fromProperty() {
+        String name = System.getProperty("cfm.compression", NONE.name());
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown cfm.compression {}, using {}", name, NONE);
+            return NONE;
+        }
+    }
+}
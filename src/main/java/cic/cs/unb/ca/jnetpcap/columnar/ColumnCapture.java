@@ -0,0 +1,100 @@
+package cic.cs.unb.ca.jnetpcap.columnar;
+
+import cic.cs.unb.ca.jnetpcap.FeatureRowWriter;
+
+import java.util.Arrays;
+
+/**
+ * Records every column {@link cic.cs.unb.ca.jnetpcap.BasicFlow#writeFeatures(FeatureRowWriter)} writes
+ * with its kind and raw value instead of formatting it. Integers, IPv4 addresses and timestamps keep
+ * their long value, doubles their bits.
+ */
+final class ColumnCapture extends FeatureRowWriter {
+
+    final ColumnKind[] kinds;
+    final long[] bits;
+    final String[] strings;
+    private int column;
+
+    ColumnCapture(int columns) {
+        kinds = new ColumnKind[columns];
+        bits = new long[columns];
+        strings = new String[columns];
+    }
+
+    @Override
+    public ColumnCapture reset() {
+        column = 0;
+        Arrays.fill(kinds, null);
+        return this;
+    }
+
+    @Override
+    public ColumnCapture comma() {
+        column++;
+        return this;
+    }
+
+    @Override
+    public ColumnCapture append(String s) {
+        if (column < kinds.length) {
+            kinds[column] = ColumnKind.STRING;
+            strings[column] = s == null ? "null" : s;
+        }
+        return this;
+    }
+
+    @Override
+    public ColumnCapture append(long v) {
+        return set(ColumnKind.LONG, v);
+    }
+
+    @Override
+    public ColumnCapture append(double v) {
+        return set(ColumnKind.DOUBLE, Double.doubleToRawLongBits(v));
+    }
+
+    @Override
+    public ColumnCapture appendIpv4(byte[] address) {
+        long v = 0L;
+        for (int i = 0; i < 4; i++) {
+            v = v << 8 | address[i] & 0xFF;
+        }
+        return set(ColumnKind.IPV4, v);
+    }
+
+    @Override
+    public ColumnCapture appendTimestamp(long micros) {
+        return set(ColumnKind.TIMESTAMP, micros);
+    }
+
+    private ColumnCapture set(ColumnKind kind, long v) {
+        if (column < kinds.length) {
+            kinds[column] = kind;
+            bits[column] = v;
+        }
+        return this;
+    }
+
+    /**
+     * Writes a value the way the CSV row has it.
+     */
+    static void format(FeatureRowWriter out, ColumnKind kind, long bits, String s) {
+        switch (kind) {
+            case LONG:
+                out.append(bits);
+                break;
+            case DOUBLE:
+                out.append(Double.longBitsToDouble(bits));
+                break;
+            case IPV4:
+                out.appendIpv4(new byte[]{(byte) (bits >>> 24), (byte) (bits >>> 16), (byte) (bits >>> 8), (byte) bits});
+                break;
+            case TIMESTAMP:
+                out.appendTimestamp(bits);
+                break;
+            default:
+                out.append(s);
+        }
+    }
+}
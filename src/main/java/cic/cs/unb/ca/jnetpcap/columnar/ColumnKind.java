@@ -0,0 +1,36 @@
+package cic.cs.unb.ca.jnetpcap.columnar;
+
+/**
+ * How the values of one column are stored in a row group. The kind follows from the
+ * {@link cic.cs.unb.ca.jnetpcap.FeatureRowWriter} calls a flow column is written with, so it can change
+ * from one row group to the next: a column written as integers for some flows and as doubles for
+ * others is a {@link #NUMBER} column.
+ */
+public enum ColumnKind {
+    /** integers, stored as the difference to the row group minimum in 0, 1, 2, 4 or 8 bytes */
+    LONG,
+    /** doubles, 8 bytes each, as indexes into their distinct values when that is smaller, or stored like {@link #LONG} when they all are integers */
+    DOUBLE,
+    /** {@link #DOUBLE}, plus a bit per row telling the values written as integers, so the CSV text comes back unchanged */
+    NUMBER,
+    /** text, as indexes into a dictionary of the distinct values of the row group */
+    STRING,
+    /** IPv4 addresses as unsigned integers, stored like {@link #LONG} */
+    IPV4,
+    /** epoch microseconds, stored like {@link #LONG} */
+    TIMESTAMP;
+
+    /**
+     * @return true for the kinds whose values are read with getLong
+     */
+    public boolean isIntegral() {
+        return this == LONG || this == IPV4 || this == TIMESTAMP;
+    }
+
+    /**
+     * @return true for the kinds that are numbers to the analysis tools, i.e. CSV columns that parse as numbers
+     */
+    public boolean isNumeric() {
+        return this == LONG || this == DOUBLE || this == NUMBER;
+    }
+}
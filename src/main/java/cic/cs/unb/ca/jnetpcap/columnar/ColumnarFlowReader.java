@@ -0,0 +1,464 @@
+package cic.cs.unb.ca.jnetpcap.columnar;
+
+import cic.cs.unb.ca.jnetpcap.FeatureRowWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static cic.cs.unb.ca.jnetpcap.Utils.LINE_SEP;
+import static cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter.CHUNK_META_SIZE;
+import static cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter.DICTIONARY;
+import static cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter.HEADER_SIZE;
+import static cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter.INTEGRAL;
+import static cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter.MAGIC;
+import static cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter.TRAILER_SIZE;
+import static cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter.VERSION;
+
+/**
+ * Reads the files of {@link ColumnarFlowWriter}.
+ *
+ * Only the footer is read when the file is opened. Row groups are memory-mapped when first used, and
+ * values are read straight from the mapped chunks, so uncompressed columns are never copied. A
+ * compressed chunk is inflated when first read and kept until another row group of its column is read,
+ * so read row group by row group. Values are addressed by row group, column and row in the group.
+ *
+ * Not thread-safe.
+ */
+public class ColumnarFlowReader implements Closeable {
+
+    private final File file;
+    private final FileChannel channel;
+    private final String[] names;
+    private final int columnCount;
+    private final int[] groupRows;
+    private final long rowCount;
+
+    // chunk metadata, indexed by group * columnCount + column
+    private final ColumnKind[] kinds;
+    private final byte[] widths;
+    private final Codec[] codecs;
+    private final byte[] flags;
+    private final int[] storedLengths;
+    private final int[] rawLengths;
+    private final long[] offsets;
+    private final long[] mins;
+    private final long[] maxs;
+    // what the stored offsets are relative to
+    private final long[] bases;
+
+    private final long[] groupStarts;
+    private final MappedByteBuffer[] groupMaps;
+
+    // the chunk of each column read last
+    private final int[] loadedGroups;
+    private final ByteBuffer[] loaded;
+    private final String[][] dictionaries;
+    private final Inflater inflater = new Inflater();
+    private final FeatureRowWriter text = new FeatureRowWriter();
+
+    public ColumnarFlowReader(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException(file + " is not a columnar flow file");
+            }
+            ByteBuffer head = read(0L, HEADER_SIZE);
+            ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+            if (head.getInt(0) != MAGIC || trailer.getInt(12) != MAGIC) {
+                throw new IOException(file + " is not a columnar flow file, or it was not closed");
+            }
+            if (head.getInt(4) != VERSION) {
+                throw new IOException("Unsupported columnar flow file version " + head.getInt(4) + " in " + file);
+            }
+            long footerOffset = trailer.getLong(0);
+            int footerLength = trailer.getInt(8);
+            if (footerOffset < HEADER_SIZE || footerLength < 8 || footerOffset + footerLength != size - TRAILER_SIZE) {
+                throw new IOException("Invalid footer in " + file);
+            }
+            ByteBuffer footer = read(footerOffset, footerLength);
+
+            columnCount = footer.getInt();
+            names = new String[columnCount];
+            for (int c = 0; c < columnCount; c++) {
+                byte[] name = new byte[footer.getShort() & 0xFFFF];
+                footer.get(name);
+                names[c] = new String(name, StandardCharsets.UTF_8);
+            }
+            int groupCount = footer.getInt();
+            if (groupCount < 0 || (long) groupCount * (4 + (long) columnCount * CHUNK_META_SIZE) != footer.remaining()) {
+                throw new IOException("Invalid row groups in " + file);
+            }
+            int chunks = groupCount * columnCount;
+            groupRows = new int[groupCount];
+            kinds = new ColumnKind[chunks];
+            widths = new byte[chunks];
+            codecs = new Codec[chunks];
+            flags = new byte[chunks];
+            storedLengths = new int[chunks];
+            rawLengths = new int[chunks];
+            offsets = new long[chunks];
+            mins = new long[chunks];
+            maxs = new long[chunks];
+            bases = new long[chunks];
+            groupStarts = new long[groupCount];
+            groupMaps = new MappedByteBuffer[groupCount];
+            long rows = 0L;
+            ColumnKind[] allKinds = ColumnKind.values();
+            Codec[] allCodecs = Codec.values();
+            for (int g = 0; g < groupCount; g++) {
+                groupRows[g] = footer.getInt();
+                rows += groupRows[g];
+                groupStarts[g] = Long.MAX_VALUE;
+                for (int c = 0; c < columnCount; c++) {
+                    int k = g * columnCount + c;
+                    int kind = footer.get();
+                    widths[k] = footer.get();
+                    int codec = footer.get();
+                    flags[k] = footer.get();
+                    if (kind < 0 || kind >= allKinds.length || codec < 0 || codec >= allCodecs.length) {
+                        throw new IOException("Invalid column chunk " + names[c] + " in " + file);
+                    }
+                    kinds[k] = allKinds[kind];
+                    codecs[k] = allCodecs[codec];
+                    storedLengths[k] = footer.getInt();
+                    rawLengths[k] = footer.getInt();
+                    offsets[k] = footer.getLong();
+                    mins[k] = footer.getLong();
+                    maxs[k] = footer.getLong();
+                    bases[k] = (flags[k] & INTEGRAL) != 0 ? (long) Double.longBitsToDouble(mins[k]) : mins[k];
+                    if (offsets[k] < HEADER_SIZE || storedLengths[k] < 0 || rawLengths[k] < 0
+                            || offsets[k] + storedLengths[k] > footerOffset) {
+                        throw new IOException("Invalid column chunk " + names[c] + " in " + file);
+                    }
+                    groupStarts[g] = Math.min(groupStarts[g], offsets[k]);
+                }
+            }
+            rowCount = rows;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        loadedGroups = new int[columnCount];
+        Arrays.fill(loadedGroups, -1);
+        loaded = new ByteBuffer[columnCount];
+        dictionaries = new String[columnCount][];
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getRowGroupCount() {
+        return groupRows.length;
+    }
+
+    public int getRowGroupSize(int group) {
+        return groupRows[group];
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    /**
+     * @return the column with that name, -1 if there is none
+     */
+    public int getColumnIndex(String name) {
+        for (int c = 0; c < columnCount; c++) {
+            if (names[c].equals(name)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    public ColumnKind getKind(int group, int column) {
+        return kinds[group * columnCount + column];
+    }
+
+    /**
+     * @return the smallest value of the column in the row group, NaN for text and for doubles that are all NaN
+     */
+    public double getMin(int group, int column) {
+        int k = group * columnCount + column;
+        return stat(k, mins[k]);
+    }
+
+    /**
+     * @return the largest value of the column in the row group, NaN for text and for doubles that are all NaN
+     */
+    public double getMax(int group, int column) {
+        int k = group * columnCount + column;
+        return stat(k, maxs[k]);
+    }
+
+    /**
+     * @return the value of an integer, address or timestamp column; doubles are truncated
+     */
+    public long getLong(int group, int column, int row) {
+        int k = group * columnCount + column;
+        if (!kinds[k].isIntegral()) {
+            return (long) getDouble(group, column, row);
+        }
+        return offsetValue(k, chunk(group, column), row);
+    }
+
+    /**
+     * @return the value of the cell read as a number, like a CSV reader parses it: NaN for text, addresses
+     * and timestamps
+     */
+    public double getDouble(int group, int column, int row) {
+        switch (getKind(group, column)) {
+            case LONG:
+                return getLong(group, column, row);
+            case DOUBLE:
+            case NUMBER:
+                int k = group * columnCount + column;
+                ByteBuffer chunk = chunk(group, column);
+                if ((flags[k] & INTEGRAL) != 0) {
+                    return offsetValue(k, chunk, row);
+                }
+                if ((flags[k] & DICTIONARY) != 0) {
+                    int index = widths[k] == 1 ? chunk.get(row) & 0xFF : chunk.getShort(row << 1) & 0xFFFF;
+                    return chunk.getDouble((widths[k] * groupRows[group] + 7 & ~7) + (index << 3));
+                }
+                return chunk.getDouble(row << 3);
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Reads a whole column of a row group as numbers, see {@link #getDouble(int, int, int)}.
+     * @param out receives {@link #getRowGroupSize(int)} values from offset
+     */
+    public void readDoubles(int group, int column, double[] out, int offset) {
+        int rows = groupRows[group];
+        int k = group * columnCount + column;
+        if ((kinds[k] == ColumnKind.DOUBLE || kinds[k] == ColumnKind.NUMBER) && flags[k] == 0) {
+            ByteBuffer chunk = chunk(group, column);
+            for (int i = 0; i < rows; i++) {
+                out[offset + i] = chunk.getDouble(i << 3);
+            }
+        } else {
+            for (int i = 0; i < rows; i++) {
+                out[offset + i] = getDouble(group, column, i);
+            }
+        }
+    }
+
+    /**
+     * @return the cell as the CSV file has it
+     */
+    public String getString(int group, int column, int row) {
+        if (getKind(group, column) == ColumnKind.STRING) {
+            return dictionary(group, column, row);
+        }
+        text.reset();
+        appendCell(text, group, column, row);
+        return text.toString();
+    }
+
+    /**
+     * Writes the file as the CSV it replaces, header included.
+     * @return number of rows written
+     */
+    public long writeCsv(OutputStream out) throws IOException {
+        byte[] lineSep = LINE_SEP.getBytes();
+        out.write(String.join(",", names).getBytes());
+        out.write(lineSep);
+        FeatureRowWriter row = new FeatureRowWriter();
+        for (int g = 0; g < groupRows.length; g++) {
+            for (int i = 0; i < groupRows[g]; i++) {
+                row.reset();
+                for (int c = 0; c < columnCount; c++) {
+                    if (c > 0) {
+                        row.comma();
+                    }
+                    appendCell(row, g, c, i);
+                }
+                out.write(row.array(), 0, row.length());
+                out.write(lineSep);
+            }
+        }
+        return rowCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    private void appendCell(FeatureRowWriter out, int group, int column, int row) {
+        ColumnKind kind = getKind(group, column);
+        switch (kind) {
+            case DOUBLE:
+                out.append(getDouble(group, column, row));
+                break;
+            case NUMBER:
+                double v = getDouble(group, column, row);
+                ByteBuffer chunk = chunk(group, column);
+                // the bits are the last bytes of the chunk
+                int mask = chunk.get(chunk.limit() - (groupRows[group] + 7 >> 3) + (row >> 3));
+                if ((mask & 1 << (row & 7)) != 0) {
+                    out.append((long) v);
+                } else {
+                    out.append(v);
+                }
+                break;
+            case STRING:
+                out.append(dictionary(group, column, row));
+                break;
+            default:
+                ColumnCapture.format(out, kind, getLong(group, column, row), null);
+        }
+    }
+
+    private long offsetValue(int k, ByteBuffer chunk, int row) {
+        switch (widths[k]) {
+            case 0:
+                return bases[k];
+            case 1:
+                return bases[k] + (chunk.get(row) & 0xFF);
+            case 2:
+                return bases[k] + (chunk.getShort(row << 1) & 0xFFFF);
+            case 4:
+                return bases[k] + (chunk.getInt(row << 2) & 0xFFFFFFFFL);
+            default:
+                return bases[k] + chunk.getLong(row << 3);
+        }
+    }
+
+    private String dictionary(int group, int column, int row) {
+        int k = group * columnCount + column;
+        ByteBuffer chunk = chunk(group, column);
+        String[] values = dictionaries[column];
+        switch (widths[k]) {
+            case 0:
+                return values[0];
+            case 1:
+                return values[chunk.get(row) & 0xFF];
+            case 2:
+                return values[chunk.getShort(row << 1) & 0xFFFF];
+            default:
+                return values[chunk.getInt(row << 2)];
+        }
+    }
+
+    private double stat(int k, long bits) {
+        switch (kinds[k]) {
+            case STRING:
+                return Double.NaN;
+            case DOUBLE:
+            case NUMBER:
+                return Double.longBitsToDouble(bits);
+            default:
+                return bits;
+        }
+    }
+
+    /**
+     * @return the raw chunk of the column in the row group, a view of the mapped file unless it is compressed
+     */
+    private ByteBuffer chunk(int group, int column) {
+        if (loadedGroups[column] == group) {
+            return loaded[column];
+        }
+        int k = group * columnCount + column;
+        ByteBuffer chunk;
+        try {
+            ByteBuffer map = groupMap(group);
+            ByteBuffer stored = map.duplicate();
+            stored.position((int) (offsets[k] - groupStarts[group]));
+            stored.limit(stored.position() + storedLengths[k]);
+            if (codecs[k] == Codec.NONE) {
+                chunk = stored.slice();
+            } else {
+                byte[] input = new byte[storedLengths[k]];
+                stored.get(input);
+                byte[] output = new byte[rawLengths[k]];
+                inflater.reset();
+                inflater.setInput(input);
+                if (inflater.inflate(output) != output.length || !inflater.finished()) {
+                    throw new IOException("Truncated column chunk " + names[column] + " in " + file);
+                }
+                chunk = ByteBuffer.wrap(output);
+            }
+            chunk.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (DataFormatException e) {
+            throw new UncheckedIOException(new IOException("Corrupt column chunk " + names[column] + " in " + file, e));
+        }
+        if (kinds[k] == ColumnKind.STRING) {
+            dictionaries[column] = readDictionary(chunk, widths[k] * groupRows[group]);
+        }
+        loadedGroups[column] = group;
+        loaded[column] = chunk;
+        return chunk;
+    }
+
+    private static String[] readDictionary(ByteBuffer chunk, int indexBytes) {
+        int position = indexBytes + 3 & ~3;
+        String[] values = new String[chunk.getInt(position)];
+        position += 4;
+        ByteBuffer bytes = chunk.duplicate();
+        for (int i = 0; i < values.length; i++) {
+            int length = chunk.getInt(position);
+            position += 4;
+            byte[] value = new byte[length];
+            bytes.position(position);
+            bytes.get(value);
+            values[i] = new String(value, StandardCharsets.UTF_8);
+            position += length;
+        }
+        return values;
+    }
+
+    private ByteBuffer groupMap(int group) throws IOException {
+        if (groupMaps[group] == null) {
+            int first = group * columnCount;
+            long end = groupStarts[group];
+            for (int k = first; k < first + columnCount; k++) {
+                end = Math.max(end, offsets[k] + storedLengths[k]);
+            }
+            // the chunks of a row group are contiguous, one mapping covers all of them
+            groupMaps[group] = channel.map(FileChannel.MapMode.READ_ONLY, groupStarts[group], end - groupStarts[group]);
+        }
+        return groupMaps[group];
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,516 @@
+package cic.cs.unb.ca.jnetpcap.columnar;
+
+import cic.cs.unb.ca.jnetpcap.BasicFlow;
+import cic.cs.unb.ca.jnetpcap.FeatureRowWriter;
+import cic.cs.unb.ca.jnetpcap.worker.FlowGenListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes finished flows into a binary columnar file, the compact alternative to the _Flow.csv files.
+ *
+ * Flows are buffered column by column in row groups. When a row group is full, every column is
+ * written as one chunk in the narrowest form its values allow, see {@link ColumnKind}, optionally
+ * compressed, and its min/max is kept for the footer. The file is only complete after {@link #close()}
+ * wrote the footer. Layout, all little-endian:
+ * <pre>
+ * "CFMC" version
+ * chunks, each aligned to 8 bytes
+ * footer: column count, column names, row group count,
+ *         per row group: row count, per column: kind, width, codec, flags, stored and raw length, offset, min, max
+ * trailer: footer offset, footer length, "CFMC"
+ * </pre>
+ * Read the files with {@link ColumnarFlowReader}.
+ */
+public class ColumnarFlowWriter implements FlowGenListener, Closeable {
+    public static final Logger logger = LoggerFactory.getLogger(ColumnarFlowWriter.class);
+
+    public static final String EXTENSION = "cfm";
+    public static final String FLOW_SUFFIX = "_Flow." + EXTENSION;
+    public static final int DEFAULT_ROW_GROUP_SIZE = 1 << 14;
+
+    static final int MAGIC = 0x434d4643;    // "CFMC" in file order
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int TRAILER_SIZE = 16;
+    static final int CHUNK_META_SIZE = 36;
+    static final int ALIGNMENT = 8;
+    /** chunk flag: doubles that are all integers, stored like LONG relative to the integer min */
+    static final int INTEGRAL = 1;
+    /** chunk flag: doubles stored as indexes into the distinct values of the chunk, which follow them */
+    static final int DICTIONARY = 2;
+
+    private static final double MAX_EXACT_INTEGER = 1L << 53;
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0);
+
+    private final File file;
+    private final FileChannel channel;
+    private final String[] names;
+    private final int rowGroupSize;
+    private final ColumnCapture capture;
+    private final FeatureRowWriter text = new FeatureRowWriter();
+
+    // the current row group, column by column
+    private final ColumnKind[][] kinds;
+    private final long[][] bits;
+    private final String[][] strings;
+    private int rows;
+
+    private ByteBuffer raw = newBuffer(1 << 16);
+    private byte[] compressed = new byte[0];
+    private final Deflater deflater;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final Map<Long, Integer> doubleDictionary = new HashMap<>();
+    private final int[] indexes;
+    private final double[] doubles;
+    private final long[] integers;
+    private ByteBuffer groups = newBuffer(1 << 12);
+    private int groupCount;
+
+    // what the current chunk was written with
+    private int chunkWidth;
+    private int chunkFlags;
+    private long chunkMin;
+    private long chunkMax;
+
+    private long position;
+    private long rowCount;
+    private boolean closed;
+
+    /**
+     * @param header the CSV header line, its names are the column names
+     */
+    public ColumnarFlowWriter(File file, String header, Codec codec, int rowGroupSize) throws IOException {
+        this.file = file;
+        this.names = header.split(",", -1);
+        this.rowGroupSize = Math.max(rowGroupSize, 1);
+        capture = new ColumnCapture(names.length);
+        kinds = new ColumnKind[names.length][this.rowGroupSize];
+        bits = new long[names.length][this.rowGroupSize];
+        strings = new String[names.length][];
+        indexes = new int[this.rowGroupSize];
+        doubles = new double[this.rowGroupSize];
+        integers = new long[this.rowGroupSize];
+        deflater = codec == Codec.DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer head = newBuffer(HEADER_SIZE);
+        head.putInt(MAGIC).putInt(VERSION).flip();
+        write(head);
+    }
+
+    public ColumnarFlowWriter(String savepath, String filename, String header) throws IOException {
+        this(new File(savepath, filename), header, Codec.fromProperty(), DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    /**
+     * @return true when the cfm.flowFormat system property asks for columnar flow files instead of CSV
+     */
+    public static boolean isSelected() {
+        return "columnar".equalsIgnoreCase(System.getProperty("cfm.flowFormat", "csv").trim());
+    }
+
+    /**
+     * Finished flows are buffered under the writer's lock, flows from several shards may arrive at once.
+     */
+    @Override
+    public synchronized void onFlowGenerated(BasicFlow flow) {
+        if (closed) {
+            throw new IllegalStateException("Writer is closed: " + file);
+        }
+        flow.writeFeatures(capture.reset());
+        for (int c = 0; c < names.length; c++) {
+            ColumnKind kind = capture.kinds[c];
+            kinds[c][rows] = kind;
+            if (kind == ColumnKind.STRING) {
+                if (strings[c] == null) {
+                    strings[c] = new String[rowGroupSize];
+                }
+                strings[c][rows] = capture.strings[c];
+            } else {
+                bits[c][rows] = capture.bits[c];
+            }
+        }
+        rowCount++;
+        if (++rows == rowGroupSize) {
+            try {
+                writeRowGroup();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write flows to " + file, e);
+            }
+        }
+    }
+
+    public synchronized long getRowCount() {
+        return rowCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the last row group and the footer, and closes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (rows > 0) {
+                writeRowGroup();
+            }
+            long footerOffset = position;
+            byte[][] encoded = new byte[names.length][];
+            int size = 8 + groups.position();
+            for (int c = 0; c < names.length; c++) {
+                encoded[c] = names[c].getBytes(StandardCharsets.UTF_8);
+                size += 2 + encoded[c].length;
+            }
+            ByteBuffer footer = newBuffer(size + TRAILER_SIZE);
+            footer.putInt(names.length);
+            for (byte[] name : encoded) {
+                footer.putShort((short) name.length).put(name);
+            }
+            footer.putInt(groupCount);
+            groups.flip();
+            footer.put(groups);
+            footer.putLong(footerOffset).putInt(size).putInt(MAGIC).flip();
+            write(footer);
+        } finally {
+            channel.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private void writeRowGroup() throws IOException {
+        ensureGroups(4 + names.length * CHUNK_META_SIZE);
+        groups.putInt(rows);
+        for (int c = 0; c < names.length; c++) {
+            ColumnKind kind = chunkKind(c);
+            raw.clear();
+            chunkFlags = 0;
+            switch (kind) {
+                case DOUBLE:
+                case NUMBER:
+                    encodeDoubles(c, kind);
+                    break;
+                case STRING:
+                    encodeStrings(c);
+                    break;
+                default:
+                    encodeLongs(c);
+            }
+            raw.flip();
+            int rawLength = raw.remaining();
+            Codec chunkCodec = Codec.NONE;
+            ByteBuffer stored = raw;
+            if (deflater != null && rawLength > 0) {
+                int length = deflate(rawLength);
+                if (length > 0) {
+                    chunkCodec = Codec.DEFLATE;
+                    stored = ByteBuffer.wrap(compressed, 0, length);
+                }
+            }
+            pad();
+            long offset = position;
+            int storedLength = stored.remaining();
+            write(stored);
+
+            groups.put((byte) kind.ordinal()).put((byte) chunkWidth).put((byte) chunkCodec.ordinal()).put((byte) chunkFlags);
+            groups.putInt(storedLength).putInt(rawLength).putLong(offset).putLong(chunkMin).putLong(chunkMax);
+            if (strings[c] != null) {
+                Arrays.fill(strings[c], 0, rows, null);
+            }
+        }
+        groupCount++;
+        rows = 0;
+    }
+
+    /**
+     * The kind all rows of the column fit: their own kind when they agree, NUMBER for a mix of integers
+     * and doubles, STRING for anything else.
+     */
+    private ColumnKind chunkKind(int c) {
+        ColumnKind[] column = kinds[c];
+        ColumnKind first = column[0] == null ? ColumnKind.STRING : column[0];
+        boolean same = true;
+        boolean numbers = true;
+        for (int i = 0; i < rows; i++) {
+            ColumnKind kind = column[i];
+            same &= kind == first;
+            numbers &= kind == ColumnKind.LONG || kind == ColumnKind.DOUBLE;
+        }
+        return same ? first : (numbers ? ColumnKind.NUMBER : ColumnKind.STRING);
+    }
+
+    private void encodeLongs(int c) {
+        long[] values = bits[c];
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < rows; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        chunkWidth = putOffsets(values, min, max);
+        chunkMin = min;
+        chunkMax = max;
+    }
+
+    private void encodeDoubles(int c, ColumnKind kind) {
+        long[] values = bits[c];
+        ColumnKind[] rowKinds = kinds[c];
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        boolean integral = true;
+        for (int i = 0; i < rows; i++) {
+            double v = rowKinds[i] == ColumnKind.LONG ? (double) values[i] : Double.longBitsToDouble(values[i]);
+            doubles[i] = v;
+            min = v < min ? v : min;
+            max = v > max ? v : max;
+            // false for NaN and the infinities
+            integral &= v == (long) v && Math.abs(v) <= MAX_EXACT_INTEGER
+                    && Double.doubleToRawLongBits(v) != NEGATIVE_ZERO_BITS;
+        }
+        if (integral && rows > 0) {
+            // counts and sizes written as doubles, most of them in fact
+            for (int i = 0; i < rows; i++) {
+                integers[i] = (long) doubles[i];
+            }
+            chunkWidth = putOffsets(integers, (long) min, (long) max);
+            chunkFlags = INTEGRAL;
+        } else if (!putDictionary()) {
+            ensureRaw(rows * 8);
+            for (int i = 0; i < rows; i++) {
+                raw.putDouble(doubles[i]);
+            }
+            chunkWidth = 8;
+        }
+        if (kind == ColumnKind.NUMBER) {
+            // a bit per row written as an integer, at the end of the chunk
+            ensureRaw((rows + 7) / 8);
+            for (int i = 0; i < rows; i += 8) {
+                int mask = 0;
+                for (int b = 0; b < 8 && i + b < rows; b++) {
+                    mask |= rowKinds[i + b] == ColumnKind.LONG ? 1 << b : 0;
+                }
+                raw.put((byte) mask);
+            }
+        }
+        if (min > max) {
+            min = max = Double.NaN;
+        }
+        chunkMin = Double.doubleToLongBits(min);
+        chunkMax = Double.doubleToLongBits(max);
+    }
+
+    /**
+     * Writes the doubles as indexes into their distinct values when that is smaller: rates, means and
+     * deviations repeat a lot between flows.
+     * @return false when the doubles have to be written as they are
+     */
+    private boolean putDictionary() {
+        doubleDictionary.clear();
+        int limit = Math.min(1 << 16, rows / 2);
+        for (int i = 0; i < rows; i++) {
+            Long key = Double.doubleToRawLongBits(doubles[i]);
+            Integer index = doubleDictionary.get(key);
+            if (index == null) {
+                if (doubleDictionary.size() == limit) {
+                    return false;
+                }
+                index = doubleDictionary.size();
+                doubleDictionary.put(key, index);
+                integers[index] = key;
+            }
+            indexes[i] = index;
+        }
+        int entries = doubleDictionary.size();
+        int width = entries <= 1 << 8 ? 1 : 2;
+        if (entries * 8 + rows * width >= rows * 8) {
+            return false;
+        }
+        ensureRaw(rows * width + 8 + entries * 8);
+        for (int i = 0; i < rows; i++) {
+            if (width == 1) {
+                raw.put((byte) indexes[i]);
+            } else {
+                raw.putShort((short) indexes[i]);
+            }
+        }
+        while ((raw.position() & 7) != 0) {
+            raw.put((byte) 0);
+        }
+        for (int i = 0; i < entries; i++) {
+            raw.putLong(integers[i]);
+        }
+        chunkWidth = width;
+        chunkFlags = DICTIONARY;
+        return true;
+    }
+
+    /**
+     * Writes the difference of every value to min in as few bytes as the range of the values needs.
+     * @return the number of bytes per value
+     */
+    private int putOffsets(long[] values, long min, long max) {
+        // unsigned, wraps around for ranges beyond Long.MAX_VALUE which then take 8 bytes
+        long range = max - min;
+        int width = range == 0 ? 0 : (range & ~0xFFL) == 0 ? 1 : (range & ~0xFFFFL) == 0 ? 2
+                : (range & ~0xFFFFFFFFL) == 0 ? 4 : 8;
+        ensureRaw(rows * width);
+        switch (width) {
+            case 1:
+                for (int i = 0; i < rows; i++) {
+                    raw.put((byte) (values[i] - min));
+                }
+                break;
+            case 2:
+                for (int i = 0; i < rows; i++) {
+                    raw.putShort((short) (values[i] - min));
+                }
+                break;
+            case 4:
+                for (int i = 0; i < rows; i++) {
+                    raw.putInt((int) (values[i] - min));
+                }
+                break;
+            case 8:
+                for (int i = 0; i < rows; i++) {
+                    raw.putLong(values[i] - min);
+                }
+                break;
+            default:
+        }
+        return width;
+    }
+
+    private void encodeStrings(int c) {
+        dictionary.clear();
+        ColumnKind[] rowKinds = kinds[c];
+        String[] values = strings[c];
+        for (int i = 0; i < rows; i++) {
+            String s;
+            if (rowKinds[i] == ColumnKind.STRING) {
+                s = values[i];
+            } else if (rowKinds[i] == null) {
+                s = "";
+            } else {
+                // a column of several kinds keeps the text of its CSV cells
+                text.reset();
+                ColumnCapture.format(text, rowKinds[i], bits[c][i], null);
+                s = text.toString();
+            }
+            Integer index = dictionary.get(s);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.put(s, index);
+            }
+            indexes[i] = index;
+        }
+        int entries = dictionary.size();
+        int width = entries <= 1 ? 0 : entries <= 1 << 8 ? 1 : entries <= 1 << 16 ? 2 : 4;
+        ensureRaw(rows * width + 8);
+        for (int i = 0; i < rows; i++) {
+            switch (width) {
+                case 1:
+                    raw.put((byte) indexes[i]);
+                    break;
+                case 2:
+                    raw.putShort((short) indexes[i]);
+                    break;
+                case 4:
+                    raw.putInt(indexes[i]);
+                    break;
+                default:
+            }
+        }
+        while ((raw.position() & 3) != 0) {
+            raw.put((byte) 0);
+        }
+        raw.putInt(entries);
+        String[] ordered = new String[entries];
+        for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+            ordered[entry.getValue()] = entry.getKey();
+        }
+        for (String s : ordered) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            ensureRaw(4 + bytes.length);
+            raw.putInt(bytes.length).put(bytes);
+        }
+        chunkWidth = width;
+        chunkMin = 0L;
+        chunkMax = 0L;
+    }
+
+    /**
+     * @return the compressed length, or 0 when compression does not make the chunk smaller
+     */
+    private int deflate(int rawLength) {
+        if (compressed.length < rawLength) {
+            compressed = new byte[raw.capacity()];
+        }
+        deflater.reset();
+        deflater.setInput(raw.array(), raw.arrayOffset(), rawLength);
+        deflater.finish();
+        int length = deflater.deflate(compressed, 0, rawLength - 1);
+        return deflater.finished() ? length : 0;
+    }
+
+    private void pad() throws IOException {
+        int padding = (int) (-position & (ALIGNMENT - 1));
+        if (padding > 0) {
+            write(ByteBuffer.allocate(padding));
+        }
+    }
+
+    private void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src);
+        }
+    }
+
+    private void ensureRaw(int extra) {
+        if (raw.remaining() < extra) {
+            raw = grow(raw, extra);
+        }
+    }
+
+    private void ensureGroups(int extra) {
+        if (groups.remaining() < extra) {
+            groups = grow(groups, extra);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+        ByteBuffer bigger = newBuffer(Math.max(buffer.capacity() << 1, buffer.position() + extra));
+        buffer.flip();
+        return bigger.put(buffer);
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
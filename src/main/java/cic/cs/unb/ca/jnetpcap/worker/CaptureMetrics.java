@@ -0,0 +1,316 @@
+package cic.cs.unb.ca.jnetpcap.worker;
+
+import org.jnetpcap.Pcap;
+import org.jnetpcap.PcapStat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counters of a live capture: per interface the packets and bytes read, the packets that failed to
+ * decode and the kernel's own receive/drop statistics from {@link Pcap#stats(PcapStat)}, plus the
+ * flows finished and any gauges registered by the flow generator.
+ *
+ * Capture threads only bump counters. {@link #sample()} is called periodically from another thread,
+ * polls the kernel statistics and turns the counters into rates since the previous sample.
+ */
+public class CaptureMetrics {
+    public static final Logger logger = LoggerFactory.getLogger(CaptureMetrics.class);
+
+    private final List<Device> devices = new CopyOnWriteArrayList<>();
+    private final Map<String, LongSupplier> gauges = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final LongAdder flows = new LongAdder();
+    private long lastFlows;
+    private long lastSampleMillis = System.currentTimeMillis();
+    private volatile Snapshot lastSnapshot;
+
+    /**
+     * Interval of the periodic sample in seconds, from the cfm.metricsInterval system property.
+     */
+    public static int defaultInterval() {
+        return Math.max(1, Integer.getInteger("cfm.metricsInterval", 60));
+    }
+
+    public Device register(String name, Pcap pcap) {
+        Device device = new Device(name, pcap);
+        devices.add(device);
+        return device;
+    }
+
+    /**
+     * Adds a value read at every sample, such as the number of open flows.
+     */
+    public void addGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void onFlow() {
+        flows.increment();
+    }
+
+    public synchronized Snapshot sample() {
+        long now = System.currentTimeMillis();
+        long millis = Math.max(1L, now - lastSampleMillis);
+        lastSampleMillis = now;
+
+        List<DeviceSnapshot> deviceSnapshots = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            deviceSnapshots.add(device.sample(millis));
+        }
+        long flowCount = flows.sum();
+        long flowsPerSecond = (flowCount - lastFlows) * 1000L / millis;
+        lastFlows = flowCount;
+        Map<String, Long> values = new LinkedHashMap<>();
+        synchronized (gauges) {
+            gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        }
+        lastSnapshot = new Snapshot(now, deviceSnapshots, flowCount, flowsPerSecond, values);
+        return lastSnapshot;
+    }
+
+    /**
+     * @return the latest sample, null before the first one
+     */
+    public Snapshot getLastSnapshot() {
+        return lastSnapshot;
+    }
+
+    public static class Device {
+        private final String name;
+        private final Pcap pcap;
+        private final PcapStat stat = new PcapStat();
+        private final LongAdder packets = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder parseFailures = new LongAdder();
+        private long lastPackets;
+        private long lastBytes;
+        private long received;
+        private long dropped;
+        private long ifDropped;
+        private boolean closed;
+
+        Device(String name, Pcap pcap) {
+            this.name = name;
+            this.pcap = pcap;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void onPacket(int wireLength) {
+            packets.increment();
+            bytes.add(wireLength);
+        }
+
+        public void onParseFailure() {
+            parseFailures.increment();
+        }
+
+        /**
+         * Closes the capture handle; the kernel statistics keep their last sampled values.
+         */
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                pcap.close();
+            }
+        }
+
+        synchronized DeviceSnapshot sample(long millis) {
+            if (!closed) {
+                if (pcap.stats(stat) == Pcap.OK) {
+                    received = stat.getRecv();
+                    dropped = stat.getDrop();
+                    ifDropped = stat.getIfDrop();
+                } else {
+                    logger.debug("Cannot read capture statistics of {}: {}", name, pcap.getErr());
+                }
+            }
+            long packetCount = packets.sum();
+            long byteCount = bytes.sum();
+            DeviceSnapshot snapshot = new DeviceSnapshot(name, packetCount, byteCount, parseFailures.sum(),
+                    received, dropped, ifDropped, (packetCount - lastPackets) * 1000L / millis,
+                    (byteCount - lastBytes) * 1000L / millis);
+            lastPackets = packetCount;
+            lastBytes = byteCount;
+            return snapshot;
+        }
+    }
+
+    public static class DeviceSnapshot {
+        private final String name;
+        private final long packets;
+        private final long bytes;
+        private final long parseFailures;
+        private final long received;
+        private final long dropped;
+        private final long ifDropped;
+        private final long packetsPerSecond;
+        private final long bytesPerSecond;
+
+        DeviceSnapshot(String name, long packets, long bytes, long parseFailures, long received, long dropped,
+                       long ifDropped, long packetsPerSecond, long bytesPerSecond) {
+            this.name = name;
+            this.packets = packets;
+            this.bytes = bytes;
+            this.parseFailures = parseFailures;
+            this.received = received;
+            this.dropped = dropped;
+            this.ifDropped = ifDropped;
+            this.packetsPerSecond = packetsPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getPackets() {
+            return packets;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getParseFailures() {
+            return parseFailures;
+        }
+
+        /**
+         * @return packets the kernel received (ps_recv)
+         */
+        public long getReceived() {
+            return received;
+        }
+
+        /**
+         * @return packets the kernel dropped for lack of buffer space (ps_drop)
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return packets the interface or its driver dropped (ps_ifdrop)
+         */
+        public long getIfDropped() {
+            return ifDropped;
+        }
+
+        public long getPacketsPerSecond() {
+            return packetsPerSecond;
+        }
+
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d packets/s, %.2f Mbit/s, kernel dropped %d (interface %d) of %d, %d parse failures",
+                    name, packetsPerSecond, bytesPerSecond * 8 / 1e6, dropped, ifDropped, received, parseFailures);
+        }
+    }
+
+    public static class Snapshot {
+        private final long timestamp;
+        private final List<DeviceSnapshot> devices;
+        private final long flows;
+        private final long flowsPerSecond;
+        private final Map<String, Long> gauges;
+
+        Snapshot(long timestamp, List<DeviceSnapshot> devices, long flows, long flowsPerSecond,
+                 Map<String, Long> gauges) {
+            this.timestamp = timestamp;
+            this.devices = devices;
+            this.flows = flows;
+            this.flowsPerSecond = flowsPerSecond;
+            this.gauges = gauges;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public List<DeviceSnapshot> getDevices() {
+            return devices;
+        }
+
+        public long getFlows() {
+            return flows;
+        }
+
+        public long getFlowsPerSecond() {
+            return flowsPerSecond;
+        }
+
+        public Map<String, Long> getGauges() {
+            return gauges;
+        }
+
+        public long getDropped() {
+            long total = 0;
+            for (DeviceSnapshot device : devices) {
+                total += device.getDropped() + device.getIfDropped();
+            }
+            return total;
+        }
+
+        /**
+         * Renders the sample in the Prometheus text exposition format.
+         */
+        public String toPrometheus() {
+            StringBuilder out = new StringBuilder();
+            deviceMetric(out, "cfm_capture_packets_total", "counter", "Packets read from the interface", DeviceSnapshot::getPackets);
+            deviceMetric(out, "cfm_capture_bytes_total", "counter", "Bytes read from the interface", DeviceSnapshot::getBytes);
+            deviceMetric(out, "cfm_capture_parse_failures_total", "counter", "Packets that failed to decode", DeviceSnapshot::getParseFailures);
+            deviceMetric(out, "cfm_capture_kernel_received_total", "counter", "Packets received by the kernel (ps_recv)", DeviceSnapshot::getReceived);
+            deviceMetric(out, "cfm_capture_kernel_dropped_total", "counter", "Packets dropped by the kernel (ps_drop)", DeviceSnapshot::getDropped);
+            deviceMetric(out, "cfm_capture_interface_dropped_total", "counter", "Packets dropped by the interface (ps_ifdrop)", DeviceSnapshot::getIfDropped);
+            deviceMetric(out, "cfm_capture_packets_per_second", "gauge", "Packet rate over the last sample", DeviceSnapshot::getPacketsPerSecond);
+            deviceMetric(out, "cfm_capture_bytes_per_second", "gauge", "Byte rate over the last sample", DeviceSnapshot::getBytesPerSecond);
+            metric(out, "cfm_flows_total", "counter", "Flows finished", flows);
+            metric(out, "cfm_flows_per_second", "gauge", "Flow rate over the last sample", flowsPerSecond);
+            gauges.forEach((name, value) -> metric(out, "cfm_" + name, "gauge", name.replace('_', ' '), value));
+            return out.toString();
+        }
+
+        private void deviceMetric(StringBuilder out, String name, String type, String help,
+                                  ToLongFunction<DeviceSnapshot> value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for (DeviceSnapshot device : devices) {
+                out.append(name).append("{interface=\"").append(device.getName().replace("\\", "\\\\").replace("\"", "\\\""))
+                        .append("\"} ").append(value.applyAsLong(device)).append('\n');
+            }
+        }
+
+        private static void metric(StringBuilder out, String name, String type, String help, long value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            out.append(name).append(' ').append(value).append('\n');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("%d flows/s", flowsPerSecond));
+            gauges.forEach((name, value) -> out.append(", ").append(name.replace('_', ' ')).append(' ').append(value));
+            for (DeviceSnapshot device : devices) {
+                out.append("; ").append(device);
+            }
+            return out.toString();
+        }
+    }
+}
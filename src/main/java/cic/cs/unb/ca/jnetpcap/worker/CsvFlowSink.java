@@ -0,0 +1,267 @@
+package cic.cs.unb.ca.jnetpcap.worker;
+
+import cic.cs.unb.ca.jnetpcap.BasicFlow;
+import cic.cs.unb.ca.jnetpcap.FeatureRowWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static cic.cs.unb.ca.jnetpcap.Utils.LINE_SEP;
+
+/**
+ * Writes finished flows as CSV rows into one file that stays open until {@link #close()}.
+ *
+ * Rows are collected in a large buffer and written to the channel when the buffer is full or the
+ * flush interval has passed. The file is opened in append mode and gets the header only when it is
+ * created, like {@link InsertCsvRow}. Flows are formatted by a {@link FeatureRowWriter} straight into
+ * the buffer. In background mode finished flows are handed to a writer thread through a bounded
+ * queue and formatted there, so the caller does not pay for formatting either.
+ */
+public class CsvFlowSink implements FlowGenListener, Closeable {
+    public static final Logger logger = LoggerFactory.getLogger(CsvFlowSink.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000L;
+    private static final int QUEUE_CAPACITY = 1 << 14;
+    private static final String END = new String("");
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] lineSep = LINE_SEP.getBytes();
+    private final FeatureRowWriter row = new FeatureRowWriter();
+    private final long flushIntervalMillis;
+    private long lastFlush;
+    private long rowCount;
+    private boolean failed;
+    private volatile boolean closed;
+
+    private final BlockingQueue<Object> queue;
+    private final Thread writer;
+
+    public CsvFlowSink(String savepath, String filename, String header) throws IOException {
+        this(savepath, filename, header, false);
+    }
+
+    public CsvFlowSink(String savepath, String filename, String header, boolean background) throws IOException {
+        this(new File(savepath, filename), header, background, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public CsvFlowSink(File file, String header, boolean background, int bufferSize, long flushIntervalMillis) throws IOException {
+        this.file = file;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 4096));
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        boolean isNew = !file.exists() || file.length() == 0;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (isNew && header != null) {
+            append(header);
+        }
+        lastFlush = System.currentTimeMillis();
+
+        if (background) {
+            queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            writer = new Thread(this::drainQueue, "csv-sink-" + file.getName());
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            queue = null;
+            writer = null;
+        }
+    }
+
+    /**
+     * Finished flows are no longer modified by the FlowGenerator, so they can be formatted later on the writer thread.
+     */
+    @Override
+    public void onFlowGenerated(BasicFlow flow) {
+        submit(flow);
+    }
+
+    public void write(String row) {
+        submit(row);
+    }
+
+    private void submit(Object item) {
+        if (queue == null) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Sink is closed: " + file);
+                }
+                appendItem(item);
+                if (System.currentTimeMillis() - lastFlush >= flushIntervalMillis) {
+                    flushBuffer();
+                }
+            }
+            return;
+        }
+        if (closed) {
+            throw new IllegalStateException("Sink is closed: " + file);
+        }
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while queueing a row for {}", file);
+        }
+    }
+
+    /**
+     * Writes buffered rows to the file. In background mode this happens on the writer thread's own schedule.
+     */
+    public synchronized void flush() {
+        if (queue == null) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Writes every pending row and closes the file.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (writer != null) {
+            try {
+                queue.put(END);
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while closing {}", file);
+            }
+        }
+        synchronized (this) {
+            flushBuffer();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Cannot close {}", file, e);
+            }
+        }
+    }
+
+    public synchronized long getRowCount() {
+        return rowCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void drainQueue() {
+        try {
+            while (true) {
+                Object item = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                    if (item == END) {
+                        return;
+                    }
+                    if (item != null) {
+                        appendItem(item);
+                    }
+                    if (item == null || System.currentTimeMillis() - lastFlush >= flushIntervalMillis) {
+                        flushBuffer();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("CSV writer for {} interrupted", file);
+        }
+    }
+
+    private void appendItem(Object item) {
+        if (item instanceof BasicFlow) {
+            ((BasicFlow) item).writeFeatures(row.reset());
+            appendBytes(row.array(), row.length());
+        } else {
+            append((String) item);
+        }
+        rowCount++;
+    }
+
+    private void appendBytes(byte[] bytes, int length) {
+        if (buffer.remaining() < length + lineSep.length) {
+            flushBuffer();
+        }
+        if (buffer.remaining() < length + lineSep.length) {
+            writeFully(ByteBuffer.wrap(bytes, 0, length));
+            writeFully(ByteBuffer.wrap(lineSep));
+            return;
+        }
+        buffer.put(bytes, 0, length);
+        buffer.put(lineSep);
+    }
+
+    private void append(String row) {
+        int length = row.length();
+        if (buffer.remaining() < length + lineSep.length) {
+            flushBuffer();
+        }
+        if (buffer.remaining() >= length + lineSep.length) {
+            int start = buffer.position();
+            boolean ascii = true;
+            for (int i = 0; i < length; i++) {
+                char c = row.charAt(i);
+                if (c >= 0x80) {
+                    ascii = false;
+                    break;
+                }
+                buffer.put((byte) c);
+            }
+            if (ascii) {
+                buffer.put(lineSep);
+                return;
+            }
+            buffer.position(start);
+        }
+        // non-ASCII or oversized rows take the same encoding path as InsertCsvRow
+        byte[] bytes = (row + LINE_SEP).getBytes();
+        if (buffer.remaining() < bytes.length) {
+            flushBuffer();
+        }
+        if (bytes.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+    private void flushBuffer() {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+        lastFlush = System.currentTimeMillis();
+    }
+
+    private void writeFully(ByteBuffer src) {
+        try {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } catch (IOException e) {
+            src.position(src.limit());
+            if (!failed) {
+                failed = true;
+                logger.error("Cannot write flows to {}", file, e);
+            }
+        }
+    }
+}
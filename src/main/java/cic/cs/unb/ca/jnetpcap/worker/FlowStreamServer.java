@@ -0,0 +1,321 @@
+package cic.cs.unb.ca.jnetpcap.worker;
+
+import cic.cs.unb.ca.jnetpcap.BasicFlow;
+import cic.cs.unb.ca.jnetpcap.FeatureRowWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pushes finished flows to every client connected to a local TCP port, as CSV lines behind the
+ * header line, so consumers such as the Python predictor read flows as they finish instead of polling
+ * CSV files.
+ *
+ * Each flow is formatted once on the calling thread and copied into a bounded buffer per client. A
+ * writer thread per client sends its buffer to the socket. When a client does not keep up, its buffer
+ * fills and, depending on the {@link Policy}, new rows are either dropped and counted or the flow
+ * generator waits for room.
+ */
+public class FlowStreamServer implements FlowGenListener, Closeable {
+    public static final Logger logger = LoggerFactory.getLogger(FlowStreamServer.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+    private static final byte NEW_LINE = '\n';
+
+    /**
+     * What happens to a row that does not fit in the buffer of a slow client.
+     */
+    public enum Policy {
+        /** drop the row for that client and count it */
+        DROP,
+        /** wait until the client made room, slowing down the flow generator */
+        BLOCK;
+
+        /**
+         * Policy from the cfm.streamPolicy system property, DROP by default.
+         */
+        public static Policy fromProperty() {
+            String name = System.getProperty("cfm.streamPolicy", DROP.name());
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown cfm.streamPolicy {}, using {}", name, DROP);
+                return DROP;
+            }
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final byte[] header;
+    private final int bufferSize;
+    private final Policy policy;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * @param port local port to listen on, 0 for any free port
+     */
+    public FlowStreamServer(int port, String header, int bufferSize, Policy policy) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.header = (header + "\n").getBytes();
+        this.bufferSize = Math.max(bufferSize, this.header.length + 4096);
+        this.policy = policy;
+        acceptor = new Thread(this::accept, "flow-stream-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Starts a server on the port from the cfm.streamPort system property, with the buffer size from
+     * cfm.streamBuffer and the policy from cfm.streamPolicy.
+     * @return the running server, or null when no port is configured or it cannot be bound
+     */
+    public static FlowStreamServer startFromProperty(String header) {
+        int port = Integer.getInteger("cfm.streamPort", 0);
+        if (port <= 0) {
+            return null;
+        }
+        try {
+            FlowStreamServer server = new FlowStreamServer(port, header,
+                    Integer.getInteger("cfm.streamBuffer", DEFAULT_BUFFER_SIZE), Policy.fromProperty());
+            logger.info("Streaming finished flows on localhost:{}", server.getPort());
+            return server;
+        } catch (IOException e) {
+            logger.error("Cannot stream flows on port {}", port, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void onFlowGenerated(BasicFlow flow) {
+        if (clients.isEmpty()) {
+            return;
+        }
+        FeatureRowWriter row = FeatureRowWriter.local();
+        flow.writeFeatures(row);
+        for (Client client : clients) {
+            client.offer(row.array(), row.length());
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return rows dropped for slow clients so far, over all clients
+     */
+    public long getDroppedRows() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops accepting clients, sends what is buffered and disconnects everybody.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.debug("Cannot close the flow stream socket", e);
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Client client = new Client(socket);
+                clients.add(client);
+                client.start();
+                logger.info("Flow stream client {} connected", client.name);
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("Cannot accept flow stream clients", e);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * A ring of bytes between the flow generator threads and the client's writer thread. Producers
+     * copy complete rows into the free space under the lock; the writer sends the filled part
+     * without holding it, then frees what was sent.
+     */
+    private class Client {
+        private final Socket socket;
+        private final String name;
+        private final byte[] ring = new byte[bufferSize];
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        // bytes ever written to and sent from the ring
+        private long head;
+        private long tail;
+        private long rows;
+        private long droppedRows;
+        private boolean done;
+        private final Thread writer;
+
+        Client(Socket socket) {
+            this.socket = socket;
+            this.name = socket.getRemoteSocketAddress().toString();
+            writer = new Thread(this::drain, "flow-stream-" + name);
+            writer.setDaemon(true);
+            System.arraycopy(header, 0, ring, 0, header.length);
+            tail = header.length;
+        }
+
+        void start() {
+            writer.start();
+        }
+
+        void offer(byte[] row, int length) {
+            int needed = length + 1;
+            lock.lock();
+            try {
+                while (!done && ring.length - (tail - head) < needed) {
+                    if (policy == Policy.DROP || needed > ring.length) {
+                        droppedRows++;
+                        dropped.increment();
+                        return;
+                    }
+                    notFull.awaitUninterruptibly();
+                }
+                if (done) {
+                    return;
+                }
+                boolean wasEmpty = tail == head;
+                put(row, length);
+                put(NEW_LINE);
+                rows++;
+                if (wasEmpty) {
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                done = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            disconnect();
+        }
+
+        private void put(byte[] bytes, int length) {
+            int offset = (int) (tail % ring.length);
+            int first = Math.min(length, ring.length - offset);
+            System.arraycopy(bytes, 0, ring, offset, first);
+            System.arraycopy(bytes, first, ring, 0, length - first);
+            tail += length;
+        }
+
+        private void put(byte b) {
+            ring[(int) (tail % ring.length)] = b;
+            tail++;
+        }
+
+        private void drain() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    long from;
+                    long to;
+                    lock.lock();
+                    try {
+                        while (tail == head && !done) {
+                            notEmpty.await();
+                        }
+                        if (tail == head) {
+                            return;
+                        }
+                        from = head;
+                        to = tail;
+                    } finally {
+                        lock.unlock();
+                    }
+                    // producers only write past the tail, so the range can be sent without the lock
+                    int offset = (int) (from % ring.length);
+                    int length = (int) Math.min(to - from, ring.length - offset);
+                    out.write(ring, offset, length);
+                    lock.lock();
+                    try {
+                        head = from + length;
+                        notFull.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (SocketException e) {
+                logger.debug("Flow stream client {} went away", name, e);
+            } catch (IOException e) {
+                logger.warn("Cannot stream flows to {}", name, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.lock();
+                try {
+                    done = true;
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                disconnect();
+            }
+        }
+
+        private void disconnect() {
+            if (clients.remove(this)) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    logger.debug("Cannot close flow stream client {}", name, e);
+                }
+                logger.info("Flow stream client {} disconnected after {} flows, {} dropped", name, rows, droppedRows);
+            }
+        }
+    }
+}
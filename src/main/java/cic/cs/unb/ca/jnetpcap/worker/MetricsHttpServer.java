@@ -0,0 +1,64 @@
+package cic.cs.unb.ca.jnetpcap.worker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the latest {@link CaptureMetrics} sample at /metrics in the Prometheus text format.
+ */
+public class MetricsHttpServer {
+    public static final Logger logger = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+    private final HttpServer server;
+
+    private MetricsHttpServer(HttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Starts a server on the port from the cfm.metricsPort system property, listening on the address
+     * from cfm.metricsBind or on the loopback interface only when that is unset.
+     * @return the running server, or null when no port is configured or it cannot be bound
+     */
+    public static MetricsHttpServer startFromProperty(CaptureMetrics metrics) {
+        int port = Integer.getInteger("cfm.metricsPort", 0);
+        if (port <= 0) {
+            return null;
+        }
+        String bind = System.getProperty("cfm.metricsBind");
+        try {
+            InetAddress address = bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+            HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+            server.createContext("/metrics", exchange -> serve(exchange, metrics));
+            server.start();
+            InetSocketAddress bound = server.getAddress();
+            logger.info("Serving capture metrics on http://{}:{}/metrics", bound.getAddress().getHostAddress(), bound.getPort());
+            return new MetricsHttpServer(server);
+        } catch (IOException e) {
+            logger.error("Cannot serve capture metrics on {}:{}", bind == null ? "loopback" : bind, port, e);
+            return null;
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static void serve(HttpExchange exchange, CaptureMetrics metrics) throws IOException {
+        CaptureMetrics.Snapshot snapshot = metrics.getLastSnapshot();
+        byte[] body = (snapshot == null ? "" : snapshot.toPrometheus()).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
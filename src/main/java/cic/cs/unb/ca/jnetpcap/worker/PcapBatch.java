@@ -0,0 +1,184 @@
+package cic.cs.unb.ca.jnetpcap.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes a set of capture files on a bounded pool of worker threads, one file per task.
+ *
+ * Files are queued largest first and every worker takes the next file as soon as it is done with
+ * its current one, so a few huge captures do not end up behind many small ones on the same thread.
+ */
+public class PcapBatch {
+    public static final Logger logger = LoggerFactory.getLogger(PcapBatch.class);
+
+    public interface FileTask {
+        /**
+         * @return number of packets read from the file
+         */
+        long process(File file) throws Exception;
+    }
+
+    public interface Listener {
+        void onFileDone(FileResult result, int done, int total);
+    }
+
+    private final int workers;
+
+    public PcapBatch(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * Number of files processed at once from the cfm.fileWorkers system property, one per available core by default.
+     */
+    public static int defaultWorkers() {
+        return Math.max(1, Integer.getInteger("cfm.fileWorkers", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public Summary run(File[] files, FileTask task, Listener listener) throws InterruptedException {
+        List<File> queue = new ArrayList<>(Arrays.asList(files));
+        queue.sort(Comparator.comparingLong(File::length).reversed());
+        int total = queue.size();
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, total)), r -> {
+            Thread thread = new Thread(r, "pcap-file-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong packets = new AtomicLong();
+        long start = System.currentTimeMillis();
+        for (File file : queue) {
+            pool.execute(() -> {
+                long fileStart = System.currentTimeMillis();
+                long filePackets = 0L;
+                boolean ok = true;
+                try {
+                    filePackets = task.process(file);
+                } catch (Exception e) {
+                    ok = false;
+                    failed.incrementAndGet();
+                    logger.error("Failed to process {}", file, e);
+                }
+                packets.addAndGet(filePackets);
+                FileResult result = new FileResult(file, ok, filePackets, System.currentTimeMillis() - fileStart);
+                if (listener != null) {
+                    listener.onFileDone(result, done.incrementAndGet(), total);
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw e;
+        }
+        return new Summary(total, failed.get(), packets.get(), System.currentTimeMillis() - start);
+    }
+
+    private static long perSecond(long count, long millis) {
+        return count * 1000L / Math.max(1L, millis);
+    }
+
+    public static class FileResult {
+        private final File file;
+        private final boolean ok;
+        private final long packets;
+        private final long millis;
+
+        FileResult(File file, boolean ok, long packets, long millis) {
+            this.file = file;
+            this.ok = ok;
+            this.packets = packets;
+            this.millis = millis;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public long getPackets() {
+            return packets;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long getPacketsPerSecond() {
+            return perSecond(packets, millis);
+        }
+
+        @Override
+        public String toString() {
+            if (!ok) {
+                return String.format("%s failed after %.1f s", file.getName(), millis / 1000.0);
+            }
+            return String.format("%s: %d packets in %.1f s (%d packets/s)", file.getName(), packets, millis / 1000.0,
+                    getPacketsPerSecond());
+        }
+    }
+
+    public static class Summary {
+        private final int files;
+        private final int failed;
+        private final long packets;
+        private final long millis;
+
+        Summary(int files, int failed, long packets, long millis) {
+            this.files = files;
+            this.failed = failed;
+            this.packets = packets;
+            this.millis = millis;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public long getPackets() {
+            return packets;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long getPacketsPerSecond() {
+            return perSecond(packets, millis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files (%d failed), %d packets in %.1f s (%d packets/s)", files, failed, packets,
+                    millis / 1000.0, getPacketsPerSecond());
+        }
+    }
+}
@@ -4,10 +4,9 @@ import cic.cs.unb.ca.jnetpcap.*;
 import org.jnetpcap.PcapClosedException;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
 
 import static cic.cs.unb.ca.jnetpcap.Utils.FILE_SEP;
 import static cic.cs.unb.ca.jnetpcap.Utils.FLOW_SUFFIX;
@@ -37,11 +36,19 @@ public class PcapReader {
             }
         }
 
+        CsvFlowSink sink;
+        try {
+            sink = new CsvFlowSink(outPath, fileName + FLOW_SUFFIX, FlowFeature.getHeader());
+        } catch (IOException e) {
+            System.out.println(String.format("Cannot open %s for writing: %s", saveFileFullPath, e.getMessage()));
+            return;
+        }
+
         FlowGenerator flowGen = new FlowGenerator(true, flowTimeout, activityTimeout);
-        flowGen.addFlowListener(new FlowListener(fileName, outPath));
+        flowGen.addFlowListener(new FlowListener(fileName, sink));
         boolean readIP6 = false;
         boolean readIP4 = true;
-        PacketReader packetReader = new PacketReader(inputFile, readIP4, readIP6);
+        PacketSource packetReader = PacketSource.openOffline(inputFile, readIP4, readIP6);
 
         System.out.println(String.format("Working on... %s", fileName));
 
@@ -53,17 +60,18 @@ public class PcapReader {
         boolean disordered = false;
         long idDisorderedPacket = 0L;
         long start = System.currentTimeMillis();
+        BasicPacketInfo basicPacket = new BasicPacketInfo();
         while (true) {
             try {
-                BasicPacketInfo basicPacket = packetReader.nextPacket();
+                boolean decoded = packetReader.nextPacket(basicPacket);
                 nTotal++;
-                if (basicPacket != null) {
+                if (decoded) {
                     //
                     // Check that pcap file isn't disordered to make sure to obtain consistent netflows.
                     //
                     currentTimestamp = basicPacket.getTimeStamp();
                     if(!(disordered) && (previousTimestamp>currentTimestamp)){
-                        idDisorderedPacket = basicPacket.getId(); // save ID of the first disordered packet.
+                        idDisorderedPacket = IdGenerator.SKIP_IDS ? nValid + 1 : basicPacket.getId(); // save ID of the first disordered packet.
                         disordered = true;
 
                         // The pcap file is disordered thus show the warning to user
@@ -85,7 +93,9 @@ public class PcapReader {
                 break;
             }
         }
+        packetReader.close();
 
+        sink.close();
         flowGen.dumpLabeledCurrentFlow(saveFileFullPath.getPath(), FlowFeature.getHeader());
 
         long lines = countLines(saveFileFullPath.getPath());
@@ -100,22 +110,19 @@ public class PcapReader {
 
         private String fileName;
 
-        private String outPath;
+        private CsvFlowSink sink;
 
         private long cnt;
 
-        public FlowListener(String fileName, String outPath) {
+        public FlowListener(String fileName, CsvFlowSink sink) {
             this.fileName = fileName;
-            this.outPath = outPath;
+            this.sink = sink;
         }
 
         @Override
         public void onFlowGenerated(BasicFlow flow) {
 
-            String flowDump = flow.dumpFlowBasedFeaturesEx();
-            List<String> flowStringList = new ArrayList<>();
-            flowStringList.add(flowDump);
-            InsertCsvRow.insert(FlowFeature.getHeader(), flowStringList, outPath, fileName + FLOW_SUFFIX);
+            sink.onFlowGenerated(flow);
 
             cnt++;
 
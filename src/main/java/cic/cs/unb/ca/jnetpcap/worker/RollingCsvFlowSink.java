@@ -0,0 +1,78 @@
+package cic.cs.unb.ca.jnetpcap.worker;
+
+import cic.cs.unb.ca.jnetpcap.BasicFlow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Streams finished flows into a series of timestamped CSV files, starting a new file on every
+ * {@link #rotate()}. Each file is written through a background {@link CsvFlowSink} and is only
+ * created once a flow arrives for it.
+ */
+public class RollingCsvFlowSink implements FlowGenListener, Closeable {
+    public static final Logger logger = LoggerFactory.getLogger(RollingCsvFlowSink.class);
+
+    private final String savepath;
+    private final String prefix;
+    private final String header;
+    private CsvFlowSink current;
+    private boolean closed;
+
+    public RollingCsvFlowSink(String savepath, String prefix, String header) {
+        this.savepath = savepath;
+        this.prefix = prefix;
+        this.header = header;
+    }
+
+    @Override
+    public synchronized void onFlowGenerated(BasicFlow flow) {
+        if (closed) {
+            return;
+        }
+        if (current == null) {
+            String filename = prefix + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".csv";
+            try {
+                current = new CsvFlowSink(savepath, filename, header, true);
+            } catch (IOException e) {
+                logger.error("Cannot open {} for writing", filename, e);
+                return;
+            }
+        }
+        current.onFlowGenerated(flow);
+    }
+
+    /**
+     * Closes the current file; the next flow starts a new one.
+     */
+    public void rotate() {
+        CsvFlowSink done;
+        synchronized (this) {
+            done = current;
+            current = null;
+        }
+        finish(done);
+    }
+
+    @Override
+    public void close() {
+        CsvFlowSink done;
+        synchronized (this) {
+            closed = true;
+            done = current;
+            current = null;
+        }
+        finish(done);
+    }
+
+    private static void finish(CsvFlowSink sink) {
+        if (sink != null) {
+            sink.close();
+            logger.info("Wrote {} flows to {}", sink.getRowCount(), sink.getFile());
+        }
+    }
+}
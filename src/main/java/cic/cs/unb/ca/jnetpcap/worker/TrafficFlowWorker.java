@@ -1,8 +1,10 @@
 package cic.cs.unb.ca.jnetpcap.worker;
 
 import cic.cs.unb.ca.jnetpcap.BasicFlow;
+import cic.cs.unb.ca.jnetpcap.BasicPacketInfo;
 import cic.cs.unb.ca.jnetpcap.FlowGenerator;
 import cic.cs.unb.ca.jnetpcap.PacketReader;
+import cic.cs.unb.ca.jnetpcap.Protocol;
 import org.jnetpcap.Pcap;
 import org.jnetpcap.nio.JMemory.Type;
 import org.jnetpcap.packet.PcapPacket;
@@ -12,12 +14,18 @@ import org.slf4j.LoggerFactory;
 
 import javax.swing.*;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class TrafficFlowWorker extends SwingWorker<String,String> implements FlowGenListener{
 
 	public static final Logger logger = LoggerFactory.getLogger(TrafficFlowWorker.class);
     public static final String PROPERTY_FLOW = "flow";
+    public static final String PROPERTY_METRICS = "metrics";
+	private static final int METRICS_INTERVAL = 2;
 	private String device;
+	private final CaptureMetrics metrics = new CaptureMetrics();
 
 
     public TrafficFlowWorker(String device) {
@@ -40,6 +48,27 @@ public class TrafficFlowWorker extends SwingWorker<String,String> implements Flo
 			return String.format("open %s fail ->",device)+errbuf.toString();
 		}
 
+		CaptureMetrics.Device deviceMetrics = metrics.register(device, pcap);
+		metrics.addGauge("active_flows", flowGen::getActiveFlowCount);
+		metrics.addGauge("evicted_flows", flowGen::getEvictedFlowCount);
+		metrics.addGauge("refused_flows", flowGen::getRefusedFlowCount);
+		ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "capture-metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sampler.scheduleAtFixedRate(() -> {
+			try {
+				firePropertyChange(PROPERTY_METRICS, null, metrics.sample());
+			} catch (Exception e) {
+				logger.error("Error sampling capture metrics", e);
+			}
+		}, METRICS_INTERVAL, METRICS_INTERVAL, TimeUnit.SECONDS);
+		MetricsHttpServer metricsServer = MetricsHttpServer.startFromProperty(metrics);
+
+		// the loop calls the handler on this thread, one packet at a time
+		BasicPacketInfo packetInfo = new BasicPacketInfo();
+		Protocol protocol = new Protocol();
 		PcapPacketHandler<String> jpacketHandler = (packet, user) -> {
 
             /*
@@ -58,7 +87,9 @@ public class TrafficFlowWorker extends SwingWorker<String,String> implements Flo
             PcapPacket permanent = new PcapPacket(Type.POINTER);
             packet.transferStateAndDataTo(permanent);
 
-            flowGen.addPacket(PacketReader.getBasicPacketInfo(permanent, true, false));
+            if (PacketReader.getBasicPacketInfo(permanent, true, false, deviceMetrics, protocol, packetInfo)) {
+                flowGen.addPacket(packetInfo);
+            }
             if(isCancelled()) {
                 pcap.breakloop();
                 logger.debug("break Packet loop");
@@ -69,6 +100,12 @@ public class TrafficFlowWorker extends SwingWorker<String,String> implements Flo
         logger.info("Pcap is listening...");
         firePropertyChange("progress","open successfully","listening: "+device);
         int ret = pcap.loop(Pcap.DISPATCH_BUFFER_FULL, jpacketHandler, device);
+        sampler.shutdownNow();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        logger.info("{}: {}", device, metrics.sample());
+        deviceMetrics.close();
 
 		String str;
         switch (ret) {
@@ -100,6 +137,7 @@ public class TrafficFlowWorker extends SwingWorker<String,String> implements Flo
 
 	@Override
 	public void onFlowGenerated(BasicFlow flow) {
+        metrics.onFlow();
         firePropertyChange(PROPERTY_FLOW,null,flow);
 	}
 }
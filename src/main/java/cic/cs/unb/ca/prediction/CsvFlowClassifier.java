@@ -0,0 +1,214 @@
+package cic.cs.unb.ca.prediction;
+
+import cic.cs.unb.ca.jnetpcap.FlowFeature;
+import cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowReader;
+import cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Scores the rows of flow CSV files the way prediction/prediction.py does: the model features are
+ * found by header name, values that are not numbers (such as "-" or " ") are imputed like NaN, and the
+ * rows are preprocessed and scored a {@link FeatureBatch} at a time. Columnar flow files are read
+ * through {@link ColumnarFlowReader}, without parsing text.
+ */
+public class CsvFlowClassifier {
+
+    public static final int BATCH_SIZE = 4096;
+
+    public interface RowListener {
+        /**
+         * @param row number of the data row in its file, from 1
+         */
+        void onRow(long row, String label);
+    }
+
+    private final FlowClassifier classifier;
+    private final FeatureBatch batch;
+    private final String[] labels;
+    private final double[] row = new double[FlowFeature.values().length];
+    private boolean featureHeaderWritten;
+
+    public CsvFlowClassifier(FlowClassifier classifier, int batchSize) {
+        this.classifier = classifier;
+        batch = classifier.newBatch(batchSize);
+        labels = new String[batchSize];
+    }
+
+    /**
+     * @param features if not null, receives the preprocessed features of every row as CSV, to compare
+     *                 with the output of preprocess_new_data in prediction.py
+     * @return number of rows scored
+     */
+    public long classify(File file, RowListener rows, Writer features) throws IOException {
+        if (file.getName().toLowerCase(Locale.ROOT).endsWith("." + ColumnarFlowWriter.EXTENSION)) {
+            return classifyColumnar(file, rows, features);
+        }
+        FlowPreprocessor preprocessor = classifier.getPreprocessor();
+        int featureCount = preprocessor.getFeatureCount();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String header = in.readLine();
+            if (header == null) {
+                return 0L;
+            }
+            String[] names = header.split(",", -1);
+            // position of each model feature in the file, and where it goes in a FlowFeature row
+            int[] fileColumns = new int[featureCount];
+            int[] rowColumns = new int[featureCount];
+            for (int f = 0; f < featureCount; f++) {
+                fileColumns[f] = Arrays.asList(names).indexOf(preprocessor.getFeatureName(f));
+                if (fileColumns[f] < 0) {
+                    throw new IOException("Missing column " + preprocessor.getFeatureName(f) + " in " + file);
+                }
+                rowColumns[f] = preprocessor.getColumn(f);
+            }
+            writeFeatureHeader(features);
+
+            int[] starts = new int[names.length + 1];
+            long count = 0L;
+            String line;
+            batch.clear();
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int cells = split(line, starts);
+                for (int f = 0; f < featureCount; f++) {
+                    int c = fileColumns[f];
+                    row[rowColumns[f]] = c < cells ? parse(line, starts[c], starts[c + 1] - 1) : Double.NaN;
+                }
+                batch.add(row);
+                if (batch.isFull()) {
+                    flush(rows, features, count);
+                    count += batch.size();
+                    batch.clear();
+                }
+            }
+            flush(rows, features, count);
+            count += batch.size();
+            batch.clear();
+            return count;
+        }
+    }
+
+    private long classifyColumnar(File file, RowListener rows, Writer features) throws IOException {
+        FlowPreprocessor preprocessor = classifier.getPreprocessor();
+        int featureCount = preprocessor.getFeatureCount();
+        try (ColumnarFlowReader in = new ColumnarFlowReader(file)) {
+            int[] fileColumns = new int[featureCount];
+            int[] rowColumns = new int[featureCount];
+            for (int f = 0; f < featureCount; f++) {
+                fileColumns[f] = in.getColumnIndex(preprocessor.getFeatureName(f));
+                if (fileColumns[f] < 0) {
+                    throw new IOException("Missing column " + preprocessor.getFeatureName(f) + " in " + file);
+                }
+                rowColumns[f] = preprocessor.getColumn(f);
+            }
+            writeFeatureHeader(features);
+
+            double[][] values = new double[featureCount][];
+            long count = 0L;
+            batch.clear();
+            for (int g = 0; g < in.getRowGroupCount(); g++) {
+                int groupSize = in.getRowGroupSize(g);
+                for (int f = 0; f < featureCount; f++) {
+                    if (values[f] == null || values[f].length < groupSize) {
+                        values[f] = new double[groupSize];
+                    }
+                    in.readDoubles(g, fileColumns[f], values[f], 0);
+                }
+                for (int i = 0; i < groupSize; i++) {
+                    for (int f = 0; f < featureCount; f++) {
+                        row[rowColumns[f]] = values[f][i];
+                    }
+                    batch.add(row);
+                    if (batch.isFull()) {
+                        flush(rows, features, count);
+                        count += batch.size();
+                        batch.clear();
+                    }
+                }
+            }
+            flush(rows, features, count);
+            count += batch.size();
+            batch.clear();
+            return count;
+        }
+    }
+
+    private void writeFeatureHeader(Writer features) throws IOException {
+        if (features == null || featureHeaderWritten) {
+            return;
+        }
+        FlowPreprocessor preprocessor = classifier.getPreprocessor();
+        for (int f = 0; f < preprocessor.getFeatureCount(); f++) {
+            features.write(f == 0 ? "" : ",");
+            features.write(preprocessor.getFeatureName(f));
+        }
+        features.write('\n');
+        featureHeaderWritten = true;
+    }
+
+    private void flush(RowListener rows, Writer features, long done) throws IOException {
+        int n = batch.size();
+        if (n == 0) {
+            return;
+        }
+        classifier.classify(batch, labels);
+        for (int i = 0; i < n; i++) {
+            rows.onRow(done + i + 1, labels[i]);
+        }
+        if (features != null) {
+            int featureCount = batch.getFeatureCount();
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                out.setLength(0);
+                for (int f = 0; f < featureCount; f++) {
+                    if (f > 0) {
+                        out.append(',');
+                    }
+                    out.append(batch.get(f, i));
+                }
+                out.append('\n');
+                features.append(out);
+            }
+        }
+    }
+
+    /**
+     * Records where each cell of the line starts, plus one past the end of the last cell.
+     * @return number of cells, at most starts.length - 1
+     */
+    private static int split(String line, int[] starts) {
+        int cells = 0;
+        starts[cells++] = 0;
+        for (int i = 0; i < line.length() && cells < starts.length; i++) {
+            if (line.charAt(i) == ',') {
+                starts[cells++] = i + 1;
+            }
+        }
+        if (cells < starts.length) {
+            starts[cells] = line.length() + 1;
+            return cells;
+        }
+        return cells - 1;
+    }
+
+    private static double parse(String line, int from, int to) {
+        if (from >= to) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(line.substring(from, to));
+        } catch (NumberFormatException e) {
+            // "-", " " and any other text are missing values
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package cic.cs.unb.ca.prediction;
+
+/**
+ * A block of flows in column-major order: one array per model feature with one slot per flow, so
+ * {@link FlowPreprocessor} runs each step as a plain loop over a double[] that the JIT can unroll and
+ * vectorize, and {@link RandomForest} walks each tree for all flows before moving to the next tree.
+ *
+ * Also holds the scratch space of the classification, so a batch is reused without allocation.
+ * Not thread-safe.
+ */
+public class FeatureBatch {
+
+    private final int[] sourceColumns;
+    // [feature][flow], the raw values until transformed, then the scaled values
+    final double[][] columns;
+    // [feature][flow], the scaled values as the trees compare them
+    final float[][] x;
+    // [flow * classes]
+    final double[] proba;
+    final int[] rows;
+    final int[] binary;
+    final int[] multi;
+    private int size;
+
+    FeatureBatch(int[] sourceColumns, int capacity, int classes) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid batch capacity " + capacity);
+        }
+        this.sourceColumns = sourceColumns;
+        columns = new double[sourceColumns.length][capacity];
+        x = new float[sourceColumns.length][capacity];
+        proba = new double[capacity * classes];
+        rows = new int[capacity];
+        binary = new int[capacity];
+        multi = new int[capacity];
+    }
+
+    /**
+     * Adds a flow whose columns are indexed like {@link cic.cs.unb.ca.jnetpcap.FlowFeature#values()};
+     * only the model features are copied.
+     */
+    public void add(double[] row) {
+        if (size == columns[0].length) {
+            throw new IllegalStateException("The batch is full");
+        }
+        for (int f = 0; f < sourceColumns.length; f++) {
+            columns[f][size] = row[sourceColumns[f]];
+        }
+        size++;
+    }
+
+    /**
+     * @return the value of a model feature of a flow, preprocessed once the batch is classified
+     */
+    public double get(int feature, int flow) {
+        return columns[feature][flow];
+    }
+
+    /**
+     * @return true if the binary forest took the flow for an attack, once the batch is classified
+     */
+    public boolean isAttack(int flow) {
+        return binary[flow] == FlowClassifier.ATTACK;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return columns[0].length;
+    }
+
+    public boolean isFull() {
+        return size == columns[0].length;
+    }
+
+    public int getFeatureCount() {
+        return columns.length;
+    }
+}
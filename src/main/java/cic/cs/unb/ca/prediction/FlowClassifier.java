@@ -0,0 +1,190 @@
+package cic.cs.unb.ca.prediction;
+
+import cic.cs.unb.ca.jnetpcap.BasicFlow;
+import cic.cs.unb.ca.jnetpcap.FeatureVectorWriter;
+import cic.cs.unb.ca.jnetpcap.worker.FlowGenListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scores every finished flow with the attack classifier of prediction/prediction.py: a binary random
+ * forest tells normal traffic from attacks, and a multi-class forest names the attack.
+ *
+ * The model is exported from the pickles by prediction/export_model.py. Flows are read through a
+ * {@link FeatureVectorWriter}, so they are scored on the same values their CSV row holds. Each calling
+ * thread keeps its own buffers, flows from several shards are scored in parallel without allocation.
+ * Flows already at hand, such as the rows of a CSV file, are scored in a {@link FeatureBatch}.
+ */
+public class FlowClassifier implements FlowGenListener {
+    public static final Logger logger = LoggerFactory.getLogger(FlowClassifier.class);
+
+    public static final String NORMAL = "Normal";
+
+    private static final int MAGIC = 0x43464d52;    // "CFMR"
+    private static final int VERSION = 1;
+    static final int ATTACK = 1;
+
+    public interface Listener {
+        void onPrediction(BasicFlow flow, String label, boolean attack);
+    }
+
+    private final FlowPreprocessor preprocessor;
+    private final RandomForest binary;
+    private final RandomForest multi;
+    private final Listener listener;
+    private final ThreadLocal<Scratch> scratch;
+    private final LongAdder normal = new LongAdder();
+    private final LongAdder[] attacks;
+
+    public FlowClassifier(FlowPreprocessor preprocessor, RandomForest binary, RandomForest multi,
+                          Listener listener) {
+        if (binary.getClassCount() != 2) {
+            throw new IllegalArgumentException("The binary forest has " + binary.getClassCount() + " classes");
+        }
+        this.preprocessor = preprocessor;
+        this.binary = binary;
+        this.multi = multi;
+        this.listener = listener;
+        scratch = ThreadLocal.withInitial(Scratch::new);
+        attacks = new LongAdder[multi.getClassCount()];
+        for (int i = 0; i < attacks.length; i++) {
+            attacks[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Loads a model written by prediction/export_model.py.
+     * @param listener receives the prediction of every finished flow, may be null
+     */
+    public static FlowClassifier load(File file, Listener listener) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not an exported flow model");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported model version " + version + " in " + file);
+            }
+            FlowPreprocessor preprocessor = FlowPreprocessor.read(in);
+            RandomForest binary = RandomForest.read(in, preprocessor.getFeatureCount());
+            RandomForest multi = RandomForest.read(in, preprocessor.getFeatureCount());
+            return new FlowClassifier(preprocessor, binary, multi, listener);
+        }
+    }
+
+    /**
+     * Loads the model named by the cfm.model system property.
+     * @return the classifier, or null when no model is configured or it cannot be read
+     */
+    public static FlowClassifier fromProperty(Listener listener) {
+        String path = System.getProperty("cfm.model");
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        try {
+            FlowClassifier classifier = load(new File(path), listener);
+            logger.info("Scoring flows with {}: {} features, {} + {} trees, {} attack classes", path,
+                    classifier.preprocessor.getFeatureCount(), classifier.binary.getTreeCount(),
+                    classifier.multi.getTreeCount(), classifier.multi.getClassCount());
+            return classifier;
+        } catch (IOException e) {
+            logger.error("Cannot load flow model {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return an empty batch for {@link #classify(FeatureBatch, String[])}
+     */
+    public FeatureBatch newBatch(int capacity) {
+        return preprocessor.newBatch(capacity, Math.max(binary.getClassCount(), multi.getClassCount()));
+    }
+
+    /**
+     * Preprocesses and scores every flow of the batch, in place.
+     * @param labels receives the predicted label of each flow, at least {@link FeatureBatch#size()} long
+     * @return the number of flows predicted as attacks
+     */
+    public int classify(FeatureBatch batch, String[] labels) {
+        int n = batch.size();
+        preprocessor.transform(batch);
+        int[] rows = batch.rows;
+        for (int i = 0; i < n; i++) {
+            rows[i] = i;
+        }
+        binary.predict(batch, rows, n, batch.binary);
+
+        int attackCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (batch.binary[i] == ATTACK) {
+                rows[attackCount++] = i;
+            } else {
+                labels[i] = NORMAL;
+            }
+        }
+        normal.add(n - attackCount);
+        multi.predict(batch, rows, attackCount, batch.multi);
+        for (int k = 0; k < attackCount; k++) {
+            int attack = batch.multi[k];
+            attacks[attack].increment();
+            labels[rows[k]] = multi.getClassLabel(attack);
+        }
+        return attackCount;
+    }
+
+    @Override
+    public void onFlowGenerated(BasicFlow flow) {
+        Scratch s = scratch.get();
+        flow.writeFeatures(s.row.reset());
+        s.batch.clear();
+        s.batch.add(s.row.values());
+        classify(s.batch, s.labels);
+        if (listener != null) {
+            listener.onPrediction(flow, s.labels[0], s.batch.isAttack(0));
+        }
+    }
+
+    public FlowPreprocessor getPreprocessor() {
+        return preprocessor;
+    }
+
+    public long getNormalCount() {
+        return normal.sum();
+    }
+
+    public long getAttackCount() {
+        long total = 0;
+        for (LongAdder attack : attacks) {
+            total += attack.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @return number of flows per predicted label, {@link #NORMAL} first
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        counts.put(NORMAL, normal.sum());
+        for (int i = 0; i < attacks.length; i++) {
+            counts.merge(multi.getClassLabel(i), attacks[i].sum(), Long::sum);
+        }
+        return counts;
+    }
+
+    private class Scratch {
+        final FeatureVectorWriter row = new FeatureVectorWriter();
+        // flows finished one at a time are scored as a batch of one
+        final FeatureBatch batch = newBatch(1);
+        final String[] labels = new String[1];
+    }
+}
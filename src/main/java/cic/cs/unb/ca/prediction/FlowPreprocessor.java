@@ -0,0 +1,126 @@
+package cic.cs.unb.ca.prediction;
+
+import cic.cs.unb.ca.jnetpcap.FlowFeature;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * The preprocessing of prediction/prediction.py: select the training columns, replace missing and
+ * infinite values with the training medians, clip to +-1e100, take log1p of the skewed columns
+ * (negative values count as 0) and apply the MinMaxScaler.
+ *
+ * Works on a {@link FeatureBatch} one feature column at a time. The loops only hold comparisons,
+ * selects and multiply-adds, apart from log1p, so the JIT can unroll and vectorize them.
+ */
+public class FlowPreprocessor {
+
+    private static final double CLIP = 1e100;
+
+    private final String[] names;
+    private final int[] columns;
+    private final double[] medians;
+    private final boolean[] skewed;
+    private final double[] scale;
+    private final double[] min;
+
+    private FlowPreprocessor(String[] names, int[] columns, double[] medians, boolean[] skewed, double[] scale,
+                             double[] min) {
+        this.names = names;
+        this.columns = columns;
+        this.medians = medians;
+        this.skewed = skewed;
+        this.scale = scale;
+        this.min = min;
+    }
+
+    /**
+     * Reads the feature section written by prediction/export_model.py and finds each feature among the
+     * {@link FlowFeature} columns.
+     */
+    static FlowPreprocessor read(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 1) {
+            throw new IOException("Invalid feature count " + count);
+        }
+        FlowFeature[] flowFeatures = FlowFeature.values();
+        String[] names = new String[count];
+        int[] columns = new int[count];
+        double[] medians = new double[count];
+        boolean[] skewed = new boolean[count];
+        double[] scale = new double[count];
+        double[] min = new double[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+            columns[i] = -1;
+            for (FlowFeature feature : flowFeatures) {
+                if (feature.getName().equals(names[i])) {
+                    columns[i] = feature.ordinal();
+                    break;
+                }
+            }
+            if (columns[i] < 0) {
+                throw new IOException("Feature " + names[i] + " is not a flow column");
+            }
+            medians[i] = in.readDouble();
+            skewed[i] = in.readBoolean();
+            scale[i] = in.readDouble();
+            min[i] = in.readDouble();
+        }
+        return new FlowPreprocessor(names, columns, medians, skewed, scale, min);
+    }
+
+    /**
+     * @param classes number of classes of the largest forest the batch is classified with
+     */
+    FeatureBatch newBatch(int capacity, int classes) {
+        return new FeatureBatch(columns, capacity, classes);
+    }
+
+    /**
+     * Preprocesses the batch in place.
+     */
+    public void transform(FeatureBatch batch) {
+        int n = batch.size();
+        for (int f = 0; f < columns.length; f++) {
+            double[] c = batch.columns[f];
+            float[] x = batch.x[f];
+            double median = medians[f];
+            for (int i = 0; i < n; i++) {
+                double v = c[i];
+                // v - v is NaN for NaN and for both infinities
+                v = v - v == 0 ? v : median;
+                c[i] = v < -CLIP ? -CLIP : (v > CLIP ? CLIP : v);
+            }
+            if (skewed[f]) {
+                for (int i = 0; i < n; i++) {
+                    double v = c[i];
+                    c[i] = Math.log1p(v < 0 ? 0 : v);
+                }
+            }
+            double s = scale[f];
+            double m = min[f];
+            for (int i = 0; i < n; i++) {
+                double v = c[i] * s + m;
+                c[i] = v;
+                // scikit-learn casts to float32 before walking the trees
+                x[i] = (float) v;
+            }
+        }
+    }
+
+    public int getFeatureCount() {
+        return columns.length;
+    }
+
+    public String getFeatureName(int index) {
+        return names[index];
+    }
+
+    /**
+     * @return the {@link FlowFeature} ordinal a model feature is read from
+     */
+    public int getColumn(int index) {
+        return columns[index];
+    }
+}
@@ -0,0 +1,176 @@
+package cic.cs.unb.ca.prediction;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * A scikit-learn RandomForestClassifier flattened into arrays: the nodes of all trees are stored one
+ * after the other, children are absolute node indexes and a leaf has no left child. Each leaf keeps the
+ * class probabilities of its tree, so a prediction is one walk per tree and a sum, with no allocation.
+ *
+ * Decisions follow scikit-learn: the features are compared as floats, a sample goes left when
+ * {@code x <= threshold}, and the class is the first one with the highest mean probability.
+ */
+public class RandomForest {
+
+    private static final int LEAF = -1;
+
+    private final String[] classes;
+    private final int[] roots;
+    private final int[] left;
+    private final int[] right;
+    private final int[] feature;
+    private final double[] threshold;
+    private final double[] probability;
+
+    private RandomForest(String[] classes, int[] roots, int[] left, int[] right, int[] feature,
+                         double[] threshold, double[] probability) {
+        this.classes = classes;
+        this.roots = roots;
+        this.left = left;
+        this.right = right;
+        this.feature = feature;
+        this.threshold = threshold;
+        this.probability = probability;
+    }
+
+    /**
+     * Reads a forest in the layout written by prediction/export_model.py.
+     * @param featureCount number of features the trees may test
+     */
+    static RandomForest read(DataInput in, int featureCount) throws IOException {
+        int classCount = in.readInt();
+        if (classCount < 1) {
+            throw new IOException("Invalid class count " + classCount);
+        }
+        String[] classes = new String[classCount];
+        for (int i = 0; i < classCount; i++) {
+            classes[i] = in.readUTF();
+        }
+
+        int treeCount = in.readInt();
+        if (treeCount < 1) {
+            throw new IOException("Invalid tree count " + treeCount);
+        }
+        // read tree by tree, the total number of nodes is only known at the end
+        int[] roots = new int[treeCount];
+        int nodes = 0;
+        int[][] lefts = new int[treeCount][];
+        int[][] rights = new int[treeCount][];
+        int[][] features = new int[treeCount][];
+        double[][] thresholds = new double[treeCount][];
+        double[][] probabilities = new double[treeCount][];
+        for (int t = 0; t < treeCount; t++) {
+            int count = in.readInt();
+            if (count < 1) {
+                throw new IOException("Invalid node count " + count + " in tree " + t);
+            }
+            roots[t] = nodes;
+            lefts[t] = readInts(in, count);
+            rights[t] = readInts(in, count);
+            features[t] = readInts(in, count);
+            thresholds[t] = readDoubles(in, count);
+            probabilities[t] = readDoubles(in, count * classCount);
+            for (int n = 0; n < count; n++) {
+                boolean leaf = lefts[t][n] == LEAF;
+                if (!leaf && (lefts[t][n] <= n || lefts[t][n] >= count || rights[t][n] <= n || rights[t][n] >= count
+                        || features[t][n] < 0 || features[t][n] >= featureCount)) {
+                    throw new IOException("Invalid node " + n + " in tree " + t);
+                }
+            }
+            nodes += count;
+        }
+
+        int[] left = new int[nodes];
+        int[] right = new int[nodes];
+        int[] feature = new int[nodes];
+        double[] threshold = new double[nodes];
+        double[] probability = new double[nodes * classCount];
+        for (int t = 0; t < treeCount; t++) {
+            int root = roots[t];
+            int count = lefts[t].length;
+            for (int n = 0; n < count; n++) {
+                boolean leaf = lefts[t][n] == LEAF;
+                left[root + n] = leaf ? LEAF : root + lefts[t][n];
+                right[root + n] = leaf ? LEAF : root + rights[t][n];
+            }
+            System.arraycopy(features[t], 0, feature, root, count);
+            System.arraycopy(thresholds[t], 0, threshold, root, count);
+            System.arraycopy(probabilities[t], 0, probability, root * classCount, count * classCount);
+        }
+        return new RandomForest(classes, roots, left, right, feature, threshold, probability);
+    }
+
+    /**
+     * Predicts the class of some flows of a transformed batch. Each tree is walked for all the flows
+     * before the next one, so it stays in cache.
+     * @param rows indexes of the flows in the batch
+     * @param count number of rows
+     * @param out receives the index of the predicted class of rows[k] at k
+     */
+    public void predict(FeatureBatch batch, int[] rows, int count, int[] out) {
+        int classCount = classes.length;
+        float[][] x = batch.x;
+        double[] proba = batch.proba;
+        for (int i = 0, n = count * classCount; i < n; i++) {
+            proba[i] = 0;
+        }
+        for (int root : roots) {
+            for (int k = 0; k < count; k++) {
+                int row = rows[k];
+                int node = root;
+                while (left[node] != LEAF) {
+                    node = x[feature[node]][row] <= threshold[node] ? left[node] : right[node];
+                }
+                int offset = node * classCount;
+                int p = k * classCount;
+                for (int c = 0; c < classCount; c++) {
+                    proba[p + c] += probability[offset + c];
+                }
+            }
+        }
+        for (int k = 0; k < count; k++) {
+            int p = k * classCount;
+            int best = 0;
+            for (int c = 0; c < classCount; c++) {
+                proba[p + c] /= roots.length;
+                if (proba[p + c] > proba[p + best]) {
+                    best = c;
+                }
+            }
+            out[k] = best;
+        }
+    }
+
+    public int getClassCount() {
+        return classes.length;
+    }
+
+    public String getClassLabel(int index) {
+        return classes[index];
+    }
+
+    public int getTreeCount() {
+        return roots.length;
+    }
+
+    public int getNodeCount() {
+        return left.length;
+    }
+
+    private static int[] readInts(DataInput in, int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static double[] readDoubles(DataInput in, int count) throws IOException {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+}
@@ -31,7 +31,7 @@ public class ClusterWorker extends SwingWorker<WekaXMeans,Integer> {
         WekaXMeans xMeans = null;
         switch (csv_source) {
             case FLOW_CSV:
-                xMeans = new WekaXMeans(WekaFactory.loadFlowCsv(csvfile));
+                xMeans = new WekaXMeans(WekaFactory.loadFlowFile(csvfile));
                 break;
             case URL_CSV:
                 xMeans = new WekaXMeans(WekaFactory.loadURLCsv(csvfile));
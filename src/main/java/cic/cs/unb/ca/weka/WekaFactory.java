@@ -1,5 +1,8 @@
 package cic.cs.unb.ca.weka;
 
+import cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowReader;
+import cic.cs.unb.ca.jnetpcap.columnar.ColumnarFlowWriter;
+import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import weka.core.Attribute;
@@ -13,6 +16,8 @@ import weka.filters.unsupervised.attribute.PrincipalComponents;
 import java.io.File;
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * Created by yzhang29 on 02/01/18.
@@ -106,6 +111,80 @@ public class WekaFactory {
         return instances;
     }
 
+    /**
+     * Loads a CSV or a columnar flow file, by its extension.
+     */
+    public static Instances loadFlowFile(File file) {
+        if (ColumnarFlowWriter.EXTENSION.equalsIgnoreCase(FilenameUtils.getExtension(file.getName()))) {
+            return loadFlowColumnar(file);
+        }
+        return loadFlowCsv(file);
+    }
+
+    /**
+     * Builds the instances of a columnar flow file straight from its columns, like {@link #loadFlowCsv(File)}
+     * does from the CSV text: number columns become numeric attributes, the others nominal ones.
+     */
+    public static Instances loadFlowColumnar(File file) {
+        logger.debug("loadFlowColumnar {}",file.getPath());
+        Instances instances=null;
+
+        try (ColumnarFlowReader reader = new ColumnarFlowReader(file)) {
+            int columns = reader.getColumnCount();
+            int groups = reader.getRowGroupCount();
+            boolean[] numeric = new boolean[columns];
+            FastVector attributes = new FastVector(columns);
+            for (int c = 0; c < columns; c++) {
+                numeric[c] = true;
+                for (int g = 0; g < groups; g++) {
+                    numeric[c] &= reader.getKind(g, c).isNumeric();
+                }
+                if (numeric[c]) {
+                    attributes.addElement(new Attribute(reader.getColumnName(c)));
+                } else {
+                    Set<String> values = new LinkedHashSet<>();
+                    for (int g = 0; g < groups; g++) {
+                        for (int i = 0; i < reader.getRowGroupSize(g); i++) {
+                            values.add(reader.getString(g, c, i));
+                        }
+                    }
+                    FastVector nominal = new FastVector(values.size());
+                    for (String value : values) {
+                        nominal.addElement(value);
+                    }
+                    attributes.addElement(new Attribute(reader.getColumnName(c), nominal));
+                }
+            }
+
+            instances = new Instances(FilenameUtils.getBaseName(file.getName()), attributes,
+                    (int) Math.min(reader.getRowCount(), Integer.MAX_VALUE));
+            for (int g = 0; g < groups; g++) {
+                for (int i = 0; i < reader.getRowGroupSize(g); i++) {
+                    double[] values = new double[columns];
+                    for (int c = 0; c < columns; c++) {
+                        if (numeric[c]) {
+                            double v = reader.getDouble(g, c, i);
+                            values[c] = Double.isNaN(v) || Double.isInfinite(v) ? Instance.missingValue() : v;
+                        } else {
+                            values[c] = instances.attribute(c).indexOfValue(reader.getString(g, c, i));
+                        }
+                    }
+                    instances.add(new Instance(1.0, values));
+                }
+            }
+
+            Enumeration<Attribute> enuAttr = instances.enumerateAttributes();
+            while(enuAttr.hasMoreElements()) {
+                instances.deleteWithMissing(enuAttr.nextElement());
+            }
+            logger.debug("loadFlowColumnar summary-> {}",instances.toSummaryString());
+
+        }catch(IOException e) {
+            logger.debug(e.getMessage());
+        }
+        return instances;
+    }
+
     private static Instances createEmptyDimReInstances(String dimReAlgorithm) {
         FastVector fv = new FastVector();
         fv.addElement(DRATTRX);
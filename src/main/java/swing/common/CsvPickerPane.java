@@ -66,6 +66,11 @@ public class CsvPickerPane extends JPanel{
         fileChooser.setFileFilter(fileChooserFilter);
     }
 
+    public void setFilter(String description, String[] extensions, CharSequence... searchCharSequences) {
+        fileChooserFilter = new TextFileFilter(description,extensions,searchCharSequences);
+        fileChooser.setFileFilter(fileChooserFilter);
+    }
+
     public void setSelectListener(CsvSelect listener) {
         selectListener = listener;
     }
@@ -0,0 +1,167 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.jnetpcap.PcapClosedException;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * FeatureRowWriter must write exactly the text of the StringBuilder serializer it replaces, since the
+ * flow CSVs are compared with files written by the original code.
+ */
+public class FeatureRowWriterTest {
+
+    private static final String CAPTURE = "loopback.pcap";
+    // rows of the capture written by the StringBuilder serializer, with the timeouts below; Double.toString
+    // gives other digits from JDK 19 on, so the golden file only holds on the Java 8 to 18 the build targets
+    private static final String GOLDEN = "loopback_flows.csv";
+    // the capture spans 0.3 s, short timeouts give finished, split and open flows
+    private static final long FLOW_TIMEOUT = 50000L;
+    private static final long ACTIVITY_TIMEOUT = 10000L;
+
+    private static final long SECOND = 1000000L;
+    private static final long MAX_PLAIN_MICROS = Long.MAX_VALUE / 1000L;
+
+    @Test
+    public void capturedFlowsMatchGoldenFile() throws Exception {
+        List<BasicFlow> flows = new ArrayList<>();
+        FlowGenerator generator = new FlowGenerator(true, FLOW_TIMEOUT, ACTIVITY_TIMEOUT);
+        generator.addFlowListener(flows::add);
+        MappedPcapReader reader = new MappedPcapReader(resource(CAPTURE).getPath(), true, false);
+        try {
+            while (true) {
+                BasicPacketInfo packet = new BasicPacketInfo();
+                if (reader.nextPacket(packet)) {
+                    generator.addPacket(packet);
+                }
+            }
+        } catch (PcapClosedException e) {
+            // end of the capture
+        } finally {
+            reader.close();
+        }
+        generator.dumpLabeledCurrentFlow(flows::add);
+
+        List<String> expected = Files.readAllLines(resource(GOLDEN).toPath(), StandardCharsets.UTF_8);
+        assertEquals("Flows", expected.size(), flows.size());
+        // one writer for all rows, as in CsvFlowSink
+        FeatureRowWriter row = new FeatureRowWriter();
+        for (int i = 0; i < flows.size(); i++) {
+            row.reset();
+            flows.get(i).writeFeatures(row);
+            assertArrayEquals("Row " + (i + 1), expected.get(i).getBytes(StandardCharsets.UTF_8),
+                    Arrays.copyOf(row.array(), row.length()));
+            assertEquals("Row " + (i + 1), expected.get(i), flows.get(i).dumpFlowBasedFeaturesEx());
+        }
+    }
+
+    @Test
+    public void longs() {
+        checkLong(0L);
+        checkLong(7L);
+        checkLong(-1L);
+        checkLong(1234567890123L);
+        checkLong(Long.MAX_VALUE);
+        checkLong(Long.MIN_VALUE);
+    }
+
+    @Test
+    public void integralDoubles() {
+        checkDouble(0.0);
+        checkDouble(1.0);
+        checkDouble(-1.0);
+        checkDouble(1460.0);
+        checkDouble(9999999.0);
+        checkDouble(-9999999.0);
+        // Double.toString switches to computerized scientific notation at 1e7
+        checkDouble(1e7);
+        checkDouble(-1e7);
+        checkDouble(1e7 + 1);
+        checkDouble(123456789.0);
+        checkDouble(9007199254740992.0);
+        checkDouble((double) Long.MAX_VALUE);
+        checkDouble(1e19);
+        checkDouble(-1e300);
+    }
+
+    @Test
+    public void specialDoubles() {
+        checkDouble(-0.0);
+        checkDouble(Double.NaN);
+        checkDouble(Double.POSITIVE_INFINITY);
+        checkDouble(Double.NEGATIVE_INFINITY);
+        checkDouble(Double.MIN_VALUE);
+        checkDouble(Double.MAX_VALUE);
+    }
+
+    @Test
+    public void fractionalDoubles() {
+        checkDouble(0.1);
+        checkDouble(-0.5);
+        checkDouble(20.416666666666668);
+        checkDouble(9999999.5);
+        checkDouble(1e-5);
+        checkDouble(2.0E-3);
+        checkDouble(400326.7973856209);
+    }
+
+    @Test
+    public void timestamps() {
+        // one writer, so cached second prefixes are reused and replaced
+        FeatureRowWriter row = new FeatureRowWriter();
+        long start = 1760804569L * SECOND;
+        // whole seconds print no fraction
+        checkTimestamp(row, 0L);
+        checkTimestamp(row, start);
+        // millisecond fractions print three digits, others six
+        checkTimestamp(row, start + 500000L);
+        checkTimestamp(row, start + 1000L);
+        checkTimestamp(row, start + 999000L);
+        checkTimestamp(row, start + 1L);
+        checkTimestamp(row, start + 534260L);
+        checkTimestamp(row, start + 100L);
+        // a second in the same slot of the prefix cache, then the first second again
+        checkTimestamp(row, start + 256 * SECOND + 534261L);
+        checkTimestamp(row, start + 534262L);
+    }
+
+    @Test
+    public void timestampsOutOfPlainRange() {
+        FeatureRowWriter row = new FeatureRowWriter();
+        checkTimestamp(row, -1L);
+        checkTimestamp(row, -SECOND);
+        checkTimestamp(row, -SECOND - 1000L);
+        checkTimestamp(row, MAX_PLAIN_MICROS);
+        checkTimestamp(row, MAX_PLAIN_MICROS + 1L);
+        checkTimestamp(row, Long.MAX_VALUE / SECOND * SECOND);
+        checkTimestamp(row, Long.MAX_VALUE);
+    }
+
+    private static void checkLong(long value) {
+        assertEquals(new StringBuilder().append(value).toString(), written(new FeatureRowWriter().append(value)));
+    }
+
+    private static void checkDouble(double value) {
+        assertEquals(new StringBuilder().append(value).toString(), written(new FeatureRowWriter().append(value)));
+    }
+
+    private static void checkTimestamp(FeatureRowWriter row, long micros) {
+        assertEquals(DateFormatter.convertEpochTimestamp2String(micros), written(row.reset().appendTimestamp(micros)));
+    }
+
+    private static String written(FeatureRowWriter row) {
+        return new String(row.array(), 0, row.length(), StandardCharsets.UTF_8);
+    }
+
+    private File resource(String name) throws Exception {
+        return new File(getClass().getResource(name).toURI());
+    }
+}
@@ -0,0 +1,152 @@
+package cic.cs.unb.ca.jnetpcap;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.jnetpcap.PcapClosedException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StatsBlock must give exactly the results of the SummaryStatistics it replaces, since the flow
+ * features are compared against CSVs written by the original code.
+ */
+public class StatsBlockTest {
+
+    // loopback traffic of a few HTTP downloads and UDP datagrams
+    private static final String CAPTURE = "loopback.pcap";
+
+    private static List<Double> payloadSizes;
+    private static List<Double> gaps;
+
+    @BeforeClass
+    public static void readCapture() throws Exception {
+        payloadSizes = new ArrayList<>();
+        gaps = new ArrayList<>();
+        File capture = new File(StatsBlockTest.class.getResource(CAPTURE).toURI());
+        MappedPcapReader reader = new MappedPcapReader(capture.getPath(), true, false);
+        BasicPacketInfo packet = new BasicPacketInfo();
+        long last = -1;
+        try {
+            while (true) {
+                if (!reader.nextPacket(packet)) {
+                    continue;
+                }
+                payloadSizes.add((double) packet.getPayloadBytes());
+                if (last >= 0) {
+                    gaps.add((double) (packet.getTimeStamp() - last));
+                }
+                last = packet.getTimeStamp();
+            }
+        } catch (PcapClosedException e) {
+            // end of the capture
+        } finally {
+            reader.close();
+        }
+        assertTrue(payloadSizes.size() > 100);
+    }
+
+    @Test
+    public void emptyStatistic() {
+        check(new ArrayList<>());
+    }
+
+    @Test
+    public void singleValue() {
+        List<Double> one = new ArrayList<>();
+        one.add(1460.0);
+        check(one);
+        one.set(0, -0.5);
+        check(one);
+    }
+
+    @Test
+    public void capturedPayloadSizes() {
+        check(payloadSizes);
+    }
+
+    @Test
+    public void capturedGaps() {
+        check(gaps);
+    }
+
+    @Test
+    public void randomValues() {
+        Random random = new Random(42);
+        for (int run = 0; run < 100; run++) {
+            int n = random.nextInt(500);
+            List<Double> values = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                switch (run % 4) {
+                    case 0:
+                        values.add(random.nextGaussian() * 1e3);
+                        break;
+                    case 1:
+                        values.add((double) random.nextInt(65536));
+                        break;
+                    case 2:
+                        values.add(random.nextDouble() * 1e12);
+                        break;
+                    default:
+                        values.add(Math.exp(random.nextGaussian() * 10));
+                        break;
+                }
+            }
+            check(values);
+        }
+    }
+
+    @Test
+    public void statisticsAreIndependent() {
+        Random random = new Random(7);
+        int statistics = 3;
+        StatsBlock block = new StatsBlock(statistics);
+        SummaryStatistics[] expected = new SummaryStatistics[statistics];
+        for (int s = 0; s < statistics; s++) {
+            expected[s] = new SummaryStatistics();
+        }
+        // interleave the captured sizes and gaps, leave the last statistic empty
+        int n = Math.max(payloadSizes.size(), gaps.size());
+        for (int i = 0; i < n; i++) {
+            if (i < payloadSizes.size()) {
+                block.add(0, payloadSizes.get(i));
+                expected[0].addValue(payloadSizes.get(i));
+            }
+            if (i < gaps.size() && random.nextBoolean()) {
+                block.add(1, gaps.get(i));
+                expected[1].addValue(gaps.get(i));
+            }
+        }
+        for (int s = 0; s < statistics; s++) {
+            assertMatches(expected[s], block, s);
+        }
+    }
+
+    private static void check(List<Double> values) {
+        StatsBlock block = new StatsBlock(1);
+        SummaryStatistics expected = new SummaryStatistics();
+        assertMatches(expected, block, 0);
+        for (double value : values) {
+            block.add(0, value);
+            expected.addValue(value);
+            assertMatches(expected, block, 0);
+        }
+    }
+
+    // a delta of 0 compares the bits, NaN included
+    private static void assertMatches(SummaryStatistics expected, StatsBlock block, int statistic) {
+        assertEquals(expected.getN(), block.getN(statistic));
+        assertEquals(expected.getSum(), block.getSum(statistic), 0.0);
+        assertEquals(expected.getMin(), block.getMin(statistic), 0.0);
+        assertEquals(expected.getMax(), block.getMax(statistic), 0.0);
+        assertEquals(expected.getMean(), block.getMean(statistic), 0.0);
+        assertEquals(expected.getVariance(), block.getVariance(statistic), 0.0);
+        assertEquals(expected.getStandardDeviation(), block.getStandardDeviation(statistic), 0.0);
+    }
+}
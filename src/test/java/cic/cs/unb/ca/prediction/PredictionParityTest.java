@@ -0,0 +1,93 @@
+package cic.cs.unb.ca.prediction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs FlowPreprocessor and RandomForest on a sample flow CSV and compares them with the output of
+ * preprocess_new_data() and predict() in prediction/prediction.py, written by
+ * prediction/make_parity_fixtures.py.
+ *
+ * Most values are bit-identical; log1p comes from different math libraries, so a preprocessed value
+ * may differ by a few ulps of the [0, 1] range the scaler maps the training data to. Labels must agree.
+ */
+public class PredictionParityTest {
+
+    private static final int MAX_ULPS = 4;
+    // smaller than the sample, so rows are scored across several batches
+    private static final int BATCH_SIZE = 16;
+
+    private File flows;
+    private File model;
+    private File preprocessed;
+    private File labels;
+
+    @Before
+    public void findFixtures() throws URISyntaxException {
+        flows = resource("flows.csv");
+        model = resource("flow_model.bin");
+        preprocessed = resource("preprocessed.csv");
+        labels = resource("labels.txt");
+        assertTrue("Missing flows.csv", flows != null);
+        assertTrue("Run prediction/make_parity_fixtures.py to write the outputs of prediction.py",
+                model != null && preprocessed != null && labels != null);
+    }
+
+    @Test
+    public void matchesPredictionPy() throws IOException {
+        FlowClassifier classifier = FlowClassifier.load(model, null);
+        List<String> actualLabels = new ArrayList<>();
+        StringWriter features = new StringWriter();
+        long rows = new CsvFlowClassifier(classifier, BATCH_SIZE).classify(flows, (row, label) -> actualLabels.add(label), features);
+
+        List<String> expected = Files.readAllLines(preprocessed.toPath(), StandardCharsets.UTF_8);
+        List<String> actual = Arrays.asList(features.toString().split("\n"));
+        assertEquals("Feature columns", expected.get(0), actual.get(0));
+        assertEquals("Rows", expected.size() - 1, rows);
+        assertEquals("Rows", expected.size(), actual.size());
+        String[] names = expected.get(0).split(",", -1);
+        for (int r = 1; r < expected.size(); r++) {
+            String[] e = expected.get(r).split(",", -1);
+            String[] a = actual.get(r).split(",", -1);
+            assertEquals("Columns of row " + r, e.length, a.length);
+            for (int c = 0; c < e.length; c++) {
+                assertClose("Row " + r + ", " + names[c], parse(e[c]), parse(a[c]));
+            }
+        }
+
+        assertEquals(Files.readAllLines(labels.toPath(), StandardCharsets.UTF_8), actualLabels);
+    }
+
+    private static void assertClose(String message, double expected, double actual) {
+        if (Double.isNaN(expected) || Double.isNaN(actual)) {
+            assertEquals(message, expected, actual, 0.0);
+            return;
+        }
+        double tolerance = MAX_ULPS * Math.ulp(Math.max(Math.abs(expected), 1.0));
+        assertTrue(message + ": Java " + actual + ", Python " + expected, Math.abs(actual - expected) <= tolerance);
+    }
+
+    // pandas writes NaN as an empty cell
+    private static double parse(String value) {
+        return value.isEmpty() ? Double.NaN : Double.parseDouble(value);
+    }
+
+    private File resource(String name) throws URISyntaxException {
+        URL url = getClass().getResource(name);
+        return url == null ? null : new File(url.toURI());
+    }
+}